@@ -1,2 +1,2 @@
 @echo off
-java -Xmx1024m -cp lib\*;gateway/target/classes com.gitee.kooder.server.Gateway %1 %2 %3 %4 %5 %6
\ No newline at end of file
+java -Xmx2048m -cp lib\*;gateway/target/classes com.gitee.kooder.server.Gateway %1 %2 %3 %4 %5 %6
\ No newline at end of file
@@ -0,0 +1,3 @@
+@echo off
+java -cp lib\*;indexer/target/classes com.gitee.kooder.indexer.SourceFieldMigrator %1 %2 %3 %4 %5 %6
+java -cp lib\*;indexer/target/classes com.gitee.kooder.indexer.RepositoryRankMigrator %1 %2 %3 %4 %5 %6
\ No newline at end of file
@@ -0,0 +1,3 @@
+#!/bin/sh
+java -cp lib/*:indexer/target/classes com.gitee.kooder.indexer.SourceFieldMigrator $*
+java -cp lib/*:indexer/target/classes com.gitee.kooder.indexer.RepositoryRankMigrator $*
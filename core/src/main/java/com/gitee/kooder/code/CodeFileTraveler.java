@@ -19,15 +19,21 @@ import com.gitee.kooder.core.Constants;
 import com.gitee.kooder.index.IndexManager;
 import com.gitee.kooder.models.SourceFile;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.LongPoint;
 import org.apache.lucene.facet.FacetsConfig;
 import org.apache.lucene.facet.taxonomy.TaxonomyWriter;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.SimpleCollector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.*;
 
 /**
  * Travel all file in repository and build index for it
@@ -37,6 +43,9 @@ public class CodeFileTraveler implements FileTraveler {
 
     private final static Logger log = LoggerFactory.getLogger(CodeFileTraveler.class);
 
+    private final static Set<String> REVISION_FIELDS = new HashSet<>(Arrays.asList(
+            Constants.FIELD_UUID, Constants.FIELD_REVISION, Constants.FIELD_URL));
+
     private IndexWriter writer;
     private TaxonomyWriter taxonomyWriter;
 
@@ -85,12 +94,66 @@ public class CodeFileTraveler implements FileTraveler {
     public void resetRepository(long repoId) {
         //log.info("resetRepository:" + repoId);
         try {
-            writer.deleteDocuments(NumericDocValuesField.newSlowExactQuery(Constants.FIELD_REPO_ID, repoId));
+            writer.deleteDocuments(LongPoint.newExactQuery(Constants.FIELD_REPO_ID, repoId));
         } catch (Throwable e) {
             log.error("Failed to reset repository with id = " + repoId, e);
         }
     }
 
+    /**
+     * Commit taxonomy first, so that committed documents never refer to missing facet ordinals
+     *
+     * @throws IOException
+     */
+    @Override
+    public void commit() throws IOException {
+        if(taxonomyWriter != null)
+            taxonomyWriter.commit();
+        writer.commit();
+    }
+
+    /**
+     * List uuid, revision and url of all file documents belong to one repository,
+     * the reader is opened from writer so that uncommitted changes are visible
+     *
+     * @param repoId
+     * @return
+     */
+    @Override
+    public Map<String, SourceFile> listDocuments(long repoId) {
+        try (DirectoryReader reader = DirectoryReader.open(writer)) {
+            List<Integer> docIds = new ArrayList<>();
+            new IndexSearcher(reader).search(LongPoint.newExactQuery(Constants.FIELD_REPO_ID, repoId), new SimpleCollector() {
+                private int docBase;
+                @Override
+                protected void doSetNextReader(LeafReaderContext context) {
+                    this.docBase = context.docBase;
+                }
+                @Override
+                public void collect(int doc) {
+                    docIds.add(docBase + doc);
+                }
+                @Override
+                public ScoreMode scoreMode() {
+                    return ScoreMode.COMPLETE_NO_SCORES;
+                }
+            });
+            Map<String, SourceFile> docs = new HashMap<>(docIds.size());
+            for(int docId : docIds) {
+                Document doc = reader.document(docId, REVISION_FIELDS);
+                SourceFile file = new SourceFile();
+                file.setUuid(doc.get(Constants.FIELD_UUID));
+                file.setRevision(doc.get(Constants.FIELD_REVISION));
+                file.setUrl(doc.get(Constants.FIELD_URL));
+                docs.put(file.getUuid(), file);
+            }
+            return docs;
+        } catch (Throwable e) {
+            log.error("Failed to list documents of repository with id = " + repoId, e);
+            return null;
+        }
+    }
+
     /**
      * Building facet document
      * @param doc
@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.code;
+
+import com.gitee.kooder.core.KooderConfig;
+import com.gitee.kooder.utils.TextFileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+
+import java.util.regex.Pattern;
+
+/**
+ * 文件索引策略：在读取文件内容之前根据路径和大小判断是否索引文件内容，
+ * 读取后再检查文件开头是否为二进制或压缩过的代码，不索引内容的文件只保存文件名
+ * @author Winter Lau<javayou@gmail.com>
+ */
+public class FileIndexPolicy {
+
+    private final static String DEFAULT_EXCLUDE_PATHS = "**/node_modules/**,**/vendor/**,**/bower_components/**," +
+            "*.min.js,*.min.css,*.map,package-lock.json,yarn.lock,pnpm-lock.yaml,composer.lock,Cargo.lock,go.sum," +
+            "*.pb.go,*_pb2.py,*.pb.cc,*.pb.h";
+
+    private final static int SNIFF_BYTES = 8 * 1024;  //检查文件开头的字节数
+
+    private final static Pattern EXCLUDE_PATHS = compileGlobs(KooderConfig.getProperty("indexer.filter.exclude_paths", DEFAULT_EXCLUDE_PATHS));
+    private final static long MAX_FILE_SIZE = NumberUtils.toLong(KooderConfig.getProperty("indexer.filter.max_file_size_kb"), 1024) * 1024;
+    private final static int MAX_LINE_LENGTH = NumberUtils.toInt(KooderConfig.getProperty("indexer.filter.max_line_length"), 1000);
+
+    public enum Result {
+        TEXT,       //索引文件内容
+        BINARY,     //二进制文件
+        SKIPPED     //不索引内容的文本文件（依赖库、生成的代码、超大文件等）
+    }
+
+    /**
+     * 根据文件路径判断
+     * @param path
+     * @return
+     */
+    public static Result checkPath(String path) {
+        if(TextFileUtils.isBinaryFile(path))
+            return Result.BINARY;
+        if(EXCLUDE_PATHS != null && EXCLUDE_PATHS.matcher(path).matches())
+            return Result.SKIPPED;
+        return Result.TEXT;
+    }
+
+    /**
+     * 根据文件大小判断
+     * @param size
+     * @return
+     */
+    public static Result checkSize(long size) {
+        return (MAX_FILE_SIZE > 0 && size > MAX_FILE_SIZE) ? Result.SKIPPED : Result.TEXT;
+    }
+
+    /**
+     * 检查文件开头：包含 \0 的为二进制文件，有超长行的视为压缩过的代码
+     * @param contents
+     * @return
+     */
+    public static Result checkContent(byte[] contents) {
+        int length = Math.min(contents.length, SNIFF_BYTES);
+        int lineLength = 0;
+        boolean longLine = false;
+        for(int i = 0; i < length; i++) {
+            byte b = contents[i];
+            if(b == 0)
+                return Result.BINARY;
+            if(b == '\n')
+                lineLength = 0;
+            else if(++lineLength > MAX_LINE_LENGTH && MAX_LINE_LENGTH > 0)
+                longLine = true;
+        }
+        return longLine ? Result.SKIPPED : Result.TEXT;
+    }
+
+    /**
+     * 将逗号分隔的 glob 转换为正则表达式，不包含 / 的 glob 匹配任意目录下的文件名
+     * @param globs
+     * @return
+     */
+    private static Pattern compileGlobs(String globs) {
+        StringBuilder regex = new StringBuilder();
+        for(String glob : StringUtils.split(globs, ',')) {
+            glob = glob.trim();
+            if(glob.isEmpty())
+                continue;
+            if(regex.length() > 0)
+                regex.append('|');
+            if(glob.indexOf('/') < 0)
+                regex.append("(?:.*/)?");
+            for(int i = 0; i < glob.length(); i++) {
+                char c = glob.charAt(i);
+                if(c == '*' && glob.startsWith("**/", i)) {
+                    regex.append("(?:.*/)?");
+                    i += 2;
+                } else if(c == '*' && glob.startsWith("**", i)) {
+                    regex.append(".*");
+                    i++;
+                } else if(c == '*')
+                    regex.append("[^/]*");
+                else if(c == '?')
+                    regex.append("[^/]");
+                else
+                    regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return (regex.length() > 0) ? Pattern.compile(regex.toString()) : null;
+    }
+
+}
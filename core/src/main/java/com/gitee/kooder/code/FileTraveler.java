@@ -17,6 +17,9 @@ package com.gitee.kooder.code;
 
 import com.gitee.kooder.models.SourceFile;
 
+import java.io.IOException;
+import java.util.Map;
+
 /**
  * 文件遍历回调接口
  * @author Winter Lau<javayou@gmail.com>
@@ -24,7 +27,7 @@ import com.gitee.kooder.models.SourceFile;
 public interface FileTraveler {
 
     /**
-     * 更新源码文档（新文件、更改文件）
+     * 更新源码文档（新文件、更改文件），重建仓库索引时会被多个线程同时调用
      * @param doc  文档信息
      * @return true: 继续下一个文档， false 不再处理下面文档
      */
@@ -43,4 +46,21 @@ public interface FileTraveler {
      */
     void resetRepository(long repoId);
 
+    /**
+     * 读取仓库中已索引的文档，用于重建仓库索引时跳过未改变的文件
+     * 返回的文档只包含 uuid、revision 和 url 信息
+     * @param repoId
+     * @return uuid -> 文档，返回 null 表示不支持，需要清空仓库后重建
+     */
+    default Map<String, SourceFile> listDocuments(long repoId) {
+        return null;
+    }
+
+    /**
+     * 持久化已写入的文档，重建仓库索引时在保存检查点之前调用
+     * @throws IOException
+     */
+    default void commit() throws IOException {
+    }
+
 }
@@ -0,0 +1,357 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.code;
+
+import com.gitee.kooder.core.KooderConfig;
+import com.gitee.kooder.models.SourceFile;
+import com.gitee.kooder.utils.TextFileUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.util.IO;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 重建仓库索引的多线程流水线：遍历文件树 -> 读取文件 -> 解码、识别语言、统计代码行 -> 写入索引，
+ * 每个阶段使用全局共享的线程池（同时重建多个仓库时线程总数不变），每个仓库在各阶段等待处理的文件数不超过 queue_size，
+ * 正在处理的文件总字节数不超过 max_inflight_mb
+ * @author Winter Lau<javayou@gmail.com>
+ */
+public class GitIndexPipeline {
+
+    private final static Logger log = LoggerFactory.getLogger("[GIT]");
+
+    private final static int CPUS = Runtime.getRuntime().availableProcessors();
+    private final static int READ_THREADS   = NumberUtils.toInt(KooderConfig.getProperty("indexer.pipeline.read_threads"), 2);
+    private final static int PARSE_THREADS  = NumberUtils.toInt(KooderConfig.getProperty("indexer.pipeline.parse_threads"), CPUS);
+    private final static int INDEX_THREADS  = NumberUtils.toInt(KooderConfig.getProperty("indexer.pipeline.index_threads"), Math.max(1, CPUS / 2));
+    private final static int QUEUE_SIZE     = NumberUtils.toInt(KooderConfig.getProperty("indexer.pipeline.queue_size"), 128);
+    private final static int MAX_INFLIGHT_KB = NumberUtils.toInt(KooderConfig.getProperty("indexer.pipeline.max_inflight_mb"), 64) * 1024;
+    private final static long CHECKPOINT_INTERVAL = NumberUtils.toLong(KooderConfig.getProperty("indexer.pipeline.checkpoint_interval"), 60) * 1000;
+
+    //各阶段的线程池由所有正在重建的仓库共享，空闲的线程会在一分钟后退出
+    private final static ThreadPoolExecutor READ_POOL  = newStagePool("read", READ_THREADS);
+    private final static ThreadPoolExecutor PARSE_POOL = newStagePool("parse", PARSE_THREADS);
+    private final static ThreadPoolExecutor INDEX_POOL = newStagePool("index", INDEX_THREADS);
+
+    private final String name;
+    private final Repository repository;
+    private final FileTraveler traveler;
+    private final DocumentBuilder builder;
+
+    private final Semaphore inflight = new Semaphore(MAX_INFLIGHT_KB);
+    private final AtomicInteger fileCount = new AtomicInteger(0);
+    private final AtomicInteger failedCount = new AtomicInteger(0); //处理出错的文件数
+    private final AtomicInteger pending = new AtomicInteger(0);    //已进入流水线但尚未处理完的文件数
+    private volatile boolean cancelled = false;                       //被中断后丢弃尚未处理的文件
+
+    /**
+     * 根据文件内容生成文档
+     */
+    public interface DocumentBuilder {
+        /**
+         * @param path
+         * @param objectId
+         * @param contents  文件内容，不索引内容的文件为 null
+         * @param policy  文件索引策略的检查结果
+         * @return  null 表示忽略该文件
+         * @throws IOException
+         */
+        SourceFile build(String path, ObjectId objectId, byte[] contents, FileIndexPolicy.Result policy) throws IOException;
+    }
+
+    /**
+     * 保存重建进度
+     */
+    public interface Checkpoint {
+        /**
+         * @param lastPath  该路径及文件树中在它之前的文件都已处理完毕
+         * @throws IOException
+         */
+        void save(String lastPath) throws IOException;
+    }
+
+    /**
+     * @param name  仓库名称，用于日志
+     * @param repository
+     * @param traveler  updateDocument 会被多个线程同时调用
+     * @param builder
+     */
+    public GitIndexPipeline(String name, Repository repository, FileTraveler traveler, DocumentBuilder builder) {
+        this.name = name;
+        this.repository = repository;
+        this.traveler = traveler;
+        this.builder = builder;
+    }
+
+    private static ThreadPoolExecutor newStagePool(String stage, int threads) {
+        AtomicInteger index = new AtomicInteger(0);
+        int size = Math.max(1, threads);
+        //队列长度由各仓库每个阶段的 queue_size 限制
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(size, size, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, String.format("pipeline-%s-%d", stage, index.getAndIncrement()));
+            thread.setDaemon(true);
+            return thread;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * 在当前线程中遍历文件树并按路径过滤文件，其他阶段在共享的线程池中执行，全部文件处理完后返回
+     * 每隔 checkpoint_interval 秒等待流水线中的文件处理完毕后保存一次进度，有文件处理出错后不再保存进度
+     * @param treeWalk
+     * @param checkpoint  为 null 时不保存进度
+     * @return 索引的文件数
+     * @throws IOException  有文件处理出错时重建失败，下次从上一个检查点继续
+     */
+    public int run(TreeWalk treeWalk, Checkpoint checkpoint) throws IOException {
+        Stage index = new Stage(INDEX_POOL, null, this::index);
+        Stage parse = new Stage(PARSE_POOL, index, this::parse);
+        Stage read  = new Stage(READ_POOL,  parse, this::read);
+        try {
+            long lastCheckpoint = System.currentTimeMillis();
+            while(treeWalk.next()) {
+                FileItem item = new FileItem(treeWalk.getPathString(), treeWalk.getObjectId(0));
+                item.policy = FileIndexPolicy.checkPath(item.path);
+                pending.incrementAndGet();
+                read.put(item);
+                if(checkpoint != null && CHECKPOINT_INTERVAL > 0 && System.currentTimeMillis() - lastCheckpoint >= CHECKPOINT_INTERVAL) {
+                    this.drain();
+                    if(failedCount.get() == 0)
+                        checkpoint.save(item.path);
+                    lastCheckpoint = System.currentTimeMillis();
+                }
+            }
+        } catch (InterruptedException e) {
+            cancelled = true;
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while indexing " + name);
+        } finally {
+            this.finish();
+        }
+        if(failedCount.get() > 0)
+            throw new IOException(failedCount.get() + " files failed to index in " + name);
+        return fileCount.get();
+    }
+
+    /**
+     * 等待已进入流水线的文件处理完毕（被中断时丢弃尚未处理的文件），调用方之后才能关闭索引
+     */
+    private void finish() {
+        boolean interrupted = false;
+        while(true) {
+            try {
+                this.drain();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+                cancelled = true;
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * 等待流水线中的文件全部处理完毕
+     * @throws InterruptedException
+     */
+    private void drain() throws InterruptedException {
+        synchronized (pending) {
+            while(pending.get() > 0)
+                pending.wait();
+        }
+    }
+
+    /**
+     * 检查文件大小后读取文件内容，并占用对应的在途字节数，最后检查文件开头的内容
+     * @param item
+     * @return
+     * @throws Exception
+     */
+    private FileItem read(FileItem item) throws Exception {
+        if(item.policy != FileIndexPolicy.Result.TEXT)
+            return item;
+        try (ObjectReader reader = repository.newObjectReader()) {
+            long size = reader.getObjectSize(item.objectId, Constants.OBJ_BLOB);
+            item.policy = FileIndexPolicy.checkSize(size);
+            if(item.policy != FileIndexPolicy.Result.TEXT)
+                return item;
+            int permits = (int)Math.min(MAX_INFLIGHT_KB, Math.min(size, TextFileUtils.DEFAULT_MAX_FILE_LENGTH_READ) / 1024 + 1);
+            inflight.acquire(permits);
+            item.permits = permits;
+            item.contents = readBlob(reader.open(item.objectId, Constants.OBJ_BLOB));
+        }
+        item.policy = FileIndexPolicy.checkContent(item.contents);
+        if(item.policy != FileIndexPolicy.Result.TEXT)
+            item.contents = null;
+        return item;
+    }
+
+    /**
+     * 读取文件内容，超出 DEFAULT_MAX_FILE_LENGTH_READ 的部分被忽略
+     * @param loader
+     * @return
+     * @throws IOException
+     */
+    static byte[] readBlob(ObjectLoader loader) throws IOException {
+        int size = (int)Math.min(loader.getSize(), TextFileUtils.DEFAULT_MAX_FILE_LENGTH_READ);
+        if(!loader.isLarge())
+            return (size == loader.getSize()) ? loader.getCachedBytes() : Arrays.copyOf(loader.getCachedBytes(), size);
+        byte[] contents = new byte[size];
+        try (InputStream stream = loader.openStream()) {
+            IO.readFully(stream, contents, 0, size);
+        }
+        return contents;
+    }
+
+    /**
+     * 解码、识别语言、统计代码行，生成文档
+     * @param item
+     * @return
+     * @throws Exception
+     */
+    private FileItem parse(FileItem item) throws Exception {
+        item.doc = builder.build(item.path, item.objectId, item.contents, item.policy);
+        item.contents = null;
+        return (item.doc != null) ? item : null;
+    }
+
+    /**
+     * 写入索引
+     * @param item
+     * @return
+     */
+    private FileItem index(FileItem item) {
+        if(traveler != null)
+            traveler.updateDocument(item.doc);
+        fileCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * 文件处理结束，释放文件占用的在途字节数
+     * @param item
+     */
+    private void release(FileItem item) {
+        if(item.permits > 0) {
+            inflight.release(item.permits);
+            item.permits = 0;
+        }
+        if(pending.decrementAndGet() == 0) {
+            synchronized (pending) {
+                pending.notifyAll();
+            }
+        }
+    }
+
+    private interface ItemHandler {
+        FileItem handle(FileItem item) throws Exception;
+    }
+
+    /**
+     * 流水线中的一个阶段，把文件交给共享的线程池处理，处理后交给下一个阶段
+     */
+    private class Stage {
+
+        private final Semaphore slots = new Semaphore(QUEUE_SIZE);   //该仓库在此阶段等待和正在处理的文件数
+        private final ThreadPoolExecutor pool;
+        private final Stage next;
+        private final ItemHandler handler;
+
+        Stage(ThreadPoolExecutor pool, Stage next, ItemHandler handler) {
+            this.pool = pool;
+            this.next = next;
+            this.handler = handler;
+        }
+
+        /**
+         * 把文件交给线程池处理，没能交给线程池时文件被视为处理结束
+         * @param item
+         * @throws InterruptedException
+         */
+        void put(FileItem item) throws InterruptedException {
+            try {
+                slots.acquire();
+            } catch (InterruptedException e) {
+                release(item);
+                throw e;
+            }
+            try {
+                pool.execute(() -> work(item));
+            } catch (RejectedExecutionException e) {
+                slots.release();
+                release(item);
+                throw e;
+            }
+        }
+
+        private void work(FileItem item) {
+            try {
+                FileItem result = cancelled ? null : handle(item);
+                if(result == null || next == null)
+                    release(item);
+                else
+                    next.put(result);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                slots.release();
+            }
+        }
+
+        private FileItem handle(FileItem item) {
+            try {
+                return handler.handle(item);
+            } catch (Throwable e) {
+                failedCount.incrementAndGet();
+                log.error("Failed to add file {} to repository {} from indexAllFiles", item.path, name, e);
+                return null;
+            }
+        }
+    }
+
+    private static class FileItem {
+        private final String path;
+        private final ObjectId objectId;
+        private FileIndexPolicy.Result policy;
+        private byte[] contents;
+        private SourceFile doc;
+        private int permits;
+
+        FileItem(String path, ObjectId objectId) {
+            this.path = path;
+            this.objectId = objectId;
+        }
+    }
+}
@@ -23,7 +23,6 @@ import com.gitee.kooder.utils.SlocCounter;
 import com.gitee.kooder.utils.TextFileUtils;
 import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.JSchException;
-import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -33,10 +32,14 @@ import org.apache.lucene.index.IndexWriter;
 import org.eclipse.jgit.annotations.NonNull;
 import org.eclipse.jgit.api.*;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.api.errors.TransportException;
 import org.eclipse.jgit.blame.BlameResult;
 import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
 import org.eclipse.jgit.errors.InvalidObjectIdException;
 import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.internal.storage.file.GC;
 import org.eclipse.jgit.lib.*;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevTree;
@@ -45,17 +48,17 @@ import org.eclipse.jgit.transport.*;
 import org.eclipse.jgit.treewalk.AbstractTreeIterator;
 import org.eclipse.jgit.treewalk.CanonicalTreeParser;
 import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
 import org.eclipse.jgit.util.FS;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.file.Path;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.List;
+import java.text.ParseException;
+import java.util.*;
+import java.util.stream.Collectors;
 
 /**
  * Git 仓库源
@@ -69,11 +72,15 @@ public class GitRepositoryProvider implements RepositoryProvider {
     private CredentialsProvider credentialsProvider;
     private TransportConfigCallback transportConfigCallback;
     private String protocol = "http";
+    private boolean singleBranch;   //只克隆和拉取默认分支
+    private boolean fetchTags;      //是否拉取 tag
 
     private static final String HTTPS = "https";
 
     private static  final String REPO_SUFFIX = ".git";
 
+    private static final String FETCH_MODE_ALL = "all";
+
 
     public GitRepositoryProvider() {
         String gitUrl = KooderConfig.getProperty("gitlab.url");
@@ -93,6 +100,10 @@ public class GitRepositoryProvider implements RepositoryProvider {
         if(StringUtils.isNotBlank(username) && StringUtils.isNotBlank(password))
             this.credentialsProvider = new UsernamePasswordCredentialsProvider(username, password);
 
+        //fetch mode: single_branch(default) or all
+        this.singleBranch = !FETCH_MODE_ALL.equalsIgnoreCase(StringUtils.trim(KooderConfig.getProperty("git.fetch_mode")));
+        this.fetchTags = "true".equalsIgnoreCase(StringUtils.trim(KooderConfig.getProperty("git.fetch_tags")));
+
         //ssh authenticator
         String sshkey   = KooderConfig.getProperty("git.ssh.key");     //私钥文件
         String keypass  = KooderConfig.getProperty("git.ssh.keypass"); //密钥对应的密码
@@ -126,12 +137,22 @@ public class GitRepositoryProvider implements RepositoryProvider {
     }
 
     /**
-     * 更新仓库
+     * 更新仓库：拉取代码后索引
      * @param repo
-     * @return 返回索引的文件数
+     * @return 返回索引的文件数，失败时返回 -1
      */
     @Override
     public int pull(CodeRepository repo, FileTraveler traveler) {
+        return this.fetch(repo) ? this.index(repo, traveler) : -1;
+    }
+
+    /**
+     * 克隆或者拉取仓库（网络 I/O），不写索引
+     * @param repo
+     * @return 拉取成功返回 true
+     */
+    @Override
+    public boolean fetch(CodeRepository repo) {
         Git git = null;
         try {
             long ct = System.currentTimeMillis();
@@ -159,7 +180,25 @@ public class GitRepositoryProvider implements RepositoryProvider {
                         if (remote.getURIs().get(0).toString().equals(repo.getUrl())) {
                             //remote url no changed, just fetch it
                             this.autoSetCredential(fetchCmd);
-                            fetchCmd.call();
+                            String branch = git.getRepository().getFullBranch();
+                            boolean pinned = singleBranch && git.getRepository().exactRef(branch) != null;
+                            if (pinned) {
+                                //只拉取当前分支，之前克隆了所有分支的仓库先删除其他分支
+                                this.pruneOtherRefs(git, repo, branch);
+                                fetchCmd.setRefSpecs(new RefSpec("+" + branch + ":" + branch));
+                            }
+                            fetchCmd.setTagOpt(fetchTags ? TagOpt.AUTO_FOLLOW : TagOpt.NO_TAGS);
+                            String remoteHead;
+                            try {
+                                remoteHead = getRemoteHead(fetchCmd.call(), branch, repo.getUrl());
+                            } catch (TransportException e) {
+                                //远程仓库的默认分支被删除或者重命名后，拉取当前分支会一直失败，改为拉取新的默认分支
+                                remoteHead = pinned ? getRemoteHead(repo.getUrl()) : null;
+                                if (remoteHead == null || remoteHead.equals(branch))
+                                    throw e;
+                            }
+                            if (remoteHead != null && !remoteHead.equals(branch))
+                                this.switchHead(git, repo, branch, remoteHead);
                             log.info("Repository '{}:{}' pulled from '{}' in {}ms",
                                     repo.getId(), repo.getName(), repo.getUrl(), System.currentTimeMillis() - ct);
                             break;
@@ -176,40 +215,71 @@ public class GitRepositoryProvider implements RepositoryProvider {
                 }
                 //fetchCmd.setForceUpdate(true);
             }
+            return true;
+        } catch (IOException | GitAPIException ex) {
+            log.error("Failed to pull from '" + repo.getUrl() + "'", ex);
+        } finally {
+            if(git != null)
+                git.close();
+        }
+        return false;
+    }
 
-            boolean needRebuildIndexes = true;
-            ObjectId oldId = null;
-            if (StringUtils.isNotBlank(repo.getLastCommitId())) {
-                //Check last commit ref
-                try (RevWalk revWalk = new RevWalk(git.getRepository())) {
-                    revWalk.setRetainBody(false);
-                    oldId = ObjectId.fromString(repo.getLastCommitId());
-                    revWalk.parseCommit(oldId); //check if last commit id exists
-                    revWalk.dispose();
-                    needRebuildIndexes = false;
-                } catch (InvalidObjectIdException | MissingObjectException e) {
-                }
-            }
-
+    /**
+     * 索引本地仓库中的代码，需要先调用 fetch
+     * @param repo
+     * @param traveler
+     * @return 返回索引的文件数，失败时返回 -1
+     */
+    @Override
+    public int index(CodeRepository repo, FileTraveler traveler) {
+        File repoFile = StorageFactory.getRepositoryPath(repo.getRelativePath()).toFile();
+        try (Git git = Git.open(repoFile)) {
+            //存在检查点说明上一次重建没有完成，需要继续重建
+            ObjectId oldId = StringUtils.isBlank(repo.getCheckpointCommitId()) ? findCommit(git, repo.getLastCommitId()) : null;
+            boolean needRebuildIndexes = (oldId == null);
+
+            repo.setLastAccess(System.currentTimeMillis());
+            repo.setDiskSize(FileUtils.sizeOfDirectory(repoFile));
             repo.saveStatus(CodeRepository.STATUS_FETCH);
 
+            int fileCount = 0;
             if (needRebuildIndexes) {
                 long cti = System.currentTimeMillis();
+                Ref headRef = git.getRepository().findRef(Constants.HEAD);
+                if (headRef == null || headRef.getObjectId() == null)
+                    return 0;
+                ObjectId rebuildId = headRef.getObjectId();
+                //从上一次中断的位置继续重建，检查点对应的提交不存在时从头开始
+                String resumePath = null;
+                ObjectId checkpointId = findCommit(git, repo.getCheckpointCommitId());
+                if (checkpointId != null) {
+                    rebuildId = checkpointId;
+                    resumePath = repo.getCheckpointPath();
+                    log.info("Repository '{}<{}>' resume rebuilding {} after '{}'", repo.getName(), repo.getId(), rebuildId.name(), resumePath);
+                } else
+                    repo.setCheckpoint(null, null);
+                //读取已索引的文档，重建时跳过未改变的文件，无法读取时清空仓库索引
+                Map<String, SourceFile> indexedDocs = null;
                 if (traveler != null) {
-                    traveler.resetRepository(repo.getId());
+                    indexedDocs = traveler.listDocuments(repo.getId());
+                    if (indexedDocs == null && resumePath == null)
+                        traveler.resetRepository(repo.getId());
                 }
                 //上一次保持的 commit id 已经失效，可能是强推导致，需要重建仓库索引
-                int fc = this.indexAllFiles(repo, git, traveler);
-                log.info("Rebuilding '{}<{}>' {} indexes in {}ms", repo.getName(), repo.getId(), fc, System.currentTimeMillis() - cti);
-                return fc;
+                fileCount = this.indexAllFiles(repo, git, traveler, indexedDocs, rebuildId, resumePath);
+                log.info("Rebuilding '{}<{}>' {} indexes in {}ms", repo.getName(), repo.getId(), fileCount, System.currentTimeMillis() - cti);
+                if (rebuildId.equals(headRef.getObjectId()))
+                    return fileCount;
+                //检查点之后仓库有新的提交，继续增量更新
+                oldId = rebuildId;
             }
 
-            int fileCount = 0;
             Ref newHeadRef = git.getRepository().findRef(Constants.HEAD);
             ObjectId newId = newHeadRef.getObjectId();
-            repo.setLastCommitId(newId.name()); //保存仓库最新提交信息
 
             if (!oldId.toString().equals(newId.toString())) {
+                int failedCount = 0;
                 List<DiffEntry> entries = diffFiles(git, oldId.name(), newId.name());
                 for (DiffEntry entry : entries) {
                     if (entry.getChangeType() == DiffEntry.ChangeType.DELETE && traveler != null) {
@@ -221,17 +291,19 @@ public class GitRepositoryProvider implements RepositoryProvider {
                             addFileToDocument(repo, git, entry.getNewPath(), entry.getNewId().toObjectId(), traveler);
                             fileCount++;
                         } catch (Throwable e) {
+                            failedCount++;
                             log.error("Failed to add file {} to repository {}", entry.getNewPath(), repo.getName(), e);
                         }
                     }
                 }
+                //有文件索引失败时不更新 commit id，下次拉取时重新索引这些文件
+                if (failedCount > 0)
+                    throw new IOException(failedCount + " of " + entries.size() + " files failed to index in " + repo.getName());
             }
+            repo.setLastCommitId(newId.name()); //保存仓库最新提交信息
             return fileCount;
         } catch (IOException | GitAPIException ex) {
-            log.error("Failed to pull & index from '" + repo.getUrl() + "'", ex);
-        } finally {
-            if(git != null)
-                git.close();
+            log.error("Failed to index repository '" + repo.getName() + "<" + repo.getId() + ">'", ex);
         }
         return -1;
     }
@@ -257,8 +329,14 @@ public class GitRepositoryProvider implements RepositoryProvider {
     private Git justClone(String fromUrl, File toPath) throws GitAPIException {
         CloneCommand cloneCommand = Git.cloneRepository()
                 .setURI(fromUrl)
-                .setDirectory(toPath)
-                .setCloneAllBranches(true);
+                .setDirectory(toPath);
+        String branch = singleBranch ? getRemoteHead(fromUrl) : null;
+        if(branch != null)
+            cloneCommand.setBranchesToClone(Collections.singletonList(branch)).setBranch(branch);
+        else
+            cloneCommand.setCloneAllBranches(true);
+        if(!fetchTags)
+            cloneCommand.setNoTags();
         this.autoSetCredential(cloneCommand);
         cloneCommand.setCloneSubmodules(false);
         cloneCommand.setBare(true);//只克隆 git 数据库，不克隆文件
@@ -266,38 +344,280 @@ public class GitRepositoryProvider implements RepositoryProvider {
     }
 
     /**
-     * 重建代码仓索引
+     * 获取远程仓库的默认分支
+     * @param fromUrl
+     * @return 分支的完整名称，例如 refs/heads/master，空仓库返回 null
+     * @throws GitAPIException
+     */
+    private String getRemoteHead(String fromUrl) throws GitAPIException {
+        LsRemoteCommand lsRemote = Git.lsRemoteRepository().setRemote(fromUrl).setHeads(false).setTags(false);
+        this.autoSetCredential(lsRemote);
+        Map<String, Ref> refs = lsRemote.callAsMap();
+        Ref head = refs.get(Constants.HEAD);
+        if(head == null || head.getObjectId() == null)
+            return null;
+        if(head.isSymbolic())
+            return head.getTarget().getName();
+        //服务端不支持 symref 时，按 git 的方式查找与 HEAD 指向同一提交的分支，优先使用 master
+        Ref master = refs.get(Constants.R_HEADS + Constants.MASTER);
+        if(master != null && head.getObjectId().equals(master.getObjectId()))
+            return master.getName();
+        return refs.values().stream()
+                .filter(ref -> ref.getName().startsWith(Constants.R_HEADS) && head.getObjectId().equals(ref.getObjectId()))
+                .map(Ref::getName).sorted().findFirst().orElse(null);
+    }
+
+    /**
+     * 根据拉取时服务端公布的引用判断远程仓库的默认分支，HEAD 与当前分支指向同一提交时认为没有变化，
+     * 无法判断时通过 ls-remote 查询
+     * @param result
+     * @param branch 本地 HEAD 指向的分支
+     * @param fromUrl
+     * @return 分支的完整名称，服务端没有公布 HEAD 时返回 null
+     * @throws GitAPIException
+     */
+    private String getRemoteHead(FetchResult result, String branch, String fromUrl) throws GitAPIException {
+        Ref head = result.getAdvertisedRef(Constants.HEAD);
+        if(head == null || head.getObjectId() == null)
+            return null;
+        if(head.isSymbolic())
+            return head.getTarget().getName();
+        Ref current = result.getAdvertisedRef(branch);
+        if(current != null && head.getObjectId().equals(current.getObjectId()))
+            return branch;
+        return getRemoteHead(fromUrl);
+    }
+
+    /**
+     * 远程仓库的默认分支发生变化后，将本地 HEAD 指向新的默认分支，单分支模式下拉取新分支后删除旧分支
+     * @param git
+     * @param repo
+     * @param oldBranch
+     * @param branch 新的默认分支
+     * @throws IOException
+     * @throws GitAPIException
+     */
+    private void switchHead(Git git, CodeRepository repo, String oldBranch, String branch) throws IOException, GitAPIException {
+        if(singleBranch) {  //先拉取新分支，失败时本地仓库保持不变
+            FetchCommand fetchCmd = git.fetch()
+                    .setRefSpecs(new RefSpec("+" + branch + ":" + branch))
+                    .setTagOpt(fetchTags ? TagOpt.AUTO_FOLLOW : TagOpt.NO_TAGS);
+            this.autoSetCredential(fetchCmd);
+            fetchCmd.call();
+        }
+        RefUpdate update = git.getRepository().updateRef(Constants.HEAD);
+        update.disableRefLog();
+        RefUpdate.Result result = update.link(branch);
+        if(result != RefUpdate.Result.NEW && result != RefUpdate.Result.FORCED && result != RefUpdate.Result.NO_CHANGE)
+            throw new IOException("Failed to link HEAD to " + branch + " in " + repo.getName() + ": " + result);
+        if(singleBranch)
+            this.pruneOtherRefs(git, repo, branch);
+        log.info("Repository '{}<{}>' default branch changed from {} to {}", repo.getName(), repo.getId(), oldBranch, branch);
+    }
+
+    /**
+     * 删除当前分支以外的分支（以及不需要的 tag），缩小拉取范围后回收不再引用的对象，
+     * 用于将之前克隆了全部分支的仓库迁移为单分支模式
+     * @param git
+     * @param repo
+     * @param branch
+     * @throws IOException
+     * @throws GitAPIException
+     */
+    private void pruneOtherRefs(Git git, CodeRepository repo, String branch) throws IOException, GitAPIException {
+        StoredConfig config = git.getRepository().getConfig();
+        String fetchSpec = "+" + branch + ":" + branch;
+        String[] fetchSpecs = config.getStringList(ConfigConstants.CONFIG_REMOTE_SECTION, Constants.DEFAULT_REMOTE_NAME, "fetch");
+        if(fetchSpecs.length == 1 && fetchSpec.equals(fetchSpecs[0]))
+            return ;
+
+        long ct = System.currentTimeMillis();
+        File dir = git.getRepository().getDirectory();
+        long oldSize = FileUtils.sizeOfDirectory(dir);
+        List<String> refs = new ArrayList<>();
+        for(Ref ref : git.getRepository().getRefDatabase().getRefs()) {
+            if(ref.isSymbolic() || ref.getName().equals(branch))
+                continue;
+            if(ref.getName().startsWith(Constants.R_HEADS) || (!fetchTags && ref.getName().startsWith(Constants.R_TAGS)))
+                refs.add(ref.getName());
+        }
+        List<String> branches = refs.stream().filter(r -> r.startsWith(Constants.R_HEADS)).collect(Collectors.toList());
+        List<String> tags = refs.stream().filter(r -> r.startsWith(Constants.R_TAGS)).collect(Collectors.toList());
+        if(!branches.isEmpty())
+            git.branchDelete().setForce(true).setBranchNames(branches.toArray(new String[0])).call();
+        if(!tags.isEmpty())
+            git.tagDelete().setTags(tags.toArray(new String[0])).call();
+
+        config.setStringList(ConfigConstants.CONFIG_REMOTE_SECTION, Constants.DEFAULT_REMOTE_NAME, "fetch", Arrays.asList(fetchSpec));
+        config.save();
+
+        if(git.getRepository() instanceof FileRepository) {
+            //立即删除不再引用的对象和旧的 pack 文件（默认保留一小时）
+            GC gc = new GC((FileRepository)git.getRepository());
+            gc.setExpireAgeMillis(0);
+            gc.setPackExpireAgeMillis(0);
+            try {
+                gc.gc();
+            } catch (ParseException e) {
+                log.warn("Failed to gc repository '" + repo.getName() + "<" + repo.getId() + ">'", e);
+            }
+        }
+        log.info("Repository '{}<{}>' pruned {} branches and {} tags, size {}KB -> {}KB in {}ms",
+                repo.getName(), repo.getId(), branches.size(), tags.size(),
+                oldSize / 1024, FileUtils.sizeOfDirectory(dir) / 1024, System.currentTimeMillis() - ct);
+    }
+
+    /**
+     * 重建代码仓索引，定期提交已写入的文档并在仓库元信息中保存检查点，全部完成后才更新仓库的 commit id
      * @param repo
      * @param git
      * @param traveler
+     * @param indexedDocs 仓库中已索引的文档（uuid -> 文档），版本和地址未变的文件不再重新索引，
+     *                    不在文件树中的文档会被删除，为 null 时索引全部文件
+     * @param commitId  重建的提交
+     * @param resumePath  上一次重建已完成的最后一个文件，文件树中该文件及之前的文件不再处理，为 null 时从头开始
      * @throws IOException
      * @throws GitAPIException
      */
-    private int indexAllFiles(CodeRepository repo, Git git, FileTraveler traveler) throws IOException, GitAPIException {
-        int fileCount = 0;
-        Ref head = git.getRepository().findRef(Constants.HEAD);
-        if(head != null && head.getObjectId() != null) {
-            repo.setLastCommitId(head.getObjectId().name());//回调最新 commit id 信息
-            RevCommit commit = git.getRepository().parseCommit(head.getObjectId());
-            try (TreeWalk treeWalk = new TreeWalk(git.getRepository())) {
-                treeWalk.addTree(commit.getTree());
-                treeWalk.setRecursive(true);
-                while(treeWalk.next()) {
-                    long ct = System.currentTimeMillis();
-                    String path = treeWalk.getPathString();
-                    try {
-                        addFileToDocument(repo, git, path, treeWalk.getObjectId(0), traveler);
-                        log.debug("add file:{} to index in {}ms.", path, (System.currentTimeMillis()-ct));
-                        fileCount ++;
-                    } catch (Throwable e){
-                        log.error("Failed to add file {} to repository {} from indexAllFiles", path, repo.getName(), e);
-                    }
-                }
+    private int indexAllFiles(CodeRepository repo, Git git, FileTraveler traveler, Map<String, SourceFile> indexedDocs,
+                              ObjectId commitId, String resumePath)
+            throws IOException, GitAPIException
+    {
+        int fileCount;
+        RevCommit commit = git.getRepository().parseCommit(commitId);
+        String branch = git.getRepository().getBranch();
+        try (TreeWalk treeWalk = new TreeWalk(git.getRepository())) {
+            treeWalk.addTree(commit.getTree());
+            treeWalk.setRecursive(true);
+            ChangedFileFilter filter = new ChangedFileFilter(repo, branch, indexedDocs, resumePath);
+            treeWalk.setFilter(filter);
+            //读取、解析和索引文件在流水线的各个阶段中并行执行
+            GitIndexPipeline pipeline = new GitIndexPipeline(repo.getName(), git.getRepository(), traveler,
+                    (path, objectId, contents, policy) -> buildDocument(repo, branch, path, objectId, contents, policy));
+            fileCount = pipeline.run(treeWalk, lastPath -> this.saveCheckpoint(repo, traveler, commit.name(), lastPath));
+            if(filter.isResuming()) {
+                //检查点中的文件不在文件树中，下次拉取时从头重建
+                repo.setCheckpoint(null, null);
+                throw new IOException("Checkpoint '" + resumePath + "' not found in " + commit.name() + " of " + repo.getName());
             }
         }
+        //删除文件树中已不存在的文件，过滤器会移除文件树中存在的文档
+        if(indexedDocs != null && traveler != null) {
+            indexedDocs.values().forEach(traveler::deleteDocument);
+            log.info("Repository '{}<{}>' rebuild: {} files changed, {} files deleted.",
+                    repo.getName(), repo.getId(), fileCount, indexedDocs.size());
+        }
+        //先持久化索引再记录 commit id，避免记录了没有完整索引的提交
+        if(traveler != null)
+            traveler.commit();
+        repo.setLastCommitId(commit.name());//回调最新 commit id 信息
+        repo.setCheckpoint(null, null);
         return fileCount;
     }
 
+    /**
+     * 持久化已写入的文档后保存重建进度
+     * @param repo
+     * @param traveler
+     * @param commitId
+     * @param lastPath
+     * @throws IOException
+     */
+    private void saveCheckpoint(CodeRepository repo, FileTraveler traveler, String commitId, String lastPath) throws IOException {
+        long ct = System.currentTimeMillis();
+        if(traveler != null)
+            traveler.commit();
+        repo.setCheckpoint(commitId, lastPath);
+        RepositoryManager.INSTANCE.save(repo);
+        log.info("Repository '{}<{}>' checkpoint at '{}' saved in {}ms", repo.getName(), repo.getId(), lastPath, System.currentTimeMillis() - ct);
+    }
+
+    /**
+     * 检查提交是否存在
+     * @param git
+     * @param commitId
+     * @return 提交不存在或者编号无效时返回 null
+     * @throws IOException
+     */
+    private ObjectId findCommit(Git git, String commitId) throws IOException {
+        if(StringUtils.isBlank(commitId))
+            return null;
+        try (RevWalk revWalk = new RevWalk(git.getRepository())) {
+            revWalk.setRetainBody(false);
+            ObjectId id = ObjectId.fromString(commitId);
+            revWalk.parseCommit(id);
+            return id;
+        } catch (InvalidObjectIdException | MissingObjectException | IncorrectObjectTypeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 只保留版本（blob id）或地址发生变化的文件，遍历过的文件从已索引文档中移除，剩下的即为已删除的文件
+     * 从检查点继续重建时，检查点及之前的文件都已处理，直接跳过
+     */
+    private static class ChangedFileFilter extends TreeFilter {
+
+        private final CodeRepository repo;
+        private final String branch;
+        private final Map<String, SourceFile> indexedDocs;
+        private String resumePath;
+
+        ChangedFileFilter(CodeRepository repo, String branch, Map<String, SourceFile> indexedDocs, String resumePath) {
+            this.repo = repo;
+            this.branch = branch;
+            this.indexedDocs = indexedDocs;
+            this.resumePath = resumePath;
+        }
+
+        /**
+         * @return 还没有遍历到检查点中的文件
+         */
+        boolean isResuming() {
+            return resumePath != null;
+        }
+
+        @Override
+        public boolean include(TreeWalk walker) {
+            if(walker.isSubtree())
+                return true;
+            if(resumePath != null) {
+                if(resumePath.equals(walker.getPathString()))
+                    resumePath = null;
+                if(indexedDocs != null)
+                    indexedDocs.remove(this.buildFile(walker).getUuid());
+                return false;
+            }
+            if(indexedDocs == null)
+                return true;
+            SourceFile file = this.buildFile(walker);
+            SourceFile indexed = indexedDocs.remove(file.getUuid());
+            return indexed == null
+                    || !walker.getObjectId(0).name().equals(indexed.getRevision())
+                    || !StringUtils.equals(file.getUrl(), indexed.getUrl());
+        }
+
+        private SourceFile buildFile(TreeWalk walker) {
+            SourceFile file = new SourceFile(repo.getVender());
+            file.setRepository(new Relation(repo.getId(), repo.getName(), repo.getUrl()));
+            file.setBranch(branch);
+            file.setLocation(walker.getPathString());
+            file.generateUuid();
+            file.generateUrl();
+            return file;
+        }
+
+        @Override
+        public boolean shouldBeRecursive() {
+            return true;
+        }
+
+        @Override
+        public TreeFilter clone() {
+            return this;
+        }
+    }
+
     /**
      * Index source file
      * @param repo
@@ -311,17 +631,26 @@ public class GitRepositoryProvider implements RepositoryProvider {
     private void addFileToDocument(CodeRepository repo, Git git, String path, ObjectId objectId, FileTraveler traveler)
             throws IOException, GitAPIException
     {
-        boolean isBinaryFile = TextFileUtils.isBinaryFile(path);
-        if(isBinaryFile) { //Binary file
-            SourceFile doc = buildBinaryDocument(repo, git, path, objectId);
-            traveler.updateDocument(doc);
-        }
-        else { // Text file
-            SourceFile doc = buildDocument(repo, git, path, objectId);
-            if (doc != null && traveler != null) {
-                traveler.updateDocument(doc);
+        FileIndexPolicy.Result policy = FileIndexPolicy.checkPath(path);
+        byte[] contents = null;
+        if(policy == FileIndexPolicy.Result.TEXT) {
+            try (ObjectReader reader = git.getRepository().newObjectReader()) {
+                policy = FileIndexPolicy.checkSize(reader.getObjectSize(objectId, Constants.OBJ_BLOB));
+                if(policy == FileIndexPolicy.Result.TEXT) {
+                    contents = GitIndexPipeline.readBlob(reader.open(objectId, Constants.OBJ_BLOB));
+                    policy = FileIndexPolicy.checkContent(contents);
+                    if(policy != FileIndexPolicy.Result.TEXT)
+                        contents = null;
+                }
+            } catch(MissingObjectException e) {
+                log.warn("MissingObjectException : " + objectId, e);
+                return;
             }
         }
+        SourceFile doc = buildDocument(repo, git.getRepository().getBranch(), path, objectId, contents, policy);
+        if (traveler != null) {
+            traveler.updateDocument(doc);
+        }
     }
 
     private static @NonNull
@@ -363,72 +692,102 @@ public class GitRepositoryProvider implements RepositoryProvider {
     }
 
     /**
-     * 从文件中构建文档
+     * 按 git gc --auto 的规则整理仓库，松散对象或 pack 文件过多时才会重新打包
      * @param repo
-     * @param git
+     * @return
+     */
+    @Override
+    public long gc(CodeRepository repo) {
+        File repoFile = StorageFactory.getRepositoryPath(repo.getRelativePath()).toFile();
+        if(!repoFile.exists())
+            return 0;
+        try (Git git = Git.open(repoFile)) {
+            if(git.getRepository() instanceof FileRepository) {
+                GC gc = new GC((FileRepository)git.getRepository());
+                gc.setAuto(true);
+                gc.gc();
+            }
+        } catch (IOException | ParseException e) {
+            log.error("Failed to gc repository '" + repo.getName() + "<" + repo.getId() + ">'", e);
+        }
+        return FileUtils.sizeOfDirectory(repoFile);
+    }
+
+    /**
+     * 构建文档，不索引内容的文件只保存文件名
+     * @param repo
+     * @param branch
      * @param path
      * @param objectId
+     * @param contents
+     * @param policy
      * @return
-     * @throws IOException
      */
-    private SourceFile buildDocument(CodeRepository repo, Git git, String path, ObjectId objectId)
-            throws IOException, GitAPIException
+    private SourceFile buildDocument(CodeRepository repo, String branch, String path, ObjectId objectId,
+                                     byte[] contents, FileIndexPolicy.Result policy)
     {
-        long ct = System.currentTimeMillis();
-        try {
-            ObjectLoader loader = git.getRepository().open(objectId);
-            try (InputStream stream = loader.openStream()) {
-                List<String> codeLines = TextFileUtils.readFileLines(stream, -1);
-                String contents = String.join("\n", codeLines);
-
-                SourceFile doc = new SourceFile(repo.getVender());
-                doc.setVender(repo.getVender());
-                doc.setEnterprise(repo.getEnterprise());
-                doc.setRepository(new Relation(repo.getId(), repo.getName(), repo.getUrl()));
-                doc.setBranch(git.getRepository().getBranch());
-                doc.setName(FilenameUtils.getName(path));                       //文件名
-                doc.setLocation(path);
-                doc.setLanguage(FileClassifier.languageGuess(path, contents));  //语言
-                doc.setContents(contents);                                      //源码
-                //doc.setCodeOwner(getCodeOwner(git, path));                      //开发者  TODO 如何能支持多个开发者，性能非常差
-                SlocCounter.SlocCount slocCount = slocCounter.countStats(contents, doc.getLanguage());
-                doc.setLines(slocCount.linesCount);                             //代码行统计
-                doc.setCommentLines(slocCount.commentCount);
-                doc.setBlankLines(slocCount.blankCount);
-                doc.setCodeLines(slocCount.codeCount);
-                doc.setComplexity(slocCount.complexity);
-                doc.setHash(DigestUtils.sha1Hex(contents));
-                doc.setRevision(objectId.name());
-
-                doc.generateUuid(); //calculate file uuid
-                doc.generateUrl();  // calculate file url
-
-                return doc;
-            }
-        } catch(MissingObjectException e) {
-            log.warn("MissingObjectException : " + objectId, e);
-            return null;
-        }
+        if(contents != null)
+            return buildDocument(repo, branch, path, objectId, contents);
+        String language = (policy == FileIndexPolicy.Result.BINARY) ?
+                FileClassifier.BINARY_LANGUAGE : FileClassifier.languageGuess(path, "");
+        return buildNameOnlyDocument(repo, branch, path, objectId, language);
     }
 
     /**
-     * 从二进制文件中构建文档
+     * 从文件内容中构建文档
      * @param repo
-     * @param git
+     * @param branch
      * @param path
      * @param objectId
+     * @param bytes
+     * @return
+     */
+    private SourceFile buildDocument(CodeRepository repo, String branch, String path, ObjectId objectId, byte[] bytes) {
+        String contents = TextFileUtils.decodeText(bytes, bytes.length);
+
+        SourceFile doc = new SourceFile(repo.getVender());
+        doc.setVender(repo.getVender());
+        doc.setEnterprise(repo.getEnterprise());
+        doc.setRepository(new Relation(repo.getId(), repo.getName(), repo.getUrl()));
+        doc.setBranch(branch);
+        doc.setName(FilenameUtils.getName(path));                       //文件名
+        doc.setLocation(path);
+        doc.setLanguage(FileClassifier.languageGuess(path, contents));  //语言
+        doc.setContents(contents);                                      //源码
+        //doc.setCodeOwner(getCodeOwner(git, path));                      //开发者  TODO 如何能支持多个开发者，性能非常差
+        SlocCounter.SlocCount slocCount = slocCounter.countStats(contents, doc.getLanguage());
+        doc.setLines(slocCount.linesCount);                             //代码行统计
+        doc.setCommentLines(slocCount.commentCount);
+        doc.setBlankLines(slocCount.blankCount);
+        doc.setCodeLines(slocCount.codeCount);
+        doc.setComplexity(slocCount.complexity);
+        doc.setHash(objectId.name());                                   //blob id 即文件内容的 sha1
+        doc.setRevision(objectId.name());
+
+        doc.generateUuid(); //calculate file uuid
+        doc.generateUrl();  // calculate file url
+
+        return doc;
+    }
+
+    /**
+     * 构建只包含文件名的文档（不读取文件内容）
+     * @param repo
+     * @param branch
+     * @param path
+     * @param objectId
+     * @param language
      * @return
-     * @throws IOException
      */
-    private SourceFile buildBinaryDocument(CodeRepository repo, Git git, String path, ObjectId objectId) throws IOException {
+    private SourceFile buildNameOnlyDocument(CodeRepository repo, String branch, String path, ObjectId objectId, String language) {
         SourceFile doc = new SourceFile(repo.getVender());
 
         doc.setEnterprise(repo.getEnterprise());
         doc.setRepository(new Relation(repo.getId(), repo.getName(), repo.getUrl()));
-        doc.setBranch(git.getRepository().getBranch());
+        doc.setBranch(branch);
         doc.setName(FilenameUtils.getName(path));     //文件名
         doc.setLocation(path);                        //完整的项目内路径
-        doc.setLanguage(FileClassifier.BINARY_LANGUAGE);  //语言
+        doc.setLanguage(language);                    //语言
         doc.setRevision(objectId.name());
 
         doc.generateUuid(); //calculate file uuid
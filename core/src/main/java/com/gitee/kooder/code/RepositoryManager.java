@@ -23,12 +23,16 @@ import org.apache.lucene.document.*;
 import org.apache.lucene.index.IndexNotFoundException;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.MultiBits;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.util.Bits;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * 用于管理源代码仓库元信息
@@ -58,6 +62,12 @@ public interface RepositoryManager {
      */
     boolean delete(long id);
 
+    /**
+     * 列出所有仓库的元信息
+     * @return
+     */
+    List<CodeRepository> list();
+
 }
 
 /**
@@ -106,4 +116,20 @@ class LuceneRepositoryManager implements RepositoryManager {
         }
     }
 
+    @Override
+    public List<CodeRepository> list() {
+        List<CodeRepository> repos = new ArrayList<>();
+        try (IndexReader reader = StorageFactory.getIndexReader(Constants.TYPE_METADATA)) {
+            Bits liveDocs = MultiBits.getLiveDocs(reader);
+            for (int i = 0; i < reader.maxDoc(); i++) {
+                if (liveDocs == null || liveDocs.get(i))
+                    repos.add(new CodeRepository().setDocument(reader.document(i)));
+            }
+        } catch (IndexNotFoundException e) {
+        } catch (IOException e) {
+            throw new IndexException("Failed to list repos in metedata db", e);
+        }
+        return repos;
+    }
+
 }
\ No newline at end of file
@@ -26,13 +26,32 @@ public interface RepositoryProvider {
     String name();
 
     /**
-     * 更新仓库
+     * 更新仓库，相当于 fetch 之后 index
      * @param repo
      * @param traveler
-     * @return 返回索引的文件数
+     * @return 返回索引的文件数，失败时返回 -1
      */
     int pull(CodeRepository repo, FileTraveler traveler);
 
+    /**
+     * 从远程仓库拉取代码到本地（网络 I/O），不写索引，不支持分开执行时什么都不做
+     * @param repo
+     * @return 拉取成功返回 true
+     */
+    default boolean fetch(CodeRepository repo) {
+        return true;
+    }
+
+    /**
+     * 索引 fetch 拉取到本地的代码
+     * @param repo
+     * @param traveler
+     * @return 返回索引的文件数，失败时返回 -1
+     */
+    default int index(CodeRepository repo, FileTraveler traveler) {
+        return pull(repo, traveler);
+    }
+
     /**
      * 删除仓库
      * @param repo
@@ -40,4 +59,13 @@ public interface RepositoryProvider {
      */
     void delete(CodeRepository repo) ;
 
+    /**
+     * 整理仓库的本地存储（例如 git gc），返回整理后占用的磁盘空间
+     * @param repo
+     * @return 占用的字节数，不支持时返回 -1
+     */
+    default long gc(CodeRepository repo) {
+        return -1;
+    }
+
 }
@@ -15,7 +15,9 @@
  */
 package com.gitee.kooder.code;
 
+import com.gitee.kooder.core.Constants;
 import com.gitee.kooder.query.QueryException;
+import com.gitee.kooder.utils.SourceFieldUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
@@ -45,6 +47,27 @@ public class SourceCodeAnalyzer extends Analyzer {
         return new TokenStreamComponents(new SourceCodeTokenizer());
     }
 
+    /**
+     * Keep phrase queries from matching across two source chunks of the same file
+     * @param fieldName
+     * @return
+     */
+    @Override
+    public int getPositionIncrementGap(String fieldName) {
+        return Constants.FIELD_SOURCE.equals(fieldName) ? SourceFieldUtils.SOURCE_POSITION_GAP : 0;
+    }
+
+    /**
+     * Source chunks are consecutive substrings, so their offsets follow each other without gap
+     * and stay aligned with the whole file content
+     * @param fieldName
+     * @return
+     */
+    @Override
+    public int getOffsetGap(String fieldName) {
+        return Constants.FIELD_SOURCE.equals(fieldName) ? 0 : super.getOffsetGap(fieldName);
+    }
+
     /**
      * extract text content to tokens
      * @param code
@@ -61,6 +61,17 @@ public class SourceCodeTokenizer extends Tokenizer {
         return true;
     }
 
+    /**
+     * 设置最终偏移量，多值字段的下一个值的偏移量从这里继续
+     * @throws IOException
+     */
+    @Override
+    public void end() throws IOException {
+        super.end();
+        int finalOffset = correctOffset(tokens.offset());
+        offsetAtt.setOffset(finalOffset, finalOffset);
+    }
+
     /**
      * 返回一个有效词条给 lucene
      * @param ew
@@ -79,6 +90,7 @@ public class SourceCodeTokenizer extends Tokenizer {
     public static class ReaderTokens {
 
         private int pos = 0;
+        private int chars = 0;  // 实际读取的字符数
         private Reader reader;
 
         private List<IWord> lastTokens = new ArrayList<>();
@@ -97,6 +109,7 @@ public class SourceCodeTokenizer extends Tokenizer {
                 pos ++;
                 if(ch == -1) // end of stream
                     break;
+                chars ++;
                 if(Character.isIdeographic(ch)) { // chinese
                     IWord cur = new IWord((char)ch, pos - 1, pos);
                     if(word.length() == 0)
@@ -126,6 +139,14 @@ public class SourceCodeTokenizer extends Tokenizer {
             return (word.length()>0)?new IWord(word.toString(), pos - word.length() - 1, pos - 1) : null;
         }
 
+        /**
+         * 已经读取的字符数
+         * @return
+         */
+        public int offset() {
+            return chars;
+        }
+
     }
 
     /**
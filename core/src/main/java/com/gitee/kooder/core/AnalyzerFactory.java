@@ -16,12 +16,14 @@
 package com.gitee.kooder.core;
 
 import com.gitee.kooder.code.SourceCodeAnalyzer;
+import com.gitee.kooder.index.IndexManager;
 import com.gitee.kooder.jcseg.JcsegAnalyzer;
+import com.gitee.kooder.jcseg.SegmenterPool;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.lionsoul.jcseg.ISegment;
-import org.lionsoul.jcseg.IWord;
 import org.lionsoul.jcseg.dic.ADictionary;
 import org.lionsoul.jcseg.dic.DictionaryFactory;
 import org.lionsoul.jcseg.segmenter.SegmenterConfig;
@@ -48,13 +50,27 @@ public class AnalyzerFactory {
 
     private final static Logger log = LoggerFactory.getLogger(AnalyzerFactory.class);
 
-    private static ADictionary dic;
     private static SegmenterConfig config;
     private static SegmenterConfig configForSplit;
     private final static StandardAnalyzer standardAnalyzer = new StandardAnalyzer();
     //private static TechCodeAnalyzer codeAnalyzer = new TechCodeAnalyzer();
     private final static SourceCodeAnalyzer codeAnalyzer = new SourceCodeAnalyzer() ;
 
+    //jcseg 分词时会修改词库中的词条（位置），多个线程不能同时使用同一个词库，
+    //分词实例池中的每个词库同一时间只被一个线程使用，每个词库约 90M 内存，所有词库都在忙时才加载新的词库
+    //索引和查询使用不同的实例池，查询不必等待批量索引释放词库，查询的词库数与并发搜索线程数相同
+    private final static int INDEX_THREADS = NumberUtils.toInt(KooderConfig.getProperty("indexer.executor.index_threads"), Runtime.getRuntime().availableProcessors());
+    private final static int POOL_SIZE = NumberUtils.toInt(KooderConfig.getProperty("jcseg.pool_size"), Math.min(INDEX_THREADS, 2));
+    private final static int QUERY_POOL_SIZE = NumberUtils.toInt(KooderConfig.getProperty("jcseg.query_pool_size"), IndexManager.SEARCH_THREAD_COUNT);
+    private final static SegmenterPool pool;
+    private final static SegmenterPool queryPool;
+
+    //分词器全局共享，lucene 的 Analyzer 为每个线程缓存一个 Tokenizer
+    private final static Analyzer indexAnalyzer;
+    private final static Analyzer documentAnalyzer;
+    private final static Analyzer searchAnalyzer;
+    private final static Analyzer highlightAnalyzer;
+
     static {
         config = new SegmenterConfig(true);
         try {
@@ -62,29 +78,52 @@ public class AnalyzerFactory {
         } catch (CloneNotSupportedException e) {}
         configForSplit.setAppendCJKSyn(false);
         configForSplit.setAppendCJKPinyin(false);
-        dic = DictionaryFactory.createDefaultDictionary(config, false,true);
+        //词库在第一次使用时加载，独立运行的 gateway 不加载索引的词库，独立运行的 indexer 也不加载查询的词库
+        pool = new SegmenterPool(POOL_SIZE, null, AnalyzerFactory::loadDictionary);
+        queryPool = new SegmenterPool(QUERY_POOL_SIZE, null, AnalyzerFactory::loadDictionary);
+        indexAnalyzer = new JcsegAnalyzer(ISegment.Type.MOST, config, pool);
+        documentAnalyzer = new JcsegAnalyzer(ISegment.Type.MOST, config, queryPool);
+        searchAnalyzer = new JcsegAnalyzer(ISegment.Type.MOST, configForSplit, queryPool);
+        highlightAnalyzer = new JcsegAnalyzer(ISegment.Type.COMPLEX, configForSplit, queryPool);
+    }
+
+    /**
+     * 加载词库（包括扩展词库）
+     * @return
+     */
+    private static ADictionary loadDictionary() {
+        ADictionary dic = DictionaryFactory.createDefaultDictionary(config, false,true);
         try {
             addCustomLexicon(dic);
         } catch (IOException e ) {
             log.error("Failed to load custom lexicon", e);
         }
+        return dic;
     }
 
     /**
-     * 返回分词器
+     * 返回分词器（全局共享，线程安全，不要关闭）
      * @param forIndexer  true:索引用，false:搜索用
      * @return
      */
     public final static Analyzer getInstance(boolean forIndexer) {
-        return forIndexer?new JcsegAnalyzer(ISegment.Type.MOST, config, dic):new JcsegAnalyzer(ISegment.Type.MOST, configForSplit, dic);
+        return forIndexer?indexAnalyzer:searchAnalyzer;
+    }
+
+    /**
+     * 返回查询时重新分析文档内容的分词器，分词方式与索引时相同，使用查询的实例池（全局共享，线程安全，不要关闭）
+     * @return
+     */
+    public final static Analyzer getDocumentInstance() {
+        return documentAnalyzer;
     }
 
     /**
-     * 返回高亮分词器
+     * 返回高亮分词器（全局共享，线程安全，不要关闭）
      * @return
      */
     public final static Analyzer getHighlightInstance() {
-        return new JcsegAnalyzer(ISegment.Type.COMPLEX, configForSplit, dic);
+        return highlightAnalyzer;
     }
 
     /**
@@ -142,20 +181,9 @@ public class AnalyzerFactory {
     public static List<String> splitKeywords(String sentence) {
         List<String> keys = new ArrayList<>();
         if (StringUtils.isNotBlank(sentence)) {
-            StringReader reader = new StringReader(sentence);
-            ISegment seg = ISegment.NLP.factory.create(configForSplit, dic);
-            //ComplexSeg ikseg = new ComplexSeg(JcsegAnalyzer.INSTANCE.getSegmenterConfigForSearch(), JcsegAnalyzer.INSTANCE.getDic());
-            //NLPSeg seg = new NLPSeg(this.configForSplit, getDic());
-            //DelimiterSeg ikseg = new DelimiterSeg(JcsegAnalyzer.INSTANCE.getSegmenterConfigForSearch(), JcsegAnalyzer.INSTANCE.getDic());
-            //MostSeg ikseg = new MostSeg(JcsegAnalyzer.INSTANCE.getSegmenterConfigForSearch(), JcsegAnalyzer.INSTANCE.getDic());
-            //SimpleSeg ikseg = new SimpleSeg(JcsegAnalyzer.INSTANCE.getSegmenterConfigForSearch(), JcsegAnalyzer.INSTANCE.getDic());
-            //NGramSeg ikseg = new NGramSeg(JcsegAnalyzer.INSTANCE.getSegmenterConfigForSearch(), JcsegAnalyzer.INSTANCE.getDic());
-            //DetectSeg ikseg = new DetectSeg(JcsegAnalyzer.INSTANCE.getSegmenterConfigForSearch(), JcsegAnalyzer.INSTANCE.getDic());
             try {
-                IWord word = null;
-                seg.reset(reader);
-                while((word = seg.next()) != null){
-                    keys.add(word.getValue());
+                for(SegmenterPool.Token word : pool.segment(ISegment.Type.NLP, configForSplit, new StringReader(sentence))) {
+                    keys.add(word.value);
                 }
             } catch (IOException e) {
                 log.error("Unable to split keywords", e);
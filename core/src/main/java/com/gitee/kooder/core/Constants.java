@@ -77,6 +77,7 @@ public interface Constants {
     String FIELD_STAR_COUNT     = "starCount";
     String FIELD_FORK_COUNT     = "forkCount";
     String FIELD_G_INDEX        = "gindex";
+    String FIELD_STATIC_RANK    = "srank";
     String FIELD_TAGS           = "tags";
     String FIELD_CATALOGS       = "catalogs";
     String FIELD_BRANCH         = "branch";
@@ -116,11 +117,16 @@ public interface Constants {
     String FIELD_SCM            = "scm";
     String FIELD_STATUS         = "status";
     String FIELD_TIMESTAMP      = "timestamp";
+    String FIELD_DISK_SIZE      = "disk.size";
+    String FIELD_LAST_ACCESS    = "last.access";
+    String FIELD_CHECKPOINT_REVISION = "checkpoint.revision";
+    String FIELD_CHECKPOINT_PATH     = "checkpoint.path";
 
     String FIELD_LINES_TOTAL    = "lines.total";
     String FIELD_LINES_CODE     = "lines.code";
     String FIELD_LINES_BLANK    = "lines.blank";
     String FIELD_LINES_COMMENT  = "lines.comment";
+    String FIELD_LINES_STARTS   = "lines.starts";
     String FIELD_COMPLEXITY     = "complexity";
 
     String DEFAULT_SECRET_TOKEN = "gsearch";
@@ -16,6 +16,7 @@
 package com.gitee.kooder.core;
 
 import com.gitee.kooder.models.CodeLine;
+import com.gitee.kooder.models.SourceFile;
 import org.apache.commons.collections.list.SetUniqueList;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.lucene.analysis.Analyzer;
@@ -28,6 +29,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -44,7 +46,9 @@ public class SearchHelper {
     private final static int MAX_LINE_LENGTH = 256;
     private final static Analyzer highlight_analyzer = AnalyzerFactory.getHighlightInstance();
 
-    private final static String PATTERN_HIGHLIGHT = "<em class='highlight'>$0</em>";
+    private final static String HIGHLIGHT_START = "<em class='highlight'>";
+    private final static String HIGHLIGHT_END = "</em>";
+    private final static String PATTERN_HIGHLIGHT = HIGHLIGHT_START + "$0" + HIGHLIGHT_END;
     private final static Formatter hl_fmt = new SimpleHTMLFormatter("<em class='highlight'>", "</em>");
 
     /**
@@ -164,6 +168,91 @@ public class SearchHelper {
         return codeLines;
     }
 
+    /**
+     * 根据索引中的关键字偏移量和行起始表高亮源码，只处理匹配的代码行
+     * 旧索引中没有偏移量信息时，退回到逐行扫描整个文件
+     *
+     * @param file
+     * @param searchKey
+     * @param maxLines
+     * @return
+     */
+    public static List<CodeLine> hl_lines(SourceFile file, String searchKey, int maxLines) {
+        return hl_lines(file.getContents(), file.getLineStarts(), file.getMatchOffsets(), searchKey, maxLines);
+    }
+
+    /**
+     * 根据关键字偏移量和行起始表高亮源码，code 可以只是覆盖匹配行的源码前缀
+     *
+     * @param code
+     * @param lineStarts
+     * @param offsets
+     * @param searchKey
+     * @param maxLines
+     * @return
+     */
+    public static List<CodeLine> hl_lines(String code, int[] lineStarts, List<int[]> offsets, String searchKey, int maxLines) {
+        if(lineStarts == null || offsets == null || offsets.isEmpty() || StringUtils.isBlank(code))
+            return hl_lines(code, searchKey, maxLines);
+
+        List<CodeLine> codeLines = new ArrayList<>();
+        int idx = 0;
+        while (idx < offsets.size() && offsets.get(idx)[0] < code.length() && codeLines.size() < maxLines) {
+            int line = lineOf(lineStarts, offsets.get(idx)[0]);
+            int lineStart = lineStarts[line];
+            int lineEnd = lineEnd(code, lineStarts, line);
+            boolean abbreviate = lineEnd - lineStart > MAX_LINE_LENGTH;
+            int cut = abbreviate ? lineStart + MAX_LINE_LENGTH - 3 : lineEnd;
+            StringBuilder html = new StringBuilder();
+            int last = lineStart;
+            for (; idx < offsets.size() && offsets.get(idx)[0] < lineEnd; idx++) {
+                int start = Math.max(offsets.get(idx)[0], last);
+                int end = Math.min(offsets.get(idx)[1], cut);
+                if (start >= end)
+                    continue;
+                html.append(html(code.substring(last, start))).append(HIGHLIGHT_START);
+                html.append(html(code.substring(start, end))).append(HIGHLIGHT_END);
+                last = end;
+            }
+            html.append(html(code.substring(last, cut)));
+            if (abbreviate)
+                html.append("...");
+            codeLines.add(new CodeLine(line + 1, html.toString()));
+        }
+        //补充点内容，免得看起来太干巴
+        int minLines = maxLines / 3 ;
+        int lastLine = (codeLines.size() == 0) ? 0 : codeLines.get(codeLines.size() - 1).getLine();
+        for (int line = lastLine; line < lineStarts.length && lineStarts[line] < code.length() && codeLines.size() < minLines; line++) {
+            String text = code.substring(lineStarts[line], lineEnd(code, lineStarts, line));
+            codeLines.add(new CodeLine(line + 1, html(StringUtils.abbreviate(text, MAX_LINE_LENGTH))));
+        }
+        return codeLines;
+    }
+
+    /**
+     * 偏移量所在的行（从 0 开始）
+     * @param lineStarts
+     * @param offset
+     * @return
+     */
+    private static int lineOf(int[] lineStarts, int offset) {
+        int idx = Arrays.binarySearch(lineStarts, offset);
+        return (idx >= 0) ? idx : -idx - 2;
+    }
+
+    /**
+     * 行结束位置，不包括换行符
+     * @param code
+     * @param lineStarts
+     * @param line
+     * @return
+     */
+    private static int lineEnd(String code, int[] lineStarts, int line) {
+        int end = (line + 1 < lineStarts.length) ? Math.min(lineStarts[line + 1] - 1, code.length()) : code.length();
+        if (end > lineStarts[line] && code.charAt(end - 1) == '\r')
+            end--;
+        return end;
+    }
 
     public static void main(String[] args) {
         System.out.println(SetUniqueList.decorate(AnalyzerFactory.getCodeAnalyzer().tokens("authService.updateUserProfile")));
@@ -89,6 +89,7 @@ public class IndexManager {
             case QueueTask.ACTION_UPDATE:
                 List<Document> docs = task.getObjects().stream().map(o -> o.getDocument()).collect(Collectors.toList());
                 update(docs, i_writer, t_writer);
+                SuggestManager.add(task.getObjects());
                 break;
             case QueueTask.ACTION_DELETE:
                 List<Long> objects = task.getObjects().stream().map(o -> o.getId()).collect(Collectors.toList());
@@ -100,6 +101,9 @@ public class IndexManager {
                         repos.add(obj.getId());
                     }
                 }
+                SuggestManager.remove(task.getType(), objects);
+                if(repos.size() > 0)
+                    SuggestManager.removeIssuesOfRepositories(repos);
                 log.info("Documents['{}'] {} deleted.", task.getType(), objects);
                 // Delete repository need to delete it's related issues and codes
                 if(repos.size() > 0) {
@@ -0,0 +1,499 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.index;
+
+import com.gitee.kooder.core.Constants;
+import com.gitee.kooder.core.KooderConfig;
+import com.gitee.kooder.models.Issue;
+import com.gitee.kooder.models.Repository;
+import com.gitee.kooder.models.Searchable;
+import com.gitee.kooder.storage.StorageFactory;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexNotFoundException;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.suggest.InputIterator;
+import org.apache.lucene.search.suggest.Lookup;
+import org.apache.lucene.search.suggest.fst.WFSTCompletionLookup;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * 搜索框自动补全，基于 FST 的内存词典（仓库名、命名空间、Issue 标题）
+ * 进程第一次提供补全服务时从索引库加载词典，之后由后台线程定期重建 FST，查询只读取已发布的 FST
+ * 与 indexer 在同一进程时由 IndexManager 增量更新词典，独立运行的 gateway 则在索引变化后重新加载
+ * @author Winter Lau<javayou@gmail.com>
+ */
+public class SuggestManager {
+
+    private final static Logger log = LoggerFactory.getLogger(SuggestManager.class);
+
+    public final static String TYPE_NAMESPACE = "namespace";
+
+    private final static int MAX_TEXT_LENGTH = 100;     // 超长的文本不参与补全
+    private final static int ENTRY_OVERHEAD = 96;       // 每个词条的对象开销估算（字节）
+    private final static int REF_OVERHEAD = 64;         // 每个对象引用词条的开销估算（字节）
+    private final static double LOW_WATERMARK = 0.9;    // 超出内存预算时淘汰到预算的 90%
+
+    private final static long maxMemory = NumberUtils.toLong(KooderConfig.getProperty("suggest.max_memory_mb"), 32) * 1024 * 1024;
+    private final static long rebuildInterval = Math.max(1, NumberUtils.toLong(KooderConfig.getProperty("suggest.rebuild_interval"), 10)) * 1000;
+
+    private static volatile Dictionary dictionary;          // 为 null 表示本进程还没有提供过补全服务，不维护词典
+    private static List<Consumer<Dictionary>> journal;      // 重新加载期间的增量更新，加载完成后重放
+    private static volatile Lookup lookup;
+    private static volatile boolean fedByIndexer = false;   // 与 indexer 在同一进程，词典由 IndexManager 增量更新
+    private static Map<String, Long> indexVersions = new HashMap<>();
+    private final static AtomicBoolean started = new AtomicBoolean(false);
+
+    /**
+     * 写入索引后更新补全词典
+     * @param objects
+     */
+    public static void add(List<? extends Searchable> objects) {
+        fedByIndexer = true;
+        update(d -> d.add(objects));
+    }
+
+    /**
+     * 删除索引后从补全词典中删除对应的词条
+     * @param type
+     * @param ids
+     */
+    public static void remove(String type, List<Long> ids) {
+        fedByIndexer = true;
+        update(d -> ids.forEach(id -> d.remove(type, id)));
+    }
+
+    /**
+     * 删除仓库时同时删除仓库下的 Issue 词条
+     * @param repoIds
+     */
+    public static void removeIssuesOfRepositories(List<Long> repoIds) {
+        fedByIndexer = true;
+        update(d -> d.removeIssuesOf(new HashSet<>(repoIds)));
+    }
+
+    /**
+     * 根据前缀查找补全建议，第一次调用时启动后台线程加载词典
+     * @param prefix
+     * @param count
+     * @return
+     */
+    public static List<Suggestion> lookup(String prefix, int count) {
+        if(!started.get())
+            start();
+        if(StringUtils.isBlank(prefix))
+            return Collections.emptyList();
+        Lookup thisLookup = lookup;
+        Dictionary thisDictionary = dictionary;
+        if(thisLookup == null || thisDictionary == null)
+            return Collections.emptyList();
+        try {
+            List<Lookup.LookupResult> results = thisLookup.lookup(prefix.trim().toLowerCase(), false, count);
+            return results.stream().map(r -> thisDictionary.entries.get(r.key.toString())).filter(Objects::nonNull).collect(Collectors.toList());
+        } catch (Exception e) {
+            log.error("Failed to lookup suggestions for " + prefix, e);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * 词典内存占用（字节）
+     * @return
+     */
+    public static long ramBytesUsed() {
+        Lookup thisLookup = lookup;
+        return (thisLookup != null) ? thisLookup.ramBytesUsed() : 0;
+    }
+
+    /**
+     * 修改词典，正在重新加载时同时记录下来，加载完成后在新词典上重放
+     * @param action
+     */
+    private static synchronized void update(Consumer<Dictionary> action) {
+        if(journal != null)
+            journal.add(action);
+        if(dictionary != null)
+            action.accept(dictionary);
+    }
+
+    /**
+     * 启动后台线程，首次加载词典后按间隔重建 FST
+     */
+    private static void start() {
+        if(!started.compareAndSet(false, true))
+            return;
+        ScheduledExecutorService builder = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "SuggestBuilder");
+            t.setDaemon(true);
+            return t;
+        });
+        builder.scheduleWithFixedDelay(SuggestManager::refresh, 0, rebuildInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private static void refresh() {
+        try {
+            if(dictionary == null || !fedByIndexer)
+                reloadIfIndexChanged();
+            Dictionary thisDictionary = dictionary;
+            if(thisDictionary != null && thisDictionary.dirty)
+                build(thisDictionary);
+        } catch (Throwable e) {
+            log.error("Failed to build suggester", e);
+        }
+    }
+
+    /**
+     * 索引库发生变化时重新读取所有仓库和 Issue（首次加载以及 gateway 独立运行时）
+     * @throws IOException
+     */
+    private static void reloadIfIndexChanged() throws IOException {
+        List<String> types = Arrays.asList(Constants.TYPE_REPOSITORY, Constants.TYPE_ISSUE);
+        Map<String, Long> versions = new HashMap<>();
+        for(String type : types) {
+            try (IndexReader reader = StorageFactory.getIndexReader(type)) {
+                versions.put(type, ((DirectoryReader)reader).getVersion());
+            } catch (IndexNotFoundException e) {
+            }
+        }
+        if(dictionary != null && versions.equals(indexVersions))
+            return;
+
+        synchronized (SuggestManager.class) {
+            journal = new ArrayList<>();
+        }
+        Dictionary newDictionary = new Dictionary();
+        boolean loaded = false;
+        try {
+            Set<String> fields = new HashSet<>(Arrays.asList(Constants.FIELD_ID, Constants.FIELD_NAME, Constants.FIELD_TITLE,
+                    Constants.FIELD_STAR_COUNT, Constants.FIELD_USER_NAME, Constants.FIELD_FORK, Constants.FIELD_REPO_ID));
+            for (String type : types) {
+                try (IndexReader reader = StorageFactory.getIndexReader(type)) {
+                    for (LeafReaderContext leaf : reader.leaves()) {
+                        Bits liveDocs = leaf.reader().getLiveDocs();
+                        for (int i = 0; i < leaf.reader().maxDoc(); i++) {
+                            if (liveDocs != null && !liveDocs.get(i))
+                                continue;
+                            Document doc = leaf.reader().document(i, fields);
+                            newDictionary.add(Collections.singletonList(Constants.TYPE_REPOSITORY.equals(type) ? new Repository(doc) : new Issue(doc)));
+                        }
+                    }
+                } catch (IndexNotFoundException e) {
+                }
+            }
+            loaded = true;
+        } finally {
+            synchronized (SuggestManager.class) {
+                if(loaded) {
+                    journal.forEach(action -> action.accept(newDictionary));
+                    dictionary = newDictionary;
+                }
+                journal = null;
+            }
+        }
+        indexVersions = versions;
+    }
+
+    /**
+     * 重建 FST 并发布，构建期间查询继续使用旧的 FST
+     * @param dictionary
+     * @throws IOException
+     */
+    private static void build(Dictionary dictionary) throws IOException {
+        long ct = System.currentTimeMillis();
+        dictionary.dirty = false;
+        WFSTCompletionLookup newLookup = new WFSTCompletionLookup(new ByteBuffersDirectory(), "suggest");
+        newLookup.build(new SuggestionIterator(new ArrayList<>(dictionary.entries.values()).iterator()));
+        lookup = newLookup;
+        log.info("Suggester rebuilt with {} entries, {} bytes, time:{}ms", newLookup.getCount(), newLookup.ramBytesUsed(), System.currentTimeMillis() - ct);
+    }
+
+    private static String getNamespace(Repository repo) {
+        String name = repo.getName();
+        int idx = (name != null) ? name.lastIndexOf('/') : -1;
+        if(idx > 0)
+            return name.substring(0, idx);
+        return (repo.getOwner() != null) ? repo.getOwner().getName() : null;
+    }
+
+    /**
+     * 补全词典，每个对象（类型+编号）记录它引用的词条，同一个词条可以被多个对象引用，
+     * 例如同名的仓库以及同一命名空间下的所有仓库，没有对象引用时删除词条
+     * 与仓库搜索一致，fork 的仓库不参与补全；Issue 记录所属的仓库，删除仓库时一并删除
+     * 修改操作都在 SuggestManager 的锁内执行，查询只读取 entries
+     */
+    private static class Dictionary {
+
+        private final Map<String, Suggestion> entries = new ConcurrentHashMap<>();  // lower case text -> suggestion
+        private final Map<String, Map<String, Suggestion>> refs = new HashMap<>();  // lower case text -> (object -> suggestion)
+        private final Map<String, String[]> objects = new HashMap<>();              // object -> lower case texts
+        private final Map<Long, Long> issueRepos = new HashMap<>();                 // issue id -> repository id
+        private long bytes = 0;
+        private boolean budgetWarned = false;
+        private volatile boolean dirty = false;
+
+        void add(List<? extends Searchable> objs) {
+            for(Searchable obj : objs) {
+                if(obj instanceof Repository) {
+                    Repository repo = (Repository) obj;
+                    if(repo.getFork() != Constants.REPO_FORK_NO) {
+                        remove(Constants.TYPE_REPOSITORY, repo.getId());
+                        continue;
+                    }
+                    long weight = Math.max(0, repo.getStarsCount()) + 1;
+                    put(Constants.TYPE_REPOSITORY, repo.getId(),
+                            suggestion(repo.getName(), Constants.TYPE_REPOSITORY, repo.getId(), weight),
+                            suggestion(getNamespace(repo), TYPE_NAMESPACE, 0, weight));
+                }
+                else if(obj instanceof Issue) {
+                    Issue issue = (Issue) obj;
+                    put(Constants.TYPE_ISSUE, issue.getId(), suggestion(issue.getTitle(), Constants.TYPE_ISSUE, issue.getId(), 1));
+                    if(objects.containsKey(Constants.TYPE_ISSUE + ":" + issue.getId()) && issue.getRepository() != null
+                            && issueRepos.put(issue.getId(), issue.getRepository().getId()) == null)
+                        bytes += REF_OVERHEAD;
+                }
+            }
+            if(bytes > maxMemory)
+                evict();
+        }
+
+        void remove(String type, long id) {
+            String object = type + ":" + id;
+            String[] keys = objects.remove(object);
+            if(keys != null) {
+                for(String key : keys)
+                    unref(key, object);
+                forget(object);
+            }
+        }
+
+        void removeIssuesOf(Set<Long> repoIds) {
+            List<Long> issues = issueRepos.entrySet().stream().filter(e -> repoIds.contains(e.getValue()))
+                    .map(Map.Entry::getKey).collect(Collectors.toList());
+            issues.forEach(id -> remove(Constants.TYPE_ISSUE, id));
+        }
+
+        /**
+         * 对象不再引用任何词条
+         */
+        private void forget(String object) {
+            bytes -= REF_OVERHEAD;
+            String prefix = Constants.TYPE_ISSUE + ":";
+            if(object.startsWith(prefix) && issueRepos.remove(Long.parseLong(object.substring(prefix.length()))) != null)
+                bytes -= REF_OVERHEAD;
+        }
+
+        /**
+         * 替换对象引用的词条，对象改名后旧的词条不再被它引用
+         */
+        private void put(String type, long id, Suggestion...suggestions) {
+            String object = type + ":" + id;
+            String[] oldKeys = objects.get(object);
+            List<String> keys = new ArrayList<>();
+            for(Suggestion s : suggestions) {
+                if(s == null)
+                    continue;
+                keys.add(s.key);
+                Map<String, Suggestion> owners = refs.get(s.key);
+                if(owners == null) {
+                    owners = new HashMap<>();
+                    refs.put(s.key, owners);
+                    bytes += s.ramBytes();
+                }
+                if(owners.put(object, s) == null)
+                    bytes += REF_OVERHEAD;
+                publish(s.key, owners);
+            }
+            if(oldKeys != null) {
+                for (String key : oldKeys)
+                    if (!keys.contains(key))
+                        unref(key, object);
+            }
+            if(!keys.isEmpty()) {
+                objects.put(object, keys.toArray(new String[0]));
+                if(oldKeys == null)
+                    bytes += REF_OVERHEAD;
+            }
+            else if(oldKeys != null) {
+                objects.remove(object);
+                forget(object);
+            }
+        }
+
+        private void unref(String key, String object) {
+            Map<String, Suggestion> owners = refs.get(key);
+            if(owners == null || owners.remove(object) == null)
+                return;
+            bytes -= REF_OVERHEAD;
+            if(owners.isEmpty()) {
+                refs.remove(key);
+                bytes -= entries.get(key).ramBytes();
+            }
+            publish(key, owners);
+        }
+
+        /**
+         * 词条的展示内容取引用它的对象中权重最高的一个
+         */
+        private void publish(String key, Map<String, Suggestion> owners) {
+            Suggestion best = owners.values().stream().max(Comparator.comparingLong((Suggestion s) -> s.weight)).orElse(null);
+            Suggestion old = (best != null) ? entries.put(key, best) : entries.remove(key);
+            //只有权重变化或者增删词条才需要重建 FST
+            if(best == null || old == null || best.weight != old.weight)
+                dirty = true;
+        }
+
+        /**
+         * 超出内存预算时按权重从低到高淘汰词条
+         */
+        private void evict() {
+            List<Suggestion> suggestions = new ArrayList<>(entries.values());
+            suggestions.sort(Comparator.comparingLong((Suggestion s) -> s.weight));
+            int count = 0;
+            for(Suggestion s : suggestions) {
+                if(bytes <= maxMemory * LOW_WATERMARK)
+                    break;
+                Map<String, Suggestion> owners = refs.get(s.key);
+                if(owners == null)
+                    continue;
+                for(String object : new ArrayList<>(owners.keySet())) {
+                    String[] keys = objects.get(object);
+                    String[] others = Arrays.stream(keys).filter(k -> !k.equals(s.key)).toArray(String[]::new);
+                    if(others.length > 0)
+                        objects.put(object, others);
+                    else {
+                        objects.remove(object);
+                        forget(object);
+                    }
+                    unref(s.key, object);
+                }
+                count++;
+            }
+            //写入频繁时每批都可能触发淘汰，只在第一次提示
+            if(!budgetWarned) {
+                budgetWarned = true;
+                log.warn("Suggester exceeds memory budget {}MB, {} entries evicted.", maxMemory / 1024 / 1024, count);
+            }
+            else
+                log.debug("Suggester exceeds memory budget {}MB, {} entries evicted.", maxMemory / 1024 / 1024, count);
+        }
+    }
+
+    private static Suggestion suggestion(String text, String type, long id, long weight) {
+        if(StringUtils.isBlank(text) || text.length() > MAX_TEXT_LENGTH)
+            return null;
+        return new Suggestion(text, type, id, weight);
+    }
+
+    /**
+     * 自动补全的词条
+     */
+    public static class Suggestion {
+
+        private final String key;
+        private final String text;
+        private final String type;
+        private final long id;
+        private final long weight;
+
+        public Suggestion(String text, String type, long id, long weight) {
+            this.key = text.toLowerCase();
+            this.text = text;
+            this.type = type;
+            this.id = id;
+            this.weight = weight;
+        }
+
+        private long ramBytes() {
+            return ENTRY_OVERHEAD + key.length() * 4L;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public long getWeight() {
+            return weight;
+        }
+    }
+
+    /**
+     * 为 FST 构建提供词条
+     */
+    private static class SuggestionIterator implements InputIterator {
+
+        private Iterator<Suggestion> iterator;
+        private Suggestion current;
+
+        SuggestionIterator(Iterator<Suggestion> iterator) {
+            this.iterator = iterator;
+        }
+
+        @Override
+        public BytesRef next() {
+            if(!iterator.hasNext())
+                return null;
+            current = iterator.next();
+            return new BytesRef(current.key);
+        }
+
+        @Override
+        public long weight() {
+            return current.weight;
+        }
+
+        @Override
+        public BytesRef payload() {
+            return null;
+        }
+
+        @Override
+        public boolean hasPayloads() {
+            return false;
+        }
+
+        @Override
+        public Set<BytesRef> contexts() {
+            return null;
+        }
+
+        @Override
+        public boolean hasContexts() {
+            return false;
+        }
+    }
+
+}
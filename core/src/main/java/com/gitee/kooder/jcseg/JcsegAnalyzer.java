@@ -3,7 +3,6 @@ package com.gitee.kooder.jcseg;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.Tokenizer;
 import org.lionsoul.jcseg.ISegment;
-import org.lionsoul.jcseg.dic.ADictionary;
 import org.lionsoul.jcseg.segmenter.SegmenterConfig;
 
 /**
@@ -15,20 +14,20 @@ public final class JcsegAnalyzer extends Analyzer
 {
     public ISegment.Type type;
     public final SegmenterConfig config;
-    public final ADictionary dic;
+    public final SegmenterPool pool;
     
     /**
-     * initialize the analyzer with the specified mode, configuration, dictionary
+     * initialize the analyzer with the specified mode, configuration and the shared segmenter pool
      * 
      * @param   type
      * @param   config
-     * @param   dic
+     * @param   pool
     */
-    public JcsegAnalyzer(ISegment.Type type, SegmenterConfig config, ADictionary dic)
+    public JcsegAnalyzer(ISegment.Type type, SegmenterConfig config, SegmenterPool pool)
     {
         this.type   = type;
         this.config = config;
-        this.dic    = dic;
+        this.pool   = pool;
     }
     
     public SegmenterConfig getConfig()
@@ -36,15 +35,15 @@ public final class JcsegAnalyzer extends Analyzer
         return config;
     }
     
-    public ADictionary getDict()
+    public SegmenterPool getPool()
     {
-        return dic;
+        return pool;
     }
 
     @Override
     protected TokenStreamComponents createComponents(String fieldName) 
     {
-        final Tokenizer tokenizer = new JcsegTokenizer(type, config, dic);
+        final Tokenizer tokenizer = new JcsegTokenizer(type, config, pool);
         return new TokenStreamComponents(tokenizer);
     }
 }
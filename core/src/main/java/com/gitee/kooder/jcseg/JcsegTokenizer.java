@@ -1,14 +1,15 @@
 package com.gitee.kooder.jcseg;
 
 import java.io.IOException;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.List;
 
 import org.apache.lucene.analysis.Tokenizer;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
 import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
 import org.lionsoul.jcseg.ISegment;
-import org.lionsoul.jcseg.IWord;
-import org.lionsoul.jcseg.dic.ADictionary;
 import org.lionsoul.jcseg.segmenter.SegmenterConfig;
 
 
@@ -39,48 +40,63 @@ import org.lionsoul.jcseg.segmenter.SegmenterConfig;
 public class JcsegTokenizer extends Tokenizer 
 {
     // The default Jcseg segmentor
-    private final ISegment segmentor;
+    private final ISegment.Type type;
+    private final SegmenterConfig config;
+    private final SegmenterPool pool;
 
     private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
     private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
     private final TypeAttribute typeAtt = addAttribute(TypeAttribute.class);
     
     /**
-     * field level offset tracker for multiple-value field
-     * like the Array field in Elasticsearch or Solr
+     * words of the current value, the whole value is segmented in reset
+     * with an exclusive segmenter borrowed from the pool
     */
-    private int fieldOffset = 0;
+    private List<SegmenterPool.Token> tokens = Collections.emptyList();
+    private int index = 0;
+    
+    /**
+     * start offset of the last token, offsets of multiple-value field
+     * are accumulated by lucene itself with the final offset of each value
+    */
+    private int lastStartOffset = 0;
+    
+    // count the chars read by segmentor, which is the final offset
+    private final CountingReader counter = new CountingReader();
     
     public JcsegTokenizer(
         ISegment.Type type,
         SegmenterConfig config,
-        ADictionary dic )
+        SegmenterPool pool )
     {
-        segmentor = type.factory.create(config, dic);
+        this.type   = type;
+        this.config = config;
+        this.pool   = pool;
     }
 
     @Override
     final public boolean incrementToken() throws IOException
     {
-    	/* Clear the attributes */
-    	clearAttributes();
-    	
-        final IWord word = segmentor.next();
-        if ( word == null ) {
-            fieldOffset = offsetAtt.endOffset();
+        /* Clear the attributes */
+        clearAttributes();
+        
+        if ( index >= tokens.size() ) {
             return false;
         }
         
-        // char[] token = word.getValue().toCharArray();
-        // termAtt.copyBuffer(token, 0, token.length);
-        termAtt.append(word.getValue());
-        termAtt.setLength(word.getLength());
-        offsetAtt.setOffset(
-        	correctOffset(fieldOffset + word.getPosition()), 
-        	correctOffset(fieldOffset + word.getPosition() + word.getLength())
-        );
+        /*
+         * synonyms and pinyin words have the position and length of the original word
+         * but a different value, so the term is the whole value.
+         * lucene requires offsets never go backwards
+        */
+        final SegmenterPool.Token word = tokens.get(index++);
+        final int startOffset = Math.max(word.position, lastStartOffset);
+        final int endOffset = Math.max(word.position + word.length, startOffset);
+        termAtt.append(word.value);
+        offsetAtt.setOffset(correctOffset(startOffset), correctOffset(endOffset));
         typeAtt.setType("word");
         
+        lastStartOffset = startOffset;
         return true;
     }
     
@@ -88,17 +104,54 @@ public class JcsegTokenizer extends Tokenizer
     public void end() throws IOException
     {
         super.end();
-        final int finalOffset = correctOffset(fieldOffset);
-        offsetAtt.setOffset(finalOffset, finalOffset);
-        this.fieldOffset = 0;
+        final int offset = correctOffset(counter.count);
+        offsetAtt.setOffset(offset, offset);
     }
     
     @Override
     public void reset() throws IOException
     {
         super.reset();
-        segmentor.reset(input);
+        counter.reset(input);
+        tokens = pool.segment(type, config, counter);
+        index = 0;
         offsetAtt.setOffset(0, 0);
+        lastStartOffset = 0;
+    }
+    
+    @Override
+    public void close() throws IOException
+    {
+        super.close();
+        tokens = Collections.emptyList();
+    }
+    
+    private static class CountingReader extends Reader
+    {
+        private Reader in;
+        private int count;
+        
+        void reset(Reader in)
+        {
+            this.in = in;
+            this.count = 0;
+        }
+        
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException
+        {
+            final int n = in.read(cbuf, off, len);
+            if ( n > 0 ) {
+                count += n;
+            }
+            return n;
+        }
+        
+        @Override
+        public void close()
+        {
+            //the input is closed by tokenizer
+        }
     }
     
 }
@@ -23,6 +23,7 @@ public class JcsegTokenizerFactory extends TokenizerFactory
     public final ISegment.Type type;
     public final SegmenterConfig config;
     public final ADictionary dic;
+    public final SegmenterPool pool;
 
     /**
      * set the mode arguments in the schema.xml 
@@ -47,6 +48,7 @@ public class JcsegTokenizerFactory extends TokenizerFactory
         }
         
         dic = DictionaryFactory.createSingletonDictionary(config);
+        pool = new SegmenterPool(dic);
     }
     
     public SegmenterConfig getTaskConfig() 
@@ -62,6 +64,6 @@ public class JcsegTokenizerFactory extends TokenizerFactory
     @Override
     public Tokenizer create(AttributeFactory factory) 
     {
-    	return new JcsegTokenizer(type, config, dic);
+    	return new JcsegTokenizer(type, config, pool);
     }
 }
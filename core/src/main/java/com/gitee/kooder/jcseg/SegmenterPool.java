@@ -0,0 +1,170 @@
+package com.gitee.kooder.jcseg;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.lionsoul.jcseg.ISegment;
+import org.lionsoul.jcseg.IWord;
+import org.lionsoul.jcseg.dic.ADictionary;
+import org.lionsoul.jcseg.segmenter.SegmenterConfig;
+
+/**
+ * <p>
+ * A pool of jcseg segmenters shared by all threads.
+ * </p>
+ * 
+ * <p>
+ * jcseg sets the position of the word objects kept in the dictionary while segmenting,
+ * so concurrent segmentation over one dictionary mixes up the offsets of words.
+ * The pool is made of lanes, each lane owns a dictionary and the segmenters created on it,
+ * and a lane is used by one thread at a time. One dictionary costs about 90MB heap,
+ * lanes are loaded lazily when all lanes are busy, except the first one if its dictionary is given.
+ * </p>
+ * 
+ * @author    Winter Lau<javayou@gmail.com>
+ */
+public class SegmenterPool 
+{
+    private final int size;
+    private final Supplier<ADictionary> loader;
+    private final BlockingQueue<Lane> idle;
+    private final AtomicInteger created = new AtomicInteger(0);
+    
+    /**
+     * create a pool with only one lane over the specified dictionary
+     * 
+     * @param   dic
+    */
+    public SegmenterPool(ADictionary dic)
+    {
+        this(1, dic, null);
+    }
+    
+    /**
+     * create a pool with at most size lanes
+     * 
+     * @param   size    max number of lanes (dictionaries)
+     * @param   dic     dictionary of the first lane, null to load it on first use
+     * @param   loader  load the dictionary of the other lanes
+    */
+    public SegmenterPool(int size, ADictionary dic, Supplier<ADictionary> loader)
+    {
+        this.size   = (loader == null) ? 1 : Math.max(size, 1);
+        this.loader = loader;
+        this.idle   = new ArrayBlockingQueue<>(this.size);
+        if ( dic != null ) {
+            this.idle.add(new Lane(dic));
+            this.created.set(1);
+        }
+    }
+    
+    /**
+     * segment the whole text with exclusive segmenter, 
+     * the value, position and length of words are copied before the lane is released
+     * 
+     * @param   type
+     * @param   config
+     * @param   reader
+     * @return  List<Token>
+     * @throws  IOException
+    */
+    public List<Token> segment(ISegment.Type type, SegmenterConfig config, Reader reader) throws IOException
+    {
+        List<Token> tokens = new ArrayList<>();
+        Lane lane = acquire();
+        try {
+            ISegment seg = lane.getSegment(type, config);
+            seg.reset(reader);
+            IWord word;
+            while ( (word = seg.next()) != null ) {
+                tokens.add(new Token(word.getValue(), word.getPosition(), word.getLength()));
+            }
+        } catch ( IOException | RuntimeException e ) {
+            //the state of segmenters is unknown, drop them
+            lane.segments.clear();
+            throw e;
+        } finally {
+            idle.offer(lane);
+        }
+        
+        return tokens;
+    }
+    
+    /**
+     * get an idle lane, create a new one if all lanes are busy and the pool is not full
+     * 
+     * @return  Lane
+     * @throws  IOException
+    */
+    private Lane acquire() throws IOException
+    {
+        Lane lane = idle.poll();
+        if ( lane != null ) {
+            return lane;
+        }
+        
+        if ( created.incrementAndGet() <= size ) {
+            try {
+                return new Lane(loader.get());
+            } catch ( RuntimeException e ) {
+                created.decrementAndGet();
+                throw e;
+            }
+        }
+        
+        created.decrementAndGet();
+        try {
+            return idle.take();
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for segmenter");
+        }
+    }
+    
+    /**
+     * the word copied from jcseg
+    */
+    public static class Token
+    {
+        public final String value;
+        public final int position;
+        public final int length;
+        
+        public Token(String value, int position, int length)
+        {
+            this.value    = value;
+            this.position = position;
+            this.length   = length;
+        }
+    }
+    
+    /**
+     * a dictionary and the segmenters created on it
+    */
+    private static class Lane
+    {
+        private final ADictionary dic;
+        private final Map<SegmenterConfig, Map<ISegment.Type, ISegment>> segments = new IdentityHashMap<>();
+        
+        Lane(ADictionary dic)
+        {
+            this.dic = dic;
+        }
+        
+        ISegment getSegment(ISegment.Type type, SegmenterConfig config)
+        {
+            return segments.computeIfAbsent(config, c -> new EnumMap<>(ISegment.Type.class))
+                .computeIfAbsent(type, t -> t.factory.create(config, dic));
+        }
+    }
+}
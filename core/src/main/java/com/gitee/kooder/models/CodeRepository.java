@@ -15,6 +15,7 @@
  */
 package com.gitee.kooder.models;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.gitee.kooder.code.RepositoryManager;
 import com.gitee.kooder.core.Constants;
 import org.apache.commons.lang3.math.NumberUtils;
@@ -46,6 +47,10 @@ public class CodeRepository extends Searchable {
     private String lastCommitId;//最后提交编号
     private long   timestamp;   //状态最后更新时间
     private String status;      //最后状态
+    private long   diskSize;    //本地克隆占用的磁盘空间（字节），0 表示未克隆或已被清理
+    private long   lastAccess;  //最后一次拉取的时间
+    private String checkpointCommitId;  //正在重建索引的提交编号，重建完成后清空
+    private String checkpointPath;      //重建索引已完成的最后一个文件路径
 
     public CodeRepository(){}
 
@@ -134,6 +139,42 @@ public class CodeRepository extends Searchable {
         this.vender = vender;
     }
 
+    public long getDiskSize() {
+        return diskSize;
+    }
+
+    public void setDiskSize(long diskSize) {
+        this.diskSize = diskSize;
+    }
+
+    public long getLastAccess() {
+        return lastAccess;
+    }
+
+    public void setLastAccess(long lastAccess) {
+        this.lastAccess = lastAccess;
+    }
+
+    @JsonIgnore
+    public String getCheckpointCommitId() {
+        return checkpointCommitId;
+    }
+
+    @JsonIgnore
+    public String getCheckpointPath() {
+        return checkpointPath;
+    }
+
+    /**
+     * 记录重建索引的进度，参数为 null 时清除
+     * @param commitId
+     * @param path
+     */
+    public void setCheckpoint(String commitId, String path) {
+        this.checkpointCommitId = commitId;
+        this.checkpointPath = path;
+    }
+
     /**
      * generate lucene document
      *
@@ -154,6 +195,12 @@ public class CodeRepository extends Searchable {
         if(this.getStatus() != null)
             doc.add(new StringField(Constants.FIELD_STATUS,     this.getStatus(),     Field.Store.YES));
         doc.add(new StoredField(Constants.FIELD_TIMESTAMP,      System.currentTimeMillis()));
+        doc.add(new StoredField(Constants.FIELD_DISK_SIZE,      this.getDiskSize()));
+        doc.add(new StoredField(Constants.FIELD_LAST_ACCESS,    this.getLastAccess()));
+        if(this.getCheckpointCommitId() != null && this.getCheckpointPath() != null) {
+            doc.add(new StoredField(Constants.FIELD_CHECKPOINT_REVISION, this.getCheckpointCommitId()));
+            doc.add(new StoredField(Constants.FIELD_CHECKPOINT_PATH,     this.getCheckpointPath()));
+        }
         return doc;
     }
 
@@ -173,6 +220,9 @@ public class CodeRepository extends Searchable {
         this.setScm(doc.get(Constants.FIELD_SCM));
         this.setStatus(doc.get(Constants.FIELD_STATUS));
         this.timestamp = NumberUtils.toLong(doc.get(Constants.FIELD_TIMESTAMP), 0);
+        this.setDiskSize(NumberUtils.toLong(doc.get(Constants.FIELD_DISK_SIZE), 0));
+        this.setLastAccess(NumberUtils.toLong(doc.get(Constants.FIELD_LAST_ACCESS), 0));
+        this.setCheckpoint(doc.get(Constants.FIELD_CHECKPOINT_REVISION), doc.get(Constants.FIELD_CHECKPOINT_PATH));
         return this;
     }
 
@@ -135,9 +135,9 @@ public final class Issue extends Searchable {
         Document doc = super.newDocument();
 
         doc.add(new StringField(Constants.FIELD_IDENT,  ident,                  Field.Store.YES));
-        doc.add(new TextField(Constants.FIELD_TITLE,    title,                  Field.Store.YES));
+        super.addHighlightTextToDoc(doc, Constants.FIELD_TITLE, title);
         if(StringUtils.isNotBlank(description))
-            doc.add(new TextField(Constants.FIELD_DESC,     description,            Field.Store.YES));
+            super.addHighlightTextToDoc(doc, Constants.FIELD_DESC, description);
         doc.add(new StoredField(Constants.FIELD_URL,    url));
         doc.add(new TextField(Constants.FIELD_TAGS, String.join("\n", labels), Field.Store.NO));
 
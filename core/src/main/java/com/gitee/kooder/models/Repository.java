@@ -20,6 +20,8 @@ import com.gitee.kooder.core.Constants;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.lucene.document.*;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
 import org.gitlab4j.api.models.Project;
 import org.gitlab4j.api.models.Visibility;
 
@@ -101,11 +103,11 @@ public final class Repository extends Searchable {
     @JsonIgnore
     public Document getDocument() {
         Document doc = super.newDocument();
-        doc.add(new TextField(Constants.FIELD_NAME,     this.getName(),         Field.Store.YES));
+        super.addHighlightTextToDoc(doc, Constants.FIELD_NAME, this.getName());
         if(StringUtils.isNotBlank(this.getDisplayName()))
             doc.add(new StringField(Constants.FIELD_DISPLAY_NAME, this.getDisplayName(), Field.Store.YES));
         if(StringUtils.isNotBlank(this.getDescription()))
-            doc.add(new TextField(Constants.FIELD_DESC,     this.getDescription(),  Field.Store.YES));
+            super.addHighlightTextToDoc(doc, Constants.FIELD_DESC, this.getDescription());
         if(StringUtils.isNotBlank(this.getUrl()))
             doc.add(new StoredField(Constants.FIELD_URL,    this.getUrl()));
 
@@ -129,6 +131,8 @@ public final class Repository extends Searchable {
         super.addNumToDoc(doc, Constants.FIELD_FORK_COUNT, forksCount);
         super.addNumToDoc(doc, Constants.FIELD_CREATED_AT, createdAt);
         super.addNumToDoc(doc, Constants.FIELD_UPDATED_AT, updatedAt);
+        //仓库的静态排名，搜索时不再逐条读取 recomm 和 stars 计算
+        doc.add(new DoubleDocValuesField(Constants.FIELD_STATIC_RANK, staticRank(recomm, starsCount)));
 
         //tags
         if(tags != null)
@@ -207,6 +211,32 @@ public final class Repository extends Searchable {
         return this;
     }
 
+    /**
+     * 仓库的静态排名，与查询无关，在写入索引时计算
+     * @param recomm
+     * @param stars
+     * @return
+     */
+    public static double staticRank(double recomm, double stars) {
+        //官方推荐加权
+        if(recomm > 0)
+            return recomm * 20;
+        //Star 数加权
+        if (stars >= 100)
+            return stars / 20;
+        if (stars > 0 && stars < 10)
+            return -10;
+        return -20;
+    }
+
+    /**
+     * 仓库索引按静态排名倒序存储，按排名排序时可以提前结束收集
+     * @return
+     */
+    public static Sort getIndexSort() {
+        return new Sort(new SortField(Constants.FIELD_STATIC_RANK, SortField.Type.DOUBLE, true));
+    }
+
     public String getName() {
         return name;
     }
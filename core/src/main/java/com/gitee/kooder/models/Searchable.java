@@ -20,7 +20,11 @@ import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.lucene.document.*;
 import org.apache.lucene.facet.FacetField;
 
+import org.apache.lucene.index.IndexOptions;
+
 import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Searchable object
@@ -31,6 +35,13 @@ public abstract class Searchable implements Serializable {
     protected long id;      // object id , ex: repo id, issue id
     protected int _doc_id;      // document id
     protected float _doc_score; // document score
+    protected Map<String, String> _highlights;  // highlighted fields of search result
+
+    //需要高亮的文本字段，倒排表中保存偏移量，高亮时不必重新分词
+    private final static FieldType HIGHLIGHT_TEXT_TYPE = new FieldType(TextField.TYPE_STORED){{
+        setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+        freeze();
+    }};
 
     public long getId() {
         return id;
@@ -56,6 +67,25 @@ public abstract class Searchable implements Serializable {
         this._doc_score = _doc_score;
     }
 
+    public Map<String, String> get_highlights() {
+        return _highlights;
+    }
+
+    public void set_highlights(Map<String, String> _highlights) {
+        this._highlights = _highlights;
+    }
+
+    /**
+     * 设置某个字段的高亮结果
+     * @param field
+     * @param html
+     */
+    public void addHighlight(String field, String html) {
+        if(_highlights == null)
+            _highlights = new HashMap<>();
+        _highlights.put(field, html);
+    }
+
     protected Document newDocument() {
         Document doc = new Document();
         doc.add(new NumericDocValuesField(Constants.FIELD_ID, id));
@@ -102,6 +132,10 @@ public abstract class Searchable implements Serializable {
         doc.add(new StringField(fn,  fv, Field.Store.YES));
     }
 
+    protected void addHighlightTextToDoc(Document doc, String fn, String fv) {
+        doc.add(new Field(fn, fv, HIGHLIGHT_TEXT_TYPE));
+    }
+
     protected void addNumToDoc(Document doc, String fn, long fv) {
         doc.add(new NumericDocValuesField(fn, fv));
         doc.add(new StoredField(fn, fv));
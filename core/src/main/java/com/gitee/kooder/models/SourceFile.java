@@ -15,17 +15,17 @@
  */
 package com.gitee.kooder.models;
 
-import static com.gitee.kooder.utils.SourceFieldUtils.getSourceFieldName;
-import static com.gitee.kooder.utils.SourceFieldUtils.getSourceFieldNumber;
-
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.gitee.kooder.code.CodeFileTraveler;
 import com.gitee.kooder.core.Constants;
+import com.gitee.kooder.utils.SourceFieldUtils;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.lucene.document.*;
+import org.apache.lucene.util.BytesRef;
 
+import java.util.ArrayList;
 import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -61,6 +61,9 @@ public final class SourceFile extends Searchable {
 
     private List<CodeLine> result;  // code lines with keyword highlight
 
+    private int[] lineStarts;       // start offset of each line in indexed contents
+    private List<int[]> matchOffsets;   // [start, end) offsets of matched keywords, read from postings
+
     public SourceFile() {
     }
     public SourceFile(String vender) {
@@ -107,14 +110,16 @@ public final class SourceFile extends Searchable {
         this.name = doc.get(Constants.FIELD_FILE_NAME);
         this.url = doc.get(Constants.FIELD_URL);
         this.location = doc.get(Constants.FIELD_FILE_LOCATION);
-        int sourceFieldNumber = getSourceFieldNumber();
-        String[] sourceValues = new String[sourceFieldNumber];
-        for (int i = 0; i < sourceFieldNumber; i++) {
-            sourceValues[i] = doc.get(getSourceFieldName(i));
-        }
+        this.branch = doc.get(Constants.FIELD_BRANCH);
+        String[] sourceValues = doc.getValues(Constants.FIELD_SOURCE);
+        if(sourceValues.length == 0)
+            sourceValues = readLegacySourceValues(doc);
         if(sourceValues.length > 0) {
             this.contents = StringUtils.join(sourceValues, "");
         }
+        BytesRef lineStartsValue = doc.getBinaryValue(Constants.FIELD_LINES_STARTS);
+        if(lineStartsValue != null)
+            this.lineStarts = SourceFieldUtils.decodeLineStarts(lineStartsValue);
         this.hash = doc.get(Constants.FIELD_FILE_HASH);
         this.codeOwner = doc.get(Constants.FIELD_CODE_OWNER);
         this.language = doc.get(Constants.FIELD_LANGUAGE);
@@ -129,6 +134,22 @@ public final class SourceFile extends Searchable {
         return this;
     }
 
+    /**
+     * Read source chunks from old indexes which store them in source_0 ... source_N
+     * @param doc
+     * @return
+     */
+    private static String[] readLegacySourceValues(Document doc) {
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < SourceFieldUtils.getSourceFieldNumber(); i++) {
+            String value = doc.get(SourceFieldUtils.getSourceFieldName(i));
+            if(value == null)
+                break;
+            values.add(value);
+        }
+        return values.toArray(new String[values.size()]);
+    }
+
     /**
      * generate lucene document
      * @return
@@ -166,29 +187,16 @@ public final class SourceFile extends Searchable {
 
         if(StringUtils.isNotBlank(this.getContents())) {
             String sourceContent = this.getContents();
-            // 32766 是lucene keyword最大支持长度
-            if (sourceContent.length() < 32766) {
-                String source = sourceContent;
-                document.add(new TextField(getSourceFieldName(0), source , Field.Store.YES));
-            } else {
-                // Integer.MAX_VALUE 是lucene Array 最大长度
-                for (int offset = 0, index = 0; ; ) {
-                    // 判断是否到退出条件
-                    if(offset >= sourceContent.length()) {
-                        break;
-                    }
-                    if(index >= getSourceFieldNumber()) {
-                        log.warn("{}:{}'s source field number exceed config {}, will be truncated" ,this.repository.name, this.getLocation(), getSourceFieldNumber() );
-                        break;
-                    }
-                    // 添加文档，每个字段最大32766长度
-                    String source = StringUtils.substring(sourceContent, offset, offset + 32766);
-                    document.add(new TextField(getSourceFieldName(index), source , Field.Store.YES));
-                    // 增加offset和index，继续下一次循环
-                    offset += 32766;
-                    index++;
-                }
+            if (SourceFieldUtils.isTruncated(sourceContent))
+                log.warn("{}:{}'s source field number exceed config {}, will be truncated" ,this.repository.name, this.getLocation(), SourceFieldUtils.getSourceFieldNumber());
+            // 所有分片写入同一个多值字段，分片之间的位置间隔由 SourceCodeAnalyzer 控制
+            StringBuilder indexed = new StringBuilder();
+            for (String source : SourceFieldUtils.splitSourceChunks(sourceContent)) {
+                document.add(new Field(Constants.FIELD_SOURCE, source, SourceFieldUtils.SOURCE_FIELD_TYPE));
+                indexed.append(source);
             }
+            //行起始偏移量，用于根据匹配的偏移量直接定位代码行
+            document.add(new StoredField(Constants.FIELD_LINES_STARTS, SourceFieldUtils.encodeLineStarts(indexed.toString())));
             //文件属性
             document.add(new StoredField(Constants.FIELD_FILE_HASH, this.getHash()));
         }
@@ -360,4 +368,18 @@ public final class SourceFile extends Searchable {
     public void setResult(List<CodeLine> result) {
         this.result = result;
     }
+
+    @JsonIgnore
+    public int[] getLineStarts() {
+        return lineStarts;
+    }
+
+    @JsonIgnore
+    public List<int[]> getMatchOffsets() {
+        return matchOffsets;
+    }
+
+    public void setMatchOffsets(List<int[]> matchOffsets) {
+        this.matchOffsets = matchOffsets;
+    }
 }
@@ -0,0 +1,188 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.query;
+
+import com.gitee.kooder.core.KooderConfig;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * 分词后的搜索关键字，同一个关键字对每个分词器只分词一次，再据此生成各个字段的查询。
+ * 生成的查询与 QueryParser(AND) 解析转义后的关键字结果一致：按空白切分成多个必须匹配的子句，
+ * 每个子句中每个位置的词条必须匹配，同一位置的多个词条（同义词）生成 SynonymQuery
+ * @author Winter Lau<javayou@gmail.com>
+ */
+public class AnalyzedKey {
+
+    private final static int CACHE_SIZE = NumberUtils.toInt(KooderConfig.getProperty("query.key_cache_size"), 1000);
+
+    //热门关键字的分词结果缓存（LRU）
+    private final static Map<CacheKey, AnalyzedKey> cache = Collections.synchronizedMap(new LinkedHashMap<CacheKey, AnalyzedKey>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<CacheKey, AnalyzedKey> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    });
+
+    // clauses -> positions -> terms
+    private final List<List<List<BytesRef>>> clauses;
+
+    private AnalyzedKey(List<List<List<BytesRef>>> clauses) {
+        this.clauses = clauses;
+    }
+
+    /**
+     * 对关键字分词（不需要转义），结果会被缓存
+     * @param analyzer
+     * @param key
+     * @return
+     */
+    public static AnalyzedKey analyze(Analyzer analyzer, String key) {
+        if(CACHE_SIZE <= 0)
+            return analyzeKey(analyzer, key);
+        CacheKey ckey = new CacheKey(analyzer, key);
+        AnalyzedKey akey = cache.get(ckey);
+        if(akey == null) {
+            akey = analyzeKey(analyzer, key);
+            cache.put(ckey, akey);
+        }
+        return akey;
+    }
+
+    /**
+     * 生成指定字段的查询
+     * @param field
+     * @return
+     */
+    public Query toQuery(String field) {
+        List<Query> queries = new ArrayList<>();
+        for(List<List<BytesRef>> positions : clauses) {
+            Query query = toClauseQuery(field, positions);
+            if(query != null)
+                queries.add(query);
+        }
+        if(queries.size() == 1)
+            return queries.get(0);
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        for(Query query : queries) {
+            //same as QueryParser, nested conjunction of terms is flattened
+            if(query instanceof BooleanQuery && ((BooleanQuery)query).clauses().stream().allMatch(c -> c.getQuery() instanceof TermQuery))
+                ((BooleanQuery)query).clauses().forEach(builder::add);
+            else
+                builder.add(query, BooleanClause.Occur.MUST);
+        }
+        return builder.build();
+    }
+
+    /**
+     * 生成指定字段的加权查询
+     * @param field
+     * @param boost
+     * @return
+     */
+    public BoostQuery toQuery(String field, float boost) {
+        return new BoostQuery(toQuery(field), boost);
+    }
+
+    /**
+     * 关键字是否没有任何有效的词条
+     * @return
+     */
+    public boolean isEmpty() {
+        return clauses.stream().allMatch(List::isEmpty);
+    }
+
+    private static Query toClauseQuery(String field, List<List<BytesRef>> positions) {
+        if(positions.isEmpty())
+            return null;
+        if(positions.size() == 1)
+            return toPositionQuery(field, positions.get(0));
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        for(List<BytesRef> terms : positions)
+            builder.add(toPositionQuery(field, terms), BooleanClause.Occur.MUST);
+        return builder.build();
+    }
+
+    private static Query toPositionQuery(String field, List<BytesRef> terms) {
+        if(terms.size() == 1)
+            return new TermQuery(new Term(field, terms.get(0)));
+        SynonymQuery.Builder builder = new SynonymQuery.Builder(field);
+        terms.forEach(t -> builder.addTerm(new Term(field, t)));
+        return builder.build();
+    }
+
+    /**
+     * 按空白切分关键字（与 QueryParser 的空白字符一致），对每一段分词
+     * @param analyzer
+     * @param key
+     * @return
+     */
+    private static AnalyzedKey analyzeKey(Analyzer analyzer, String key) {
+        List<List<List<BytesRef>>> clauses = new ArrayList<>();
+        for(String text : key.split("[ \t\n\r　]+")) {
+            if(text.isEmpty())
+                continue;
+            List<List<BytesRef>> positions = new ArrayList<>();
+            try (TokenStream stream = analyzer.tokenStream(null, text)) {
+                TermToBytesRefAttribute termAtt = stream.getAttribute(TermToBytesRefAttribute.class);
+                PositionIncrementAttribute posIncAtt = stream.addAttribute(PositionIncrementAttribute.class);
+                stream.reset();
+                while(stream.incrementToken()) {
+                    if(posIncAtt.getPositionIncrement() > 0 || positions.isEmpty())
+                        positions.add(new ArrayList<>());
+                    positions.get(positions.size() - 1).add(BytesRef.deepCopyOf(termAtt.getBytesRef()));
+                }
+                stream.end();
+            } catch (IOException e) {
+                throw new QueryException("Failed to analyze \"" + text + "\"", e);
+            }
+            clauses.add(positions);
+        }
+        return new AnalyzedKey(clauses);
+    }
+
+    private static class CacheKey {
+        private final Analyzer analyzer;
+        private final String key;
+
+        CacheKey(Analyzer analyzer, String key) {
+            this.analyzer = analyzer;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof CacheKey))
+                return false;
+            CacheKey other = (CacheKey)o;
+            return analyzer == other.analyzer && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(analyzer) * 31 + key.hashCode();
+        }
+    }
+}
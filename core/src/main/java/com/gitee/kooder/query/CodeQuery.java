@@ -15,23 +15,27 @@
  */
 package com.gitee.kooder.query;
 
-import static com.gitee.kooder.utils.SourceFieldUtils.getSourceFieldName;
-
 import com.gitee.kooder.core.AnalyzerFactory;
 import com.gitee.kooder.core.Constants;
-import com.gitee.kooder.core.KooderConfig;
-import com.gitee.kooder.utils.SourceFieldUtils;
-import org.apache.commons.lang3.math.NumberUtils;
+import com.gitee.kooder.core.SearchHelper;
+import com.gitee.kooder.models.QueryResult;
+import com.gitee.kooder.models.Searchable;
+import com.gitee.kooder.models.SourceFile;
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.index.Term;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.index.*;
 import org.apache.lucene.search.*;
 import org.apache.lucene.search.spans.SpanMultiTermQueryWrapper;
 import org.apache.lucene.search.spans.SpanNearQuery;
 import org.apache.lucene.search.spans.SpanQuery;
 import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
 
-import java.util.Arrays;
-import java.util.List;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
 
 /**
  * 源码搜索
@@ -39,6 +43,26 @@ import java.util.List;
  */
 public class CodeQuery extends QueryBase {
 
+    private final static int MAX_EXPANDED_TERMS = 64;   // max index terms expanded from one keyword prefix
+
+    //列表页需要的字段，不包括源码内容
+    public final static List<String> LIST_VIEW_FIELDS = Arrays.asList(Constants.FIELD_UUID, Constants.FIELD_VENDER,
+            Constants.FIELD_URL, Constants.FIELD_BRANCH, Constants.FIELD_FILE_NAME, Constants.FIELD_FILE_LOCATION,
+            Constants.FIELD_REPO_ID, Constants.FIELD_REPO_NAME, Constants.FIELD_REPO_URL, Constants.FIELD_LANGUAGE,
+            Constants.FIELD_CODE_OWNER, Constants.FIELD_LINES_TOTAL);
+
+    private int snippetLines = 0;   // max code lines in snippet, 0 for no snippet
+
+    /**
+     * 在搜索结果中生成代码片段（匹配的代码行）
+     * @param snippetLines
+     * @return
+     */
+    public CodeQuery setSnippetLines(int snippetLines) {
+        this.snippetLines = snippetLines;
+        return this;
+    }
+
     /**
      * 索引类型
      *
@@ -67,11 +91,9 @@ public class CodeQuery extends QueryBase {
         //make up query
         builder.add(new BoostQuery(fileNameQuery, 10.0f), BooleanClause.Occur.SHOULD);
 
-        int sourceFileNumber = SourceFieldUtils.getSourceFieldNumber();
-        for (int i = 0; i < sourceFileNumber; i++) {
-            Query sourceQuery = createPhraseQuery(getSourceFieldName(i), tokens, 5);//new PhraseQuery(5, Constants.FIELD_SOURCE, tokens);
-            builder.add(sourceQuery, BooleanClause.Occur.SHOULD);
-        }
+        //source chunks are indexed in one multi-valued field, so one clause covers the whole file
+        Query sourceQuery = createPhraseQuery(Constants.FIELD_SOURCE, tokens, 5);//new PhraseQuery(5, Constants.FIELD_SOURCE, tokens);
+        builder.add(sourceQuery, BooleanClause.Occur.SHOULD);
 
         return builder.setMinimumNumberShouldMatch(1).build();
     }
@@ -100,6 +122,173 @@ public class CodeQuery extends QueryBase {
         return new SpanNearQuery(queryParts, slop,true);
     }
 
+    /**
+     * 源码内容不随其他字段一起读取，在 afterSearch 中按需读取
+     * @param searcher
+     * @param docId
+     * @return
+     * @throws IOException
+     */
+    @Override
+    protected Document loadDocument(IndexSearcher searcher, int docId) throws IOException {
+        DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor() {
+            @Override
+            public Status needsField(FieldInfo fieldInfo) {
+                if(Constants.FIELD_SOURCE.equals(fieldInfo.name))
+                    return Status.NO;
+                if(Constants.FIELD_LINES_STARTS.equals(fieldInfo.name) && snippetLines > 0)
+                    return Status.YES;
+                return (fields == null || fields.contains(fieldInfo.name)) ? Status.YES : Status.NO;
+            }
+        };
+        searcher.doc(docId, visitor);
+        return visitor.getDocument();
+    }
+
+    /**
+     * 读取源码并生成代码片段
+     * 关键字的偏移量从倒排表中读取，代码片段据此直接定位匹配行，不必扫描整个文件；
+     * 只需要代码片段时，只读取覆盖匹配行的源码分片
+     * @param searcher
+     * @param query
+     * @param result
+     * @throws IOException
+     */
+    @Override
+    protected void afterSearch(IndexSearcher searcher, Query query, QueryResult result) throws IOException {
+        boolean needContents = (fields == null || fields.contains(Constants.FIELD_SOURCE));
+        if(!needContents && snippetLines <= 0)
+            return;
+        List<String> tokens = AnalyzerFactory.getCodeAnalyzer().tokens(searchKey);
+        List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+        Map<Integer, List<BytesRef>> leafTerms = new HashMap<>();
+        for(Searchable obj : result.getObjects()) {
+            SourceFile file = (SourceFile)obj;
+            if(snippetLines > 0) {
+                LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(file.get_doc_id(), leaves));
+                Terms terms = leaf.reader().terms(Constants.FIELD_SOURCE);
+                if(terms != null && terms.hasOffsets()) {
+                    List<BytesRef> matchTerms = leafTerms.computeIfAbsent(leaf.ord, ord -> expandTerms(terms, tokens));
+                    file.setMatchOffsets(readOffsets(terms, matchTerms, file.get_doc_id() - leaf.docBase));
+                }
+            }
+            int maxChars = needContents ? Integer.MAX_VALUE : snippetEndOffset(file.getLineStarts(), file.getMatchOffsets());
+            String contents = loadContents(searcher.getIndexReader(), file.get_doc_id(), maxChars);
+            if(needContents)
+                file.setContents(contents);
+            if(snippetLines > 0)
+                file.setResult(SearchHelper.hl_lines(contents, file.getLineStarts(), file.getMatchOffsets(), searchKey, snippetLines));
+        }
+    }
+
+    /**
+     * 代码片段所需源码的结束位置（包括补充显示的代码行）
+     * @param lineStarts
+     * @param offsets
+     * @return
+     */
+    private int snippetEndOffset(int[] lineStarts, List<int[]> offsets) {
+        if(lineStarts == null || offsets == null || offsets.isEmpty())
+            return Integer.MAX_VALUE;
+        int lines = 0, lastLine = -1;
+        for(int i = 0; i < offsets.size() && lines < snippetLines; i++) {
+            int line = Arrays.binarySearch(lineStarts, offsets.get(i)[0]);
+            line = (line >= 0) ? line : -line - 2;
+            if(line != lastLine) {
+                lines ++;
+                lastLine = line;
+            }
+        }
+        int endLine = lastLine + snippetLines / 3 + 1;
+        return (endLine < lineStarts.length) ? lineStarts[endLine] : Integer.MAX_VALUE;
+    }
+
+    /**
+     * 读取源码分片，读够 maxChars 个字符后停止
+     * @param reader
+     * @param docId
+     * @param maxChars
+     * @return
+     * @throws IOException
+     */
+    private static String loadContents(IndexReader reader, int docId, int maxChars) throws IOException {
+        StringBuilder contents = new StringBuilder();
+        reader.document(docId, new StoredFieldVisitor() {
+            @Override
+            public Status needsField(FieldInfo fieldInfo) {
+                if(contents.length() >= maxChars)
+                    return Status.STOP;
+                return Constants.FIELD_SOURCE.equals(fieldInfo.name) ? Status.YES : Status.NO;
+            }
+
+            @Override
+            public void stringField(FieldInfo fieldInfo, byte[] value) {
+                contents.append(new String(value, StandardCharsets.UTF_8));
+            }
+        });
+        return contents.toString();
+    }
+
+    /**
+     * 展开关键字对应的索引词条（与查询一致，多于一个字符的关键字按前缀匹配）
+     * @param terms
+     * @param tokens
+     * @return
+     */
+    private static List<BytesRef> expandTerms(Terms terms, List<String> tokens) {
+        List<BytesRef> matchTerms = new ArrayList<>();
+        try {
+            TermsEnum te = terms.iterator();
+            for(String token : tokens) {
+                BytesRef prefix = new BytesRef(token);
+                if(token.length() == 1) {
+                    if(te.seekExact(prefix))
+                        matchTerms.add(prefix);
+                    continue;
+                }
+                int count = 0;
+                if(te.seekCeil(prefix) == TermsEnum.SeekStatus.END)
+                    continue;
+                do {
+                    if(!StringHelper.startsWith(te.term(), prefix))
+                        break;
+                    matchTerms.add(BytesRef.deepCopyOf(te.term()));
+                } while(++count < MAX_EXPANDED_TERMS && te.next() != null);
+            }
+        } catch (IOException e) {
+            log.error("Failed to expand terms of " + tokens, e);
+        }
+        return matchTerms;
+    }
+
+    /**
+     * 读取词条在文档中的偏移量
+     * @param terms
+     * @param matchTerms
+     * @param docId  doc id in leaf
+     * @return sorted [start, end) offsets
+     * @throws IOException
+     */
+    private static List<int[]> readOffsets(Terms terms, List<BytesRef> matchTerms, int docId) throws IOException {
+        List<int[]> offsets = new ArrayList<>();
+        TermsEnum te = terms.iterator();
+        PostingsEnum postings = null;
+        for(BytesRef term : matchTerms) {
+            if(!te.seekExact(term))
+                continue;
+            postings = te.postings(postings, PostingsEnum.OFFSETS);
+            if(postings.advance(docId) != docId)
+                continue;
+            for(int i = 0; i < postings.freq(); i++) {
+                postings.nextPosition();
+                if(postings.startOffset() >= 0)
+                    offsets.add(new int[]{postings.startOffset(), postings.endOffset()});
+            }
+        }
+        offsets.sort(Comparator.comparingInt(o -> o[0]));
+        return offsets;
+    }
+
     /**
      * 构建排序对象
      *
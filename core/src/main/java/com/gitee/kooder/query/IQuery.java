@@ -19,6 +19,7 @@ import com.gitee.kooder.models.QueryResult;
 import com.gitee.kooder.models.Searchable;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -68,6 +69,20 @@ public interface IQuery {
      */
     IQuery setPageSize(int pageSize);
 
+    /**
+     * 只读取指定的存储字段，为空则读取全部字段
+     * @param fields
+     * @return
+     */
+    IQuery setFields(Collection<String> fields);
+
+    /**
+     * 是否统计分类数据，不统计时搜索可以提前结束，总数只精确统计到一定数量
+     * @param countFacets
+     * @return
+     */
+    IQuery setCountFacets(boolean countFacets);
+
     /**
      * 添加扩展属性
      * @param name
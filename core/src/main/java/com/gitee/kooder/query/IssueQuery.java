@@ -22,6 +22,9 @@ import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.*;
 
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * Issue 搜索
  * @author Winter Lau<javayou@gmail.com>
@@ -47,6 +50,15 @@ public class IssueQuery extends QueryBase {
         return new Sort(new SortField(Constants.FIELD_CREATED_AT, SortField.Type.LONG, true));
     }
 
+    /**
+     * list fields to highlight
+     * @return
+     */
+    @Override
+    protected List<String> listHighlightFields() {
+        return Arrays.asList(Constants.FIELD_TITLE, Constants.FIELD_DESC);
+    }
+
     /**
      * 构建查询对象
      *
@@ -62,7 +74,8 @@ public class IssueQuery extends QueryBase {
                 throw new QueryException("Failed to parse \""+searchKey+"\"", e);
             }
         }
-        String q = QueryParser.escape(searchKey);
+        //关键字只分词一次，各字段的查询共用分词结果
+        String q = searchKey;
         BooleanQuery.Builder builder = new BooleanQuery.Builder();
         //filter
         //search
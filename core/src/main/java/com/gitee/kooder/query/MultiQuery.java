@@ -0,0 +1,135 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.query;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.gitee.kooder.index.IndexManager;
+import com.gitee.kooder.models.QueryResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 在一次请求中并发执行多个查询（仓库、Issue、代码）
+ * @author Winter Lau<javayou@gmail.com>
+ */
+public class MultiQuery {
+
+    private final static Logger log = LoggerFactory.getLogger(MultiQuery.class);
+
+    private final static AtomicInteger threadIndex = new AtomicInteger(0);
+    //所有多重查询共享的搜索线程池
+    private final static ExecutorService executor = Executors.newFixedThreadPool(IndexManager.SEARCH_THREAD_COUNT, r -> {
+        Thread t = new Thread(r, "search-" + threadIndex.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+
+    private Map<String, IQuery> queries = new LinkedHashMap<>();
+
+    /**
+     * 添加查询，名称重复时抛出 IllegalArgumentException
+     * @param name  section name in response
+     * @param query
+     * @return
+     */
+    public MultiQuery add(String name, IQuery query) {
+        if(queries.putIfAbsent(name, query) != null)
+            throw new IllegalArgumentException("Duplicate query name: " + name);
+        return this;
+    }
+
+    /**
+     * 是否已经添加了同名的查询
+     * @param name
+     * @return
+     */
+    public boolean contains(String name) {
+        return queries.containsKey(name);
+    }
+
+    /**
+     * 提交所有查询，按添加顺序返回每个查询的执行结果
+     * @return
+     */
+    public Map<String, CompletableFuture<Section>> execute() {
+        Map<String, CompletableFuture<Section>> results = new LinkedHashMap<>();
+        queries.forEach((name, query) -> results.put(name, CompletableFuture.supplyAsync(() -> {
+            long ct = System.currentTimeMillis();
+            Section section = new Section(name);
+            try {
+                section.setResult(query.execute());
+            } catch (Exception e) {
+                log.error("Failed to execute query <" + name + ">", e);
+                section.setError(e.getMessage());
+            }
+            section.setTimeUsed(System.currentTimeMillis() - ct);
+            return section;
+        }, executor)));
+        return results;
+    }
+
+    /**
+     * 单个查询的执行结果
+     */
+    public static class Section {
+
+        private String name;
+        private long timeUsed;  // search and post-processing time in ms
+        private QueryResult result;
+        private String error;
+
+        public Section(String name) {
+            this.name = name;
+        }
+
+        @JsonIgnore
+        public String getName() {
+            return name;
+        }
+
+        public long getTimeUsed() {
+            return timeUsed;
+        }
+
+        public void setTimeUsed(long timeUsed) {
+            this.timeUsed = timeUsed;
+        }
+
+        public QueryResult getResult() {
+            return result;
+        }
+
+        public void setResult(QueryResult result) {
+            this.result = result;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public void setError(String error) {
+            this.error = error;
+        }
+    }
+
+}
@@ -17,10 +17,12 @@ package com.gitee.kooder.query;
 
 import com.gitee.kooder.core.AnalyzerFactory;
 import com.gitee.kooder.core.Constants;
+import com.gitee.kooder.core.KooderConfig;
 import com.gitee.kooder.models.QueryResult;
 import com.gitee.kooder.models.Searchable;
 import com.gitee.kooder.storage.StorageFactory;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.LongPoint;
@@ -34,10 +36,12 @@ import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.*;
 import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.search.uhighlight.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.text.BreakIterator;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -51,6 +55,12 @@ public abstract class QueryBase implements IQuery {
 
     public final static FacetsConfig facetsConfig = new FacetsConfig();
 
+    //描述高亮后截取的片段长度，0 表示返回完整的描述
+    private final static int HIGHLIGHT_FRAGMENT_LENGTH = NumberUtils.toInt(KooderConfig.getProperty("query.desc_fragment_length"), 0);
+    private final static float HIGHLIGHT_FRAGMENT_ALIGNMENT = 0f;  //片段从第一个匹配处开始
+    private final static int TOTAL_HITS_THRESHOLD = 1000;   //不统计分类数据时，总数精确统计的上限
+    private final static PassageFormatter highlightFormatter = new DefaultPassageFormatter("<em class='highlight'>", "</em>", "... ", true);
+
     private int enterpriseId = 0;                           // Search in Enterprise
     private List<Long> repositories = new ArrayList(); // Search in repositories
     protected String searchKey;                             // Search Keyword
@@ -60,6 +70,8 @@ public abstract class QueryBase implements IQuery {
     protected int pageSize = 20;                            // Search result page size
     protected Map<String, String[]> facets = new HashMap(); // Search with facets
     protected List<Query> filters = new ArrayList();      // Search filters
+    protected Set<String> fields;                           // Stored fields to load, null for all fields
+    protected boolean countFacets = true;                   // Count facets of all hits ?
 
     /**
      * Get max object indexed .
@@ -142,11 +154,15 @@ public abstract class QueryBase implements IQuery {
             if(getSimilarity() != null)
                 searcher.setSimilarity(getSimilarity());
 
-            TaxonomyReader taxoReader = StorageFactory.getTaxonomyReader(this.type());
-            // Aggregates the facet values
-            FacetsCollector fc = new FacetsCollector(false);
-            //如果 n 传 0 ，则 search 方法 100% 报 ClassCastException 异常，这是 Lucene 的 bug
-            TopDocs docs = FacetsCollector.search(searcher, thisQuery, page * pageSize, sort,true, fc); //fetch all facets
+            List<String> facetFields = countFacets ? this.listFacetFields() : Collections.emptyList();
+            FacetsCollector fc = null;
+            TopDocs docs = null;
+            if(facetFields.size() > 0) {
+                // Aggregates the facet values
+                fc = new FacetsCollector(false);
+                //如果 n 传 0 ，则 search 方法 100% 报 ClassCastException 异常，这是 Lucene 的 bug
+                docs = FacetsCollector.search(searcher, thisQuery, page * pageSize, sort,true, fc); //fetch all facets
+            }
 
             if( needFacetQuery ) {
                 BooleanQuery.Builder builder = new BooleanQuery.Builder();
@@ -160,6 +176,8 @@ public abstract class QueryBase implements IQuery {
                 //TopDocs docs = FacetsCollector.search(searcher, thisQuery, page * pageSize, sort,true, new FacetsCollector(false));
                 docs = searcher.search(thisQuery, page * pageSize, sort,true);
             }
+            else if(docs == null) //不统计分类数据时不必收集所有结果，排序与索引排序一致时（例如仓库按 rank 排序）可以提前结束
+                docs = searchTopDocs(searcher, thisQuery, sort);
 
             int totalPages = (int) Math.ceil(docs.totalHits.value / (double) pageSize);
 
@@ -171,14 +189,16 @@ public abstract class QueryBase implements IQuery {
             result.setTimeUsed(System.currentTimeMillis() - ct);
             result.setQuery(thisQuery.toString());
 
-            for(int i = (page-1) * pageSize; i < page * pageSize && i < docs.totalHits.value ; i++) {
-                Document doc = searcher.doc(docs.scoreDocs[i].doc);
+            for(int i = (page-1) * pageSize; i < page * pageSize && i < docs.scoreDocs.length ; i++) {
+                Document doc = loadDocument(searcher, docs.scoreDocs[i].doc);
                 result.addDocument(doc, docs.scoreDocs[i]);
             }
 
+            this.afterSearch(searcher, query, result);
+
             //read facets
-            List<String> facetFields = this.listFacetFields();
-            if(facetFields.size() > 0) {
+            if(fc != null) {
+                TaxonomyReader taxoReader = StorageFactory.getTaxonomyReader(this.type());
                 Facets facets = new FastTaxonomyFacetCounts(taxoReader, facetsConfig, fc);
 
                 for (String facetField : facetFields) {
@@ -196,6 +216,83 @@ public abstract class QueryBase implements IQuery {
         return result;
     }
 
+    /**
+     * Search top hits of current page without collecting all hits,
+     * total hits is accurate up to TOTAL_HITS_THRESHOLD
+     * @param searcher
+     * @param query
+     * @param sort
+     * @return
+     * @throws IOException
+     */
+    private TopDocs searchTopDocs(IndexSearcher searcher, Query query, Sort sort) throws IOException {
+        int numHits = page * pageSize;
+        int threshold = Math.max(TOTAL_HITS_THRESHOLD, numHits);
+        if(sort == null || sort == Sort.RELEVANCE) {
+            TopScoreDocCollector collector = TopScoreDocCollector.create(numHits, threshold);
+            searcher.search(query, collector);
+            return collector.topDocs();
+        }
+        sort = sort.rewrite(searcher);
+        TopFieldCollector collector = TopFieldCollector.create(sort, numHits, threshold);
+        searcher.search(query, collector);
+        TopFieldDocs docs = collector.topDocs();
+        TopFieldCollector.populateScores(docs.scoreDocs, searcher, query);
+        return docs;
+    }
+
+    /**
+     * Load stored fields of hit, only the projected fields if specified
+     * @param searcher
+     * @param docId
+     * @return
+     * @throws IOException
+     */
+    protected Document loadDocument(IndexSearcher searcher, int docId) throws IOException {
+        return (fields == null) ? searcher.doc(docId) : searcher.doc(docId, fields);
+    }
+
+    /**
+     * Read extra information of hits before the index reader closed,
+     * default to highlight fields of the whole page in bulk
+     * @param searcher
+     * @param query
+     * @param result
+     * @throws IOException
+     */
+    protected void afterSearch(IndexSearcher searcher, Query query, QueryResult result) throws IOException {
+        List<String> fields = this.listHighlightFields();
+        if(fields.isEmpty() || result.getObjects().isEmpty())
+            return;
+        int[] docIds = result.getObjects().stream().mapToInt(Searchable::get_doc_id).toArray();
+        int[] maxPassages = new int[fields.size()];
+        Arrays.fill(maxPassages, 1);
+        UnifiedHighlighter highlighter = new UnifiedHighlighter(searcher, getAnalyzer(true)) {
+            @Override
+            protected BreakIterator getBreakIterator(String field) {
+                return (HIGHLIGHT_FRAGMENT_LENGTH > 0 && Constants.FIELD_DESC.equals(field))
+                        ? LengthGoalBreakIterator.createClosestToLength(BreakIterator.getSentenceInstance(Locale.ROOT), HIGHLIGHT_FRAGMENT_LENGTH, HIGHLIGHT_FRAGMENT_ALIGNMENT)
+                        : new WholeBreakIterator();
+            }
+        };
+        highlighter.setFormatter(highlightFormatter);
+        Map<String, String[]> highlights = highlighter.highlightFields(fields.toArray(new String[0]), query, docIds, maxPassages);
+        highlights.forEach((field, values) -> {
+            for(int i = 0; i < values.length; i++) {
+                if(values[i] != null)
+                    result.getObjects().get(i).addHighlight(field, values[i]);
+            }
+        });
+    }
+
+    /**
+     * list fields to highlight
+     * @return
+     */
+    protected List<String> listHighlightFields() {
+        return Collections.emptyList();
+    }
+
     /**
      * Build query according to user key
      * @return
@@ -295,6 +392,28 @@ public abstract class QueryBase implements IQuery {
         return this;
     }
 
+    /**
+     * 字段投影
+     * @param fields
+     * @return
+     */
+    @Override
+    public IQuery setFields(Collection<String> fields) {
+        this.fields = (fields == null || fields.isEmpty()) ? null : new HashSet<>(fields);
+        return this;
+    }
+
+    /**
+     * 是否统计分类数据
+     * @param countFacets
+     * @return
+     */
+    @Override
+    public IQuery setCountFacets(boolean countFacets) {
+        this.countFacets = countFacets;
+        return this;
+    }
+
     public int getEnterpriseId() {
         return enterpriseId;
     }
@@ -371,29 +490,24 @@ public abstract class QueryBase implements IQuery {
     }
 
     /**
-     * Build a query for one document field with boost
+     * Build a query for one document field with boost,
+     * the key is analyzed once and shared by queries of all fields
      * @param field
-     * @param q
+     * @param q  search key, not escaped
      * @param boost
      * @return
      */
     protected BoostQuery makeBoostQuery(String field, String q, float boost) {
-        QueryParser parser = new QueryParser(field, getAnalyzer(false));
-        parser.setDefaultOperator(QueryParser.Operator.AND);
-        try {
-            return new BoostQuery(parser.parse(q), boost);
-        } catch (ParseException e) {
-            throw new QueryException(String.format("Failed to build field query(%s,%s,%.2f)", field, q, boost), e);
-        }
+        return AnalyzedKey.analyze(getAnalyzer(false), q).toQuery(field, boost);
     }
 
     /**
      * 自定义分词器
-     * @param forIndex
+     * @param forIndex  true:按索引时的方式分析文档内容（高亮），false:分析搜索关键字
      * @return
      */
     protected Analyzer getAnalyzer(boolean forIndex) {
-        return AnalyzerFactory.getInstance(false);
+        return forIndex ? AnalyzerFactory.getDocumentInstance() : AnalyzerFactory.getInstance(false);
     }
 
 }
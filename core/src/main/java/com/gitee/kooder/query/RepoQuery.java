@@ -17,6 +17,7 @@ package com.gitee.kooder.query;
 
 import com.gitee.kooder.core.AnalyzerFactory;
 import com.gitee.kooder.core.Constants;
+import com.gitee.kooder.models.Repository;
 import org.apache.lucene.document.IntPoint;
 import org.apache.lucene.document.LongPoint;
 import org.apache.lucene.expressions.Expression;
@@ -40,21 +41,8 @@ public class RepoQuery extends QueryBase {
 
     public final static int SCORE_FACTOR = 6;
 
-    private HashMap<String, Method> scoreMethods;
-    private static Expression repoScoreExpr;
-
-    public RepoQuery() {
-        scoreMethods = new HashMap();
-        try {
-            scoreMethods.putAll(JavascriptCompiler.DEFAULT_FUNCTIONS);
-            scoreMethods.put("gsort", getClass().getDeclaredMethod("sort", double.class, double.class, double.class, double.class));
-            repoScoreExpr = JavascriptCompiler.compile("gsort($score,$recomm,$stars,$gindex)", scoreMethods, getClass().getClassLoader());
-        } catch (NoSuchMethodException e) {
-            e.printStackTrace();
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-        }
-    }
+    //排序表达式只需编译一次，所有查询共享
+    private final static DoubleValuesSource repoScoreSource = compileRepoScoreExpression();
 
     @Override
     public String type() {
@@ -73,7 +61,16 @@ public class RepoQuery extends QueryBase {
     @Override
     protected Query buildQuery() {
         Query query = super.buildQuery();
-        return new FunctionScoreQuery(query, getRepoScoreExpression());
+        return new FunctionScoreQuery(query, repoScoreSource);
+    }
+
+    /**
+     * list fields to highlight
+     * @return
+     */
+    @Override
+    protected List<String> listHighlightFields() {
+        return Arrays.asList(Constants.FIELD_NAME, Constants.FIELD_DESC);
     }
 
     /**
@@ -91,7 +88,8 @@ public class RepoQuery extends QueryBase {
                 throw new QueryException("Failed to parse \""+searchKey+"\"", e);
             }
         }
-        String q = QueryParser.escape(searchKey);
+        //关键字只分词一次，各字段的查询共用分词结果
+        String q = searchKey;
 
         BooleanQuery.Builder builder = new BooleanQuery.Builder();
         //只搜索公开仓库
@@ -143,16 +141,22 @@ public class RepoQuery extends QueryBase {
     }
 
     /**
-     * custom query score
+     * custom query score, use the static rank written at index time
      * @return
      */
-    private DoubleValuesSource getRepoScoreExpression() {
-        SimpleBindings bindings = new SimpleBindings();
-        bindings.add("$score", DoubleValuesSource.SCORES);
-        bindings.add("$recomm", DoubleValuesSource.fromIntField(Constants.FIELD_RECOMM));
-        bindings.add("$stars", DoubleValuesSource.fromIntField(Constants.FIELD_STAR_COUNT));
-        bindings.add("$gindex", DoubleValuesSource.fromIntField(Constants.FIELD_G_INDEX));
-        return repoScoreExpr.getDoubleValuesSource(bindings);
+    private static DoubleValuesSource compileRepoScoreExpression() {
+        try {
+            HashMap<String, Method> scoreMethods = new HashMap<>(JavascriptCompiler.DEFAULT_FUNCTIONS);
+            scoreMethods.put("gsort", RepoQuery.class.getDeclaredMethod("sort", double.class, double.class));
+            Expression repoScoreExpr = JavascriptCompiler.compile("gsort($score,$srank)", scoreMethods, RepoQuery.class.getClassLoader());
+            SimpleBindings bindings = new SimpleBindings();
+            bindings.add("$score", DoubleValuesSource.SCORES);
+            bindings.add("$srank", DoubleValuesSource.fromDoubleField(Constants.FIELD_STATIC_RANK));
+            return repoScoreExpr.getDoubleValuesSource(bindings);
+        } catch (NoSuchMethodException | java.text.ParseException e) {
+            log.error("Failed to compile repository score expression", e);
+            return DoubleValuesSource.SCORES;
+        }
     }
 
     /**
@@ -161,6 +165,8 @@ public class RepoQuery extends QueryBase {
      */
     @Override
     protected Sort buildSort() {
+        if("rank".equals(sort))
+            return Repository.getIndexSort();
         if("stars".equals(sort))
             return new Sort(new SortedNumericSortField(Constants.FIELD_STAR_COUNT, SortField.Type.LONG, true));
         if("forks".equals(sort))
@@ -173,25 +179,12 @@ public class RepoQuery extends QueryBase {
     /**
      * 自定义仓库的搜索评分规则（该方法提供给 Lucene 调用，所以必须是 public static 方法）
      * @param score
-     * @param recomm
-     * @param stars
-     * @param gindex
+     * @param rank  static rank, see Repository.staticRank
      * @return
      */
-    public static double sort(double score, double recomm, double stars, double gindex) {
+    public static double sort(double score, double rank) {
         if(score >= SCORE_FACTOR) {
-            //官方推荐加权
-            if(recomm > 0)
-                score += (recomm * 20);
-            else {
-                //Star 数加权
-                if (stars >= 100)
-                    score += stars / 20;
-                else if (stars > 0 && stars < 10)
-                    score -= 10;
-                else
-                    score -= 20;
-            }
+            score += rank;
             while(score < SCORE_FACTOR)
                 score += 1;
         }
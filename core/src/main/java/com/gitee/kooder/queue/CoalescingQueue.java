@@ -0,0 +1,216 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.queue;
+
+import com.gitee.kooder.models.Searchable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * 合并同一仓库的代码任务：从队列中取出的任务先按仓库 id 暂存，在 debounce 时间内没有新任务的仓库才会被返回，
+ * 同一仓库的多次推送只需要拉取一次，暂存时间最长不超过 debounce 的 10 倍
+ * 底层队列启用租约时，合并后的任务全部确认之后才确认对应的底层任务
+ * @author Winter Lau<javayou@gmail.com>
+ */
+public class CoalescingQueue implements Queue {
+
+    private final static Logger log = LoggerFactory.getLogger(CoalescingQueue.class);
+
+    private final static int MIN_DRAIN_COUNT = 100;    //每次从底层队列中取出的最少任务数
+
+    private final Queue queue;
+    private final long debounce;
+    private final long maxDelay;
+    private final Map<Long, PendingTask> pendingTasks = new LinkedHashMap<>();   //repo id -> task
+    private final Map<QueueTask, List<SourceTask>> deliveredTasks = new IdentityHashMap<>(); //已返回的任务 -> 底层任务
+
+    /**
+     * @param queue  底层队列
+     * @param debounce  合并任务的等待时间（毫秒）
+     */
+    public CoalescingQueue(Queue queue, long debounce) {
+        this.queue = queue;
+        this.debounce = debounce;
+        this.maxDelay = debounce * 10;
+    }
+
+    @Override
+    public String type() {
+        return queue.type();
+    }
+
+    @Override
+    public void push(Collection<QueueTask> tasks) {
+        queue.push(tasks);
+    }
+
+    /**
+     * 返回已到期的任务，每个任务只包含一个仓库，同一仓库只保留最后一次的动作和仓库信息
+     * @param count
+     * @return
+     */
+    @Override
+    public synchronized List<QueueTask> pop(int count) {
+        long now = System.currentTimeMillis();
+        for(QueueTask task : queue.pop(Math.max(count, MIN_DRAIN_COUNT))) {
+            SourceTask source = new SourceTask(task);
+            if(source.remaining == 0)
+                queue.ack(task);
+            for(Searchable obj : task.getObjects()) {
+                QueueTask single = new QueueTask();
+                single.setType(task.getType());
+                single.setAction(task.getAction());
+                single.addObject(obj);
+                PendingTask pending = pendingTasks.get(obj.getId());
+                if(pending == null)
+                    pendingTasks.put(obj.getId(), pending = new PendingTask(single, now));
+                else {
+                    pending.task = single;
+                    pending.lastSeen = now;
+                }
+                pending.sources.add(source);
+            }
+        }
+
+        List<QueueTask> tasks = new ArrayList<>();
+        Iterator<PendingTask> iter = pendingTasks.values().iterator();
+        while(tasks.size() < count && iter.hasNext()) {
+            PendingTask pending = iter.next();
+            if(now - pending.lastSeen >= debounce || now - pending.firstSeen >= maxDelay) {
+                tasks.add(pending.task);
+                iter.remove();
+                if(pending.sources.stream().anyMatch(source -> source.task.getLeaseId() != null))
+                    deliveredTasks.put(pending.task, pending.sources);
+            }
+        }
+        return tasks;
+    }
+
+    /**
+     * 底层任务中的所有仓库都确认后才确认底层任务，被合并掉的旧任务随之确认
+     * @param task
+     */
+    @Override
+    public synchronized void ack(QueueTask task) {
+        List<SourceTask> sources = deliveredTasks.remove(task);
+        if(sources != null) {
+            for(SourceTask source : sources) {
+                if(--source.remaining == 0 && !source.done) {
+                    source.done = true;
+                    queue.ack(source.task);
+                }
+            }
+        }
+    }
+
+    /**
+     * 底层任务放回队列，其中已经处理过的仓库会被再次处理
+     * @param task
+     */
+    @Override
+    public synchronized void nack(QueueTask task) {
+        List<SourceTask> sources = deliveredTasks.remove(task);
+        if(sources != null) {
+            for(SourceTask source : sources) {
+                source.remaining--;
+                if(!source.done) {
+                    source.done = true;
+                    queue.nack(source.task);
+                }
+            }
+        }
+    }
+
+    /**
+     * 距离最早到期的暂存任务的时间
+     * @return 单位毫秒，没有暂存任务时返回 -1
+     */
+    public synchronized long nextDueDelay() {
+        long now = System.currentTimeMillis();
+        long due = -1;
+        for(PendingTask pending : pendingTasks.values()) {
+            long delay = Math.max(0, Math.min(pending.lastSeen + debounce, pending.firstSeen + maxDelay) - now);
+            if(due < 0 || delay < due)
+                due = delay;
+        }
+        return due;
+    }
+
+    /**
+     * 暂存的任务数
+     * @return
+     */
+    public synchronized int pendingCount() {
+        return pendingTasks.size();
+    }
+
+    /**
+     * 暂存的任务放回底层队列，避免关闭时丢失：启用租约的底层任务放回队列，否则重新推送合并后的任务
+     */
+    @Override
+    public synchronized void close() {
+        List<QueueTask> tasks = new ArrayList<>();
+        for(PendingTask pending : pendingTasks.values()) {
+            if(pending.sources.stream().anyMatch(source -> source.task.getLeaseId() != null)) {
+                for(SourceTask source : pending.sources) {
+                    if(!source.done) {
+                        source.done = true;
+                        queue.nack(source.task);
+                    }
+                }
+            }
+            else
+                tasks.add(pending.task);
+        }
+        pendingTasks.clear();
+        try {
+            if(tasks.size() > 0)
+                queue.push(tasks);
+            queue.close();
+        } catch (Exception e) {
+            log.error("Failed to close queue<" + type() + ">, " + tasks.size() + " pending tasks lost.", e);
+        }
+    }
+
+    private static class PendingTask {
+        private QueueTask task;
+        private final long firstSeen;
+        private long lastSeen;
+        private final List<SourceTask> sources = new ArrayList<>();
+
+        PendingTask(QueueTask task, long now) {
+            this.task = task;
+            this.firstSeen = now;
+            this.lastSeen = now;
+        }
+    }
+
+    /**
+     * 从底层队列取出的任务，拆分后的每个仓库对应一个计数
+     */
+    private static class SourceTask {
+        private final QueueTask task;
+        private int remaining;      //尚未确认的仓库数
+        private boolean done;       //已经确认或者放回队列
+
+        SourceTask(QueueTask task) {
+            this.task = task;
+            this.remaining = task.getObjects().size();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.queue;
+
+import com.gitee.kooder.core.Constants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+/**
+ * 代码任务使用 CoalescingQueue 合并，其他类型的任务直接使用底层队列
+ * @author Winter Lau<javayou@gmail.com>
+ */
+public class CoalescingQueueProvider implements QueueProvider {
+
+    private final static Logger log = LoggerFactory.getLogger(CoalescingQueueProvider.class);
+
+    private final QueueProvider provider;
+    private final CoalescingQueue codeQueue;
+
+    public CoalescingQueueProvider(QueueProvider provider, long debounce) {
+        this.provider = provider;
+        this.codeQueue = new CoalescingQueue(provider.queue(Constants.TYPE_CODE), debounce);
+    }
+
+    @Override
+    public String name() {
+        return provider.name();
+    }
+
+    @Override
+    public List<String> getAllTypes() {
+        return provider.getAllTypes();
+    }
+
+    @Override
+    public Queue queue(String type) {
+        return Constants.TYPE_CODE.equals(type) ? codeQueue : provider.queue(type);
+    }
+
+    /**
+     * 有暂存的代码任务时，最多等到最早的任务到期
+     * @param timeout  最长等待时间，单位毫秒
+     * @throws InterruptedException
+     */
+    @Override
+    public void await(long timeout) throws InterruptedException {
+        long due = codeQueue.nextDueDelay();
+        if(due != 0)
+            provider.await((due > 0) ? Math.min(timeout, due) : timeout);
+    }
+
+    @Override
+    public int requeueExpired() {
+        return provider.requeueExpired();
+    }
+
+    /**
+     * 先将暂存的代码任务放回底层队列再关闭底层队列
+     */
+    @Override
+    public void close() {
+        codeQueue.close();
+        try {
+            provider.close();
+        } catch (Exception e) {
+            log.error("Failed to close queue provider: " + provider.name(), e);
+        }
+    }
+}
@@ -22,10 +22,15 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 实现 Gitee Search 内嵌式的队列，不依赖第三方服务，通过 HTTP 方式提供对象获取
@@ -37,8 +42,21 @@ public class EmbedQueueProvider implements QueueProvider {
 
     private Map<String, FileQueue<QueueTask>> fileQueues = new ConcurrentHashMap<>();
 
+    private final Object signal = new Object();
+    private boolean signalled = false;  //上一次 await 之后是否有新任务
+
+    private long leaseTimeout;      //任务租约时长，单位毫秒，0 表示 pop 时直接删除任务
+    private int maxDeliveries;      //启用租约时同一任务的最大投递次数，超出后移入死信目录
+    private Path leasePath;         //处理中的任务，每个任务一个文件，进程崩溃后启动时重新放回队列
+    private Path deadPath;          //投递次数超出上限的任务
+    private Map<String, Lease> leases = new ConcurrentHashMap<>();      //lease id -> lease
+    private AtomicLong leaseSequence = new AtomicLong();
+    private volatile ScheduledExecutorService leaseRenewer;    //定期为处理中的任务续约
+    private boolean jsonCodec;      //使用旧版本的 json 格式保存任务，读取时两种格式都支持
+
     public EmbedQueueProvider(Properties props) {
         int batch_size = NumberUtils.toInt(props.getProperty("embed.batch_size", "10000"), 10000);
+        this.jsonCodec = "json".equalsIgnoreCase(props.getProperty("codec"));
 
         Path path = checkoutPath(KooderConfig.getPath(props.getProperty("embed.path")));
         for(String type : getAllTypes()) {
@@ -47,8 +65,42 @@ public class EmbedQueueProvider implements QueueProvider {
                     .folder(typePath)
                     .restoreFromDisk(true)
                     .batchSize(batch_size)
+                    .serializer(this::encode)
+                    .deserializer(QueueTaskCodec::decode)
                     .build());
         }
+
+        this.leaseTimeout = NumberUtils.toLong(props.getProperty("lease_timeout"), 0) * 1000;
+        this.maxDeliveries = NumberUtils.toInt(props.getProperty("max_deliveries"), 5);
+        if(leaseTimeout > 0) {
+            this.leasePath = checkoutPath(path.resolve("inflight"));
+            this.deadPath = checkoutPath(path.resolve("dead"));
+            for(String type : getAllTypes())
+                restoreLeases(type);
+        }
+    }
+
+    /**
+     * 上次运行时未确认的任务重新放回队列
+     * @param type
+     */
+    private void restoreLeases(String type) {
+        Path typePath = checkoutPath(leasePath.resolve(type));
+        int count = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(typePath)) {
+            for(Path file : files) {
+                QueueTask task = QueueTaskCodec.decode(Files.readAllBytes(file));
+                if(task != null) {
+                    fileQueues.get(type).add(task);
+                    count++;
+                }
+                Files.delete(file);
+            }
+        } catch (IOException e) {
+            log.error("Failed to restore unacknowledged tasks from '{}'", typePath, e);
+        }
+        if(count > 0)
+            log.warn("{} unacknowledged tasks<{}> requeued.", count, type);
     }
 
     private static Path checkoutPath(Path path) {
@@ -90,17 +142,39 @@ public class EmbedQueueProvider implements QueueProvider {
             @Override
             public void push(Collection<QueueTask> tasks) {
                 fileQueues.get(type).addAll(tasks);
+                synchronized (signal) {
+                    signalled = true;
+                    signal.notifyAll();
+                }
             }
 
             @Override
             public List<QueueTask> pop(int count) {
                 List<QueueTask> tasks = new ArrayList<>();
                 QueueTask task;
-                while(tasks.size() < count && (task = fileQueues.get(type).poll()) != null)
-                    tasks.add(task);
+                FileQueue<QueueTask> queue = fileQueues.get(type);
+                while(tasks.size() < count && !queue.isEmpty()) {
+                    //无法解码的任务为 null
+                    if((task = queue.poll()) != null && (leaseTimeout <= 0 || lease(type, task)))
+                        tasks.add(task);
+                }
                 return tasks;
             }
 
+            @Override
+            public void ack(QueueTask task) {
+                Lease lease = (task.getLeaseId() != null) ? leases.remove(task.getLeaseId()) : null;
+                if(lease != null)
+                    lease.release();
+            }
+
+            @Override
+            public void nack(QueueTask task) {
+                Lease lease = (task.getLeaseId() != null) ? leases.remove(task.getLeaseId()) : null;
+                if(lease != null)
+                    requeue(lease);
+            }
+
             @Override
             public void close() {
                 fileQueues.get(type).close();
@@ -108,8 +182,145 @@ public class EmbedQueueProvider implements QueueProvider {
         };
     }
 
+    /**
+     * 为取出的任务分配租约，并写入处理中目录
+     * @param type
+     * @param task
+     * @return 投递次数超出上限时返回 false ，任务移入死信目录
+     */
+    private boolean lease(String type, QueueTask task) {
+        //投递次数随任务一起编码，放回队列以及进程重启后都会保留
+        task.setDeliveries(task.getDeliveries() + 1);
+        String id = System.currentTimeMillis() + "-" + leaseSequence.incrementAndGet();
+        if(task.getDeliveries() > maxDeliveries && maxDeliveries > 0) {
+            log.error("Task<{}> exceeded {} deliveries, moved to {}: {}", type, maxDeliveries, deadPath, task);
+            task.setDeliveries(0);
+            writeTask(checkoutPath(deadPath.resolve(type)).resolve(id + ".task"), encode(task));
+            return false;
+        }
+        byte[] data = encode(task);
+        Lease lease = new Lease(type, task, leasePath.resolve(type).resolve(id + ".task"));
+        writeTask(lease.file, data);
+        task.setLeaseId(id);
+        leases.put(id, lease);
+        startLeaseRenewer();
+        return true;
+    }
+
+    /**
+     * 第一次取出任务时启动续约线程，每隔租约时长的 1/3 续约一次
+     */
+    private void startLeaseRenewer() {
+        if(leaseRenewer != null)
+            return;
+        synchronized (leases) {
+            if(leaseRenewer != null)
+                return;
+            ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "EmbedQueueLeaseRenewer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long interval = Math.max(leaseTimeout / 3, 1000);
+            renewer.scheduleWithFixedDelay(this::renewLeases, interval, interval, TimeUnit.MILLISECONDS);
+            leaseRenewer = renewer;
+        }
+    }
+
+    /**
+     * 为处理中的任务续约（包括正在重建的代码仓库和合并队列中暂存的任务），处理时间超过租约时长的任务不会被重复投递，
+     * 进程崩溃后未确认的任务在下次启动时重新放回队列
+     * @return 续约的任务数
+     */
+    int renewLeases() {
+        long deadline = System.currentTimeMillis() + leaseTimeout;
+        int count = 0;
+        for(Lease lease : leases.values()) {
+            lease.deadline = deadline;
+            count++;
+        }
+        return count;
+    }
+
+    private byte[] encode(QueueTask task) {
+        return jsonCodec ? QueueTaskCodec.encodeJson(task) : QueueTaskCodec.encode(task);
+    }
+
+    private static void writeTask(Path file, byte[] data) {
+        try {
+            Files.write(file, data);
+        } catch (IOException e) {
+            log.warn("Failed to write task to '{}'", file, e);
+        }
+    }
+
+    private void requeue(Lease lease) {
+        fileQueues.get(lease.type).add(lease.task);
+        lease.release();
+        synchronized (signal) {
+            signalled = true;
+            signal.notifyAll();
+        }
+    }
+
+    @Override
+    public int requeueExpired() {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for(String id : leases.keySet()) {
+            Lease lease = leases.get(id);
+            if(lease != null && lease.deadline <= now && leases.remove(id, lease)) {
+                requeue(lease);
+                count++;
+            }
+        }
+        if(count > 0)
+            log.warn("{} tasks with expired lease requeued.", count);
+        return count;
+    }
+
+    /**
+     * 等待 push 的通知，上一次等待之后已经有新任务时立即返回
+     * @param timeout  最长等待时间，单位毫秒
+     * @throws InterruptedException
+     */
+    @Override
+    public void await(long timeout) throws InterruptedException {
+        synchronized (signal) {
+            if(!signalled && timeout > 0)
+                signal.wait(timeout);
+            signalled = false;
+        }
+    }
+
     @Override
     public void close() {
+        if(leaseRenewer != null)
+            leaseRenewer.shutdownNow();
         fileQueues.values().forEach(q -> q.close());
     }
+
+    /**
+     * 处理中的任务
+     */
+    private class Lease {
+        private final String type;
+        private final QueueTask task;
+        private final Path file;
+        private volatile long deadline = System.currentTimeMillis() + leaseTimeout;
+
+        Lease(String type, QueueTask task, Path file) {
+            this.type = type;
+            this.task = task;
+            this.file = file;
+        }
+
+        void release() {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                log.warn("Failed to delete '{}'", file, e);
+            }
+        }
+    }
 }
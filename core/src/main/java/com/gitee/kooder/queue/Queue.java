@@ -37,9 +37,21 @@ public interface Queue extends AutoCloseable{
     void push(Collection<QueueTask> tasks) ;
 
     /**
-     * 从队列获取任务
+     * 从队列获取任务，启用租约时任务在 ack 之前保留在处理中列表，租约到期后重新放回队列
      * @return
      */
     List<QueueTask> pop(int count) ;
 
+    /**
+     * 确认任务已经处理完成，从处理中列表删除，未启用租约时不做任何事情
+     * @param task
+     */
+    default void ack(QueueTask task) {}
+
+    /**
+     * 任务处理失败，立即放回队列等待重试，未启用租约时不做任何事情
+     * @param task
+     */
+    default void nack(QueueTask task) {}
+
 }
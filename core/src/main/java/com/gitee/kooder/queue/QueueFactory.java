@@ -17,6 +17,9 @@ package com.gitee.kooder.queue;
 
 import com.gitee.kooder.core.KooderConfig;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.Properties;
 
@@ -26,6 +29,8 @@ import java.util.Properties;
  */
 public class QueueFactory {
 
+    private final static Logger log = LoggerFactory.getLogger(QueueFactory.class);
+
     static QueueProvider provider;
 
     static {
@@ -35,6 +40,16 @@ public class QueueFactory {
             provider = new RedisQueueProvider(props);
         else if("embed".equalsIgnoreCase(type))
             provider = new EmbedQueueProvider(props);
+
+        //合并同一仓库短时间内的多个代码任务，暂存的任务需要租约保证进程崩溃后重新投递
+        long debounce = NumberUtils.toLong(props.getProperty("code_debounce_ms"), 0);
+        long leaseTimeout = NumberUtils.toLong(props.getProperty("lease_timeout"), 0);
+        if(provider != null && debounce > 0) {
+            if(leaseTimeout > 0)
+                provider = new CoalescingQueueProvider(provider, debounce);
+            else
+                log.warn("queue.code_debounce_ms ignored, it requires queue.lease_timeout > 0");
+        }
     }
 
     public final static QueueProvider getProvider() {
@@ -49,4 +49,21 @@ public interface QueueProvider extends AutoCloseable {
      */
     Queue queue(String type);
 
+    /**
+     * 等待任意一个队列中有新任务，有新任务、超时或者被中断时返回，返回后需要重新获取任务
+     * @param timeout  最长等待时间，单位毫秒
+     * @throws InterruptedException
+     */
+    default void await(long timeout) throws InterruptedException {
+        Thread.sleep(timeout);
+    }
+
+    /**
+     * 将租约已经到期（处理任务的进程崩溃或者处理超时）的任务重新放回队列
+     * @return 放回队列的任务数
+     */
+    default int requeueExpired() {
+        return 0;
+    }
+
 }
@@ -19,6 +19,7 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -30,6 +31,7 @@ import com.gitee.kooder.core.Constants;
 import com.gitee.kooder.index.IndexManager;
 
 import com.gitee.kooder.models.Issue;
+import com.gitee.kooder.models.Relation;
 import com.gitee.kooder.models.Repository;
 import com.gitee.kooder.models.Searchable;
 import com.gitee.kooder.utils.JsonUtils;
@@ -45,6 +47,9 @@ import org.slf4j.LoggerFactory;
  */
 public class QueueTask implements Serializable {
 
+    //固定为增加租约字段之前的值，使 embed 队列中已经保存的任务可以继续读取
+    private static final long serialVersionUID = -8548454961866307217L;
+
     private transient final static Logger log = LoggerFactory.getLogger(QueueTask.class);
 
     public transient final static List<String> types = Arrays.asList(
@@ -64,6 +69,8 @@ public class QueueTask implements Serializable {
     private String type;    //对象类型
     private String action;  //动作（添加、删除、修改）
     private List<Searchable> objects = new ArrayList<>();    //objects list
+    private transient String leaseId;   //启用租约时 pop 返回的任务标识，用于 ack 和 nack
+    private transient int deliveries;   //启用租约时已经投递的次数
 
     public QueueTask(){}
 
@@ -115,6 +122,26 @@ public class QueueTask implements Serializable {
         this.action = action;
     }
 
+    @JsonIgnore
+    public String getLeaseId() {
+        return leaseId;
+    }
+
+    @JsonIgnore
+    public void setLeaseId(String leaseId) {
+        this.leaseId = leaseId;
+    }
+
+    @JsonIgnore
+    public int getDeliveries() {
+        return deliveries;
+    }
+
+    @JsonIgnore
+    public void setDeliveries(int deliveries) {
+        this.deliveries = deliveries;
+    }
+
     public List<Searchable> getObjects() {
         return objects;
     }
@@ -134,11 +161,37 @@ public class QueueTask implements Serializable {
                 case Constants.TYPE_ISSUE:
                     obj = new Issue();
             }
-            BeanUtils.populate(obj, value);
+            BeanUtils.populate(obj, toBeanProperties(value));
             objects.add(obj);
         }
     }
 
+    /**
+     * json 中的属性名使用下划线命名，关联对象为 Map ，转换成 BeanUtils 可以直接设置的属性
+     * @param value
+     * @return
+     */
+    private static Map<String, Object> toBeanProperties(Map<String, Object> value) {
+        Map<String, Object> props = new HashMap<>();
+        value.forEach((name, v) -> {
+            if(v instanceof Map) {
+                Map<?, ?> relation = (Map<?, ?>)v;
+                Object id = relation.get("id");
+                v = new Relation((id instanceof Number) ? ((Number)id).longValue() : 0, (String)relation.get("name"), (String)relation.get("url"));
+            }
+            StringBuilder property = new StringBuilder(name.length());
+            for(int i = 0; i < name.length(); i++) {
+                char ch = name.charAt(i);
+                if(ch == '_' && i > 0 && i + 1 < name.length())
+                    property.append(Character.toUpperCase(name.charAt(++i)));
+                else
+                    property.append(ch);
+            }
+            props.put(property.toString(), v);
+        });
+        return props;
+    }
+
     public void addObject(Searchable obj) {
         objects.add(obj);
     }
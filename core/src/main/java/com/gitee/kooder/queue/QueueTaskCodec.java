@@ -0,0 +1,369 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.queue;
+
+import com.gitee.kooder.core.Constants;
+import com.gitee.kooder.models.CodeRepository;
+import com.gitee.kooder.models.Issue;
+import com.gitee.kooder.models.Relation;
+import com.gitee.kooder.models.Repository;
+import com.gitee.kooder.models.Searchable;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.store.GrowableByteArrayDataOutput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * QueueTask 的二进制编码，用于队列的持久化存储，代替 json 和 java 序列化
+ *
+ * 格式：MAGIC, VERSION, type, action, 对象数, [对象长度, 对象字段...]
+ * 对象字段按 (编号 << 2 | 值类型) 写入，值为 0 或 null 的字段不写入，解码时跳过不认识的字段，新增字段不需要升级版本
+ * 解码时兼容旧版本写入的 json 和 java 序列化数据
+ * 启用租约的队列在重新投递的任务前面加上投递次数：'#' 次数 '#' 任务，次数为 ASCII 数字，解码后保存在 QueueTask 中
+ *
+ * @author Winter Lau<javayou@gmail.com>
+ */
+public final class QueueTaskCodec {
+
+    private final static Logger log = LoggerFactory.getLogger(QueueTaskCodec.class);
+
+    private final static byte MAGIC     = 'K';  //不会与 json 的 '{' 以及 java 序列化的 0xACED 冲突
+    private final static byte VERSION   = 1;
+    private final static byte DELIVERIES = '#'; //投递次数前缀，与 RedisQueueProvider 中的脚本一致
+
+    private final static int WIRE_NUMBER    = 0;    //zigzag 编码的 long
+    private final static int WIRE_STRING    = 1;
+    private final static int WIRE_STRINGS   = 2;    //字符串列表
+    private final static int WIRE_RELATION  = 3;    //id, name, url
+
+    private final static Map<String, Schema<?>> schemas = new HashMap<>();
+
+    static {
+        schemas.put(Constants.TYPE_CODE, new Schema<>(CodeRepository.class, CodeRepository::new)
+                .number(1, CodeRepository::getId, CodeRepository::setId)
+                .number(2, CodeRepository::getEnterprise, (r, v) -> r.setEnterprise((int)v))
+                .string(3, CodeRepository::getScm, CodeRepository::setScm)
+                .string(4, CodeRepository::getVender, CodeRepository::setVender)
+                .string(5, CodeRepository::getName, CodeRepository::setName)
+                .string(6, CodeRepository::getUrl, CodeRepository::setUrl)
+                .string(7, CodeRepository::getLastCommitId, CodeRepository::setLastCommitId)
+                .string(8, CodeRepository::getStatus, CodeRepository::setStatus)
+                .number(9, CodeRepository::getDiskSize, CodeRepository::setDiskSize)
+                .number(10, CodeRepository::getLastAccess, CodeRepository::setLastAccess));
+
+        schemas.put(Constants.TYPE_REPOSITORY, new Schema<>(Repository.class, Repository::new)
+                .number(1, Repository::getId, Repository::setId)
+                .string(2, Repository::getName, Repository::setName)
+                .string(3, Repository::getDisplayName, Repository::setDisplayName)
+                .string(4, Repository::getDescription, Repository::setDescription)
+                .string(5, Repository::getUrl, Repository::setUrl)
+                .relation(6, Repository::getEnterprise, Repository::setEnterprise)
+                .relation(7, Repository::getProject, Repository::setProject)
+                .relation(8, Repository::getOwner, Repository::setOwner)
+                .number(9, Repository::getRecomm, (r, v) -> r.setRecomm((int)v))
+                .number(10, Repository::getGindex, (r, v) -> r.setGindex((int)v))
+                .number(11, Repository::getBlock, (r, v) -> r.setBlock((int)v))
+                .number(12, Repository::getVisibility, (r, v) -> r.setVisibility((int)v))
+                .string(13, Repository::getLicense, Repository::setLicense)
+                .string(14, Repository::getLang, Repository::setLang)
+                .string(15, Repository::getReadme, Repository::setReadme)
+                .number(16, Repository::getFork, Repository::setFork)
+                .strings(17, Repository::getTags, Repository::setTags)
+                .strings(18, Repository::getCatalogs, Repository::setCatalogs)
+                .number(19, Repository::getCreatedAt, Repository::setCreatedAt)
+                .number(20, Repository::getUpdatedAt, Repository::setUpdatedAt)
+                .number(21, Repository::getStarsCount, (r, v) -> r.setStarsCount((int)v))
+                .number(22, Repository::getForksCount, (r, v) -> r.setForksCount((int)v)));
+
+        schemas.put(Constants.TYPE_ISSUE, new Schema<>(Issue.class, Issue::new)
+                .number(1, Issue::getId, Issue::setId)
+                .string(2, Issue::getIdent, Issue::setIdent)
+                .relation(3, Issue::getEnterprise, Issue::setEnterprise)
+                .relation(4, Issue::getProject, Issue::setProject)
+                .relation(5, Issue::getRepository, Issue::setRepository)
+                .relation(6, Issue::getOwner, Issue::setOwner)
+                .string(7, Issue::getTitle, Issue::setTitle)
+                .string(8, Issue::getDescription, Issue::setDescription)
+                .string(9, Issue::getUrl, Issue::setUrl)
+                .strings(10, Issue::getLabels, Issue::setLabels)
+                .number(11, Issue::getCreatedAt, Issue::setCreatedAt)
+                .number(12, Issue::getUpdatedAt, Issue::setUpdatedAt)
+                .number(13, Issue::getClosedAt, Issue::setClosedAt)
+                .number(14, Issue::getState, (r, v) -> r.setState((int)v))
+                .number(15, Issue::getBlock, (r, v) -> r.setBlock((int)v))
+                .number(16, Issue::getVisibility, (r, v) -> r.setVisibility((int)v)));
+    }
+
+    private QueueTaskCodec() {}
+
+    /**
+     * 二进制编码，没有定义编码格式的任务类型使用 json
+     * @param task
+     * @return
+     */
+    public static byte[] encode(QueueTask task) {
+        Schema<?> schema = schemas.get(task.getType());
+        if(schema == null)
+            return encodeJson(task);
+        GrowableByteArrayDataOutput output = new GrowableByteArrayDataOutput(256);
+        GrowableByteArrayDataOutput object = new GrowableByteArrayDataOutput(256);
+        try {
+            output.writeByte(MAGIC);
+            output.writeByte(VERSION);
+            output.writeString(task.getType());
+            output.writeString(task.getAction());
+            output.writeVInt(task.getObjects().size());
+            for(Searchable obj : task.getObjects()) {
+                object.reset();
+                schema.write(obj, object);
+                output.writeVInt(object.getPosition());
+                output.writeBytes(object.getBytes(), 0, object.getPosition());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return withDeliveries(task, Arrays.copyOf(output.getBytes(), output.getPosition()));
+    }
+
+    /**
+     * 旧版本使用的 json 格式
+     * @param task
+     * @return
+     */
+    public static byte[] encodeJson(QueueTask task) {
+        return withDeliveries(task, task.json().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 已经投递过的任务在编码前面加上投递次数
+     * @param task
+     * @param data
+     * @return
+     */
+    private static byte[] withDeliveries(QueueTask task, byte[] data) {
+        if(task.getDeliveries() <= 0)
+            return data;
+        byte[] prefix = ("#" + task.getDeliveries() + "#").getBytes(StandardCharsets.US_ASCII);
+        byte[] result = Arrays.copyOf(prefix, prefix.length + data.length);
+        System.arraycopy(data, 0, result, prefix.length, data.length);
+        return result;
+    }
+
+    /**
+     * 解码二进制、json 或者 java 序列化格式的任务
+     * @param data
+     * @return 无法解码时返回 null
+     */
+    public static QueueTask decode(byte[] data) {
+        if(data == null || data.length == 0)
+            return null;
+        try {
+            if(data[0] == DELIVERIES)
+                return decodeDeliveries(data);
+            if(data[0] == MAGIC)
+                return decodeBinary(data);
+            if(data.length > 1 && data[0] == (byte)0xAC && data[1] == (byte)0xED) {
+                try (ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(data))) {
+                    return (QueueTask)input.readObject();
+                }
+            }
+            return QueueTask.parse(new String(data, StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            log.error("Failed to decode task of {} bytes", data.length, e);
+            return null;
+        }
+    }
+
+    private static QueueTask decodeDeliveries(byte[] data) throws IOException {
+        int sep = 1;
+        while(sep < data.length && data[sep] != DELIVERIES)
+            sep++;
+        if(sep >= data.length)
+            throw new IOException("Malformed delivery count");
+        QueueTask task = decode(Arrays.copyOfRange(data, sep + 1, data.length));
+        if(task != null)
+            task.setDeliveries(Integer.parseInt(new String(data, 1, sep - 1, StandardCharsets.US_ASCII)));
+        return task;
+    }
+
+    private static QueueTask decodeBinary(byte[] data) throws IOException {
+        ByteArrayDataInput input = new ByteArrayDataInput(data);
+        input.readByte();
+        byte version = input.readByte();
+        if(version > VERSION)
+            throw new IOException("Unsupported task codec version: " + version);
+        QueueTask task = new QueueTask();
+        task.setType(input.readString());
+        task.setAction(input.readString());
+        Schema<?> schema = schemas.get(task.getType());
+        if(schema == null)
+            throw new IOException("Unsupported task type: " + task.getType());
+        int count = input.readVInt();
+        for(int i = 0; i < count; i++) {
+            int end = input.readVInt() + input.getPosition();
+            task.addObject(schema.read(input, end));
+        }
+        return task;
+    }
+
+    private static void writeOptionalString(DataOutput output, String value) throws IOException {
+        output.writeByte((byte)((value != null) ? 1 : 0));
+        if(value != null)
+            output.writeString(value);
+    }
+
+    private static String readOptionalString(DataInput input) throws IOException {
+        return (input.readByte() != 0) ? input.readString() : null;
+    }
+
+    /**
+     * 读取并丢弃不认识的字段
+     */
+    private static void skip(DataInput input, int wire) throws IOException {
+        switch(wire) {
+            case WIRE_NUMBER:
+                input.readZLong();
+                break;
+            case WIRE_STRING:
+                input.readString();
+                break;
+            case WIRE_STRINGS:
+                for(int i = input.readVInt(); i > 0; i--)
+                    readOptionalString(input);
+                break;
+            case WIRE_RELATION:
+                input.readZLong();
+                readOptionalString(input);
+                readOptionalString(input);
+        }
+    }
+
+    /**
+     * 某种对象的字段定义，字段编号一旦使用不能修改含义
+     * @param <T>
+     */
+    private static class Schema<T extends Searchable> {
+
+        private final Class<T> type;
+        private final Supplier<T> factory;
+        private final List<FieldWriter<T>> writers = new ArrayList<>();
+        private final Map<Integer, FieldReader<T>> readers = new HashMap<>();  //(tag << 2 | wire) -> reader
+
+        Schema(Class<T> type, Supplier<T> factory) {
+            this.type = type;
+            this.factory = factory;
+        }
+
+        Schema<T> number(int tag, ToLongFunction<T> getter, ObjLongConsumer<T> setter) {
+            int key = tag << 2 | WIRE_NUMBER;
+            writers.add((obj, out) -> {
+                long value = getter.applyAsLong(obj);
+                if(value != 0) {
+                    out.writeVInt(key);
+                    out.writeZLong(value);
+                }
+            });
+            readers.put(key, (obj, in) -> setter.accept(obj, in.readZLong()));
+            return this;
+        }
+
+        Schema<T> string(int tag, Function<T, String> getter, BiConsumer<T, String> setter) {
+            int key = tag << 2 | WIRE_STRING;
+            writers.add((obj, out) -> {
+                String value = getter.apply(obj);
+                if(value != null) {
+                    out.writeVInt(key);
+                    out.writeString(value);
+                }
+            });
+            readers.put(key, (obj, in) -> setter.accept(obj, in.readString()));
+            return this;
+        }
+
+        Schema<T> strings(int tag, Function<T, List<String>> getter, BiConsumer<T, List<String>> setter) {
+            int key = tag << 2 | WIRE_STRINGS;
+            writers.add((obj, out) -> {
+                List<String> values = getter.apply(obj);
+                if(values != null) {
+                    out.writeVInt(key);
+                    out.writeVInt(values.size());
+                    for(String value : values)
+                        writeOptionalString(out, value);
+                }
+            });
+            readers.put(key, (obj, in) -> {
+                int size = in.readVInt();
+                List<String> values = new ArrayList<>(size);
+                for(int i = 0; i < size; i++)
+                    values.add(readOptionalString(in));
+                setter.accept(obj, values);
+            });
+            return this;
+        }
+
+        Schema<T> relation(int tag, Function<T, Relation> getter, BiConsumer<T, Relation> setter) {
+            int key = tag << 2 | WIRE_RELATION;
+            writers.add((obj, out) -> {
+                Relation value = getter.apply(obj);
+                if(value != null) {
+                    out.writeVInt(key);
+                    out.writeZLong(value.getId());
+                    writeOptionalString(out, value.getName());
+                    writeOptionalString(out, value.getUrl());
+                }
+            });
+            readers.put(key, (obj, in) -> setter.accept(obj, new Relation(in.readZLong(), readOptionalString(in), readOptionalString(in))));
+            return this;
+        }
+
+        void write(Searchable obj, DataOutput output) throws IOException {
+            for(FieldWriter<T> writer : writers)
+                writer.write(type.cast(obj), output);
+        }
+
+        T read(ByteArrayDataInput input, int end) throws IOException {
+            T obj = factory.get();
+            while(input.getPosition() < end) {
+                int key = input.readVInt();
+                FieldReader<T> reader = readers.get(key);
+                if(reader != null)
+                    reader.read(obj, input);
+                else
+                    skip(input, key & 0x3);
+            }
+            return obj;
+        }
+    }
+
+    @FunctionalInterface
+    private interface FieldWriter<T> {
+        void write(T obj, DataOutput output) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface FieldReader<T> {
+        void read(T obj, DataInput input) throws IOException;
+    }
+}
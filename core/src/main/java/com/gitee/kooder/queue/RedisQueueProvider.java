@@ -15,18 +15,26 @@
  */
 package com.gitee.kooder.queue;
 
-import io.lettuce.core.RedisClient;
-import io.lettuce.core.RedisURI;
+import io.lettuce.core.*;
 import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.async.RedisAsyncCommands;
 import io.lettuce.core.api.sync.RedisCommands;
+import io.lettuce.core.codec.ByteArrayCodec;
+import io.lettuce.core.codec.RedisCodec;
+import io.lettuce.core.codec.StringCodec;
+import io.lettuce.core.pubsub.RedisPubSubAdapter;
+import io.lettuce.core.pubsub.StatefulRedisPubSubConnection;
 import org.apache.commons.lang3.math.NumberUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
-import java.util.Properties;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 使用 Redis 队列
@@ -36,14 +44,100 @@ public class RedisQueueProvider implements QueueProvider {
 
     private final static Logger log = LoggerFactory.getLogger(RedisQueueProvider.class);
 
+    private final static int PUSH_BATCH_SIZE = 1000;   //每条 RPUSH 命令最多包含的任务数
+
+    //原子地从队列头部取出最多 ARGV[1] 个任务，一次往返完成，兼容不支持 LPOP count 的 Redis 版本
+    private final static String POP_SCRIPT =
+            "local tasks = redis.call('LRANGE', KEYS[1], 0, tonumber(ARGV[1]) - 1)\n" +
+            "if #tasks > 0 then redis.call('LTRIM', KEYS[1], #tasks, -1) end\n" +
+            "return tasks";
+
+    //启用租约时取出任务：每个任务分配租约编号，放入处理中的 hash 并按到期时间记录在 zset 中，
+    //投递次数保存在处理中的任务前面（格式见 QueueTaskCodec），随任务一起放回队列，相同内容的任务分别计数，
+    //投递次数超出上限的任务移入死信队列，返回 [编号1, 任务1, 编号2, 任务2 ...]
+    //KEYS: 队列, 处理中, 租约, 死信队列, 租约编号; ARGV: 数量, 到期时间, 最大投递次数
+    private final static String LEASE_POP_SCRIPT =
+            "local tasks = redis.call('LRANGE', KEYS[1], 0, tonumber(ARGV[1]) - 1)\n" +
+            "if #tasks > 0 then redis.call('LTRIM', KEYS[1], #tasks, -1) end\n" +
+            "local max = tonumber(ARGV[3])\n" +
+            "local result = {}\n" +
+            "for _, task in ipairs(tasks) do\n" +
+            "  local n = 1\n" +
+            "  local sep = (string.byte(task, 1) == 35) and string.find(task, '#', 2, true)\n" +
+            "  if sep then\n" +
+            "    n = (tonumber(string.sub(task, 2, sep - 1)) or 0) + 1\n" +
+            "    task = string.sub(task, sep + 1)\n" +
+            "  end\n" +
+            "  if max > 0 and n > max then\n" +
+            "    redis.call('RPUSH', KEYS[4], task)\n" +
+            "  else\n" +
+            "    local id = tostring(redis.call('INCR', KEYS[5]))\n" +
+            "    redis.call('HSET', KEYS[2], id, '#' .. n .. '#' .. task)\n" +
+            "    redis.call('ZADD', KEYS[3], ARGV[2], id)\n" +
+            "    table.insert(result, id)\n" +
+            "    table.insert(result, task)\n" +
+            "  end\n" +
+            "end\n" +
+            "return result";
+
+    //确认任务：删除处理中的任务和租约
+    //KEYS: 处理中, 租约; ARGV: 租约编号
+    private final static String ACK_SCRIPT =
+            "if redis.call('HDEL', KEYS[1], ARGV[1]) == 0 then return 0 end\n" +
+            "redis.call('ZREM', KEYS[2], ARGV[1])\n" +
+            "return 1";
+
+    //将处理中的任务放回队列头部（head）或者尾部（tail），并通知等待中的消费者，已经被确认的任务会被忽略
+    //KEYS: 处理中, 租约, 队列; ARGV: head|tail, 通知频道, 租约编号...
+    private final static String REQUEUE_SCRIPT =
+            "local n = 0\n" +
+            "for i = 3, #ARGV do\n" +
+            "  local task = redis.call('HGET', KEYS[1], ARGV[i])\n" +
+            "  if task then\n" +
+            "    redis.call('HDEL', KEYS[1], ARGV[i])\n" +
+            "    redis.call('ZREM', KEYS[2], ARGV[i])\n" +
+            "    if ARGV[1] == 'head' then redis.call('LPUSH', KEYS[3], task) else redis.call('RPUSH', KEYS[3], task) end\n" +
+            "    n = n + 1\n" +
+            "  end\n" +
+            "end\n" +
+            "if n > 0 then redis.call('PUBLISH', ARGV[2], n) end\n" +
+            "return n";
+
+    //续约：仍在处理中的任务更新租约到期时间，返回已经被放回队列（租约到期）的租约编号
+    //KEYS: 处理中, 租约; ARGV: 到期时间, 租约编号...
+    private final static String RENEW_SCRIPT =
+            "local lost = {}\n" +
+            "for i = 2, #ARGV do\n" +
+            "  if redis.call('HEXISTS', KEYS[1], ARGV[i]) == 1 then redis.call('ZADD', KEYS[2], ARGV[1], ARGV[i])\n" +
+            "  else table.insert(lost, ARGV[i]) end\n" +
+            "end\n" +
+            "return lost";
+
+    private final static int REQUEUE_BATCH_SIZE = 1000;    //每次放回队列的过期任务数上限
+
+    //键和通知使用字符串，任务使用二进制编码
+    private final static RedisCodec<String, byte[]> CODEC = RedisCodec.of(StringCodec.UTF8, ByteArrayCodec.INSTANCE);
+
     private String host;
     private int port;
     private int database;
     private String baseKey;
     private String username;
     private String password;
+    private long leaseTimeout;      //任务租约时长，单位毫秒，0 表示 pop 时直接删除任务
+    private int maxDeliveries;      //启用租约时同一任务的最大投递次数，超出后移入死信队列
+    private boolean jsonCodec;      //使用旧版本的 json 格式写入任务，兼容尚未升级的节点，读取时两种格式都支持
 
     private RedisClient client;
+    private StatefulRedisConnection<String, byte[]> connection;        //所有队列共用的连接，线程安全，断开后自动重连
+    private Map<String, String> scriptDigests = new ConcurrentHashMap<>();
+    private StatefulRedisConnection<String, byte[]> awaitConnection;   //阻塞等待任务专用的连接
+    private StatefulRedisPubSubConnection<String, String> notifyConnection; //启用租约时订阅新任务通知的连接
+    private final Object signal = new Object();
+    private boolean signalled = false;  //上一次 await 之后是否收到新任务通知
+    private Map<String, Deque<byte[]>> awaitedTasks = new ConcurrentHashMap<>(); //await 中取出的任务，type -> 编码后的任务
+    private Map<String, Set<String>> heldLeases = new ConcurrentHashMap<>();    //本节点取出但尚未确认的任务，type -> 租约编号
+    private volatile ScheduledExecutorService leaseRenewer;    //定期为本节点持有的任务续约
 
     /**
      * Connect to redis
@@ -56,6 +150,9 @@ public class RedisQueueProvider implements QueueProvider {
         this.baseKey = props.getProperty("redis.key", "gsearch-queue");
         this.username = props.getProperty("username");
         this.password = props.getProperty("password");
+        this.leaseTimeout = NumberUtils.toLong(props.getProperty("lease_timeout"), 0) * 1000;
+        this.maxDeliveries = NumberUtils.toInt(props.getProperty("max_deliveries"), 5);
+        this.jsonCodec = "json".equalsIgnoreCase(props.getProperty("codec"));
 
         RedisURI uri = RedisURI.create(host,port);
         uri.setDatabase(this.database);
@@ -65,16 +162,14 @@ public class RedisQueueProvider implements QueueProvider {
             uri.setUsername(username);
 
         this.client = RedisClient.create(uri);
+        this.connection = client.connect(CODEC);
 
-        log.info("Connected to {} at {}}:{}}\n", getRedisVersion(), this.host, this.port);
+        log.info("Connected to {} at {}:{}", getRedisVersion(), this.host, this.port);
 
     }
 
     private String getRedisVersion() {
-        try (StatefulRedisConnection<String, String> connection = client.connect()) {
-            RedisCommands<String, String> cmd = connection.sync();
-            return cmd.info("redis_version");
-        }
+        return connection.sync().info("redis_version");
     }
 
     @Override
@@ -86,46 +181,301 @@ public class RedisQueueProvider implements QueueProvider {
     public Queue queue(String type) {
         return new Queue() {
 
-            private String key = type + '@' + baseKey;
+            private String key = getKey(type);
 
             @Override
             public String type() {
                 return type;
             }
 
+            /**
+             * 任务较多时拆分成多条 RPUSH 命令，以流水线方式发送后等待全部完成
+             * @param tasks
+             */
             @Override
             public void push(Collection<QueueTask> tasks) {
-                try (StatefulRedisConnection<String, String> connection = client.connect()) {
-                    RedisCommands<String, String> cmd = connection.sync();
-                    cmd.rpush(key, tasks.stream().map(t -> t.json()).toArray(String[]::new));
-                }
+                byte[][] values = tasks.stream().map(t -> jsonCodec ? QueueTaskCodec.encodeJson(t) : QueueTaskCodec.encode(t)).toArray(byte[][]::new);
+                RedisAsyncCommands<String, byte[]> cmd = connection.async();
+                List<RedisFuture<Long>> futures = new ArrayList<>();
+                for(int i = 0; i < values.length; i += PUSH_BATCH_SIZE)
+                    futures.add(cmd.rpush(key, Arrays.copyOfRange(values, i, Math.min(i + PUSH_BATCH_SIZE, values.length))));
+                if(leaseTimeout > 0 && values.length > 0)
+                    futures.add(cmd.publish(getChannel(), bytes(values.length)));
+                if(!LettuceFutures.awaitAll(connection.getTimeout(), futures.toArray(new RedisFuture<?>[0])))
+                    throw new RedisCommandTimeoutException("Timeout to push " + values.length + " tasks to " + key);
             }
 
             @Override
             public List<QueueTask> pop(int count) {
-                String json = null;
+                if(leaseTimeout > 0)
+                    return leasePop(type, count);
+                byte[] value = null;
                 List<QueueTask> tasks = new ArrayList<>();
-                try (StatefulRedisConnection<String, String> connection = client.connect()) {
-                    RedisCommands<String, String> cmd = connection.sync();
-                    do{
-                        json = cmd.lpop(key);
-                        if(json == null)
-                            break;
-                        QueueTask task = QueueTask.parse(json);
-                        if(task != null)
-                            tasks.add(task);
-                    }while(tasks.size() < count);
+                //先返回 await 时取出的任务，它们原本位于队列头部
+                Deque<byte[]> awaited = awaitedTasks.get(type);
+                while(awaited != null && tasks.size() < count && (value = awaited.poll()) != null) {
+                    QueueTask task = QueueTaskCodec.decode(value);
+                    if(task != null)
+                        tasks.add(task);
+                }
+                if(tasks.size() >= count)
+                    return tasks;
+                List<byte[]> values = eval(POP_SCRIPT, ScriptOutputType.MULTI, new String[]{ key }, bytes(count - tasks.size()));
+                for(byte[] data : values) {
+                    QueueTask task = QueueTaskCodec.decode(data);
+                    if(task != null)
+                        tasks.add(task);
                 }
                 return tasks;
             }
 
+            @Override
+            public void ack(QueueTask task) {
+                if(task.getLeaseId() != null) {
+                    heldLeases(type).remove(task.getLeaseId());
+                    eval(ACK_SCRIPT, ScriptOutputType.INTEGER, new String[]{ key + ":inflight", key + ":leases" }, bytes(task.getLeaseId()));
+                }
+            }
+
+            @Override
+            public void nack(QueueTask task) {
+                if(task.getLeaseId() != null) {
+                    heldLeases(type).remove(task.getLeaseId());
+                    requeue(type, "tail", Arrays.asList(task.getLeaseId()));
+                }
+            }
+
             @Override
             public void close() {}
         };
     }
 
+    /**
+     * 取出任务并为每个任务分配租约，任务在 ack 之前保留在处理中列表，并由本节点定期续约
+     * @param type
+     * @param count
+     * @return
+     */
+    private List<QueueTask> leasePop(String type, int count) {
+        String key = getKey(type);
+        String[] keys = { key, key + ":inflight", key + ":leases", key + ":dead", key + ":seq" };
+        List<byte[]> values = eval(LEASE_POP_SCRIPT, ScriptOutputType.MULTI, keys,
+                bytes(count), bytes(System.currentTimeMillis() + leaseTimeout), bytes(maxDeliveries));
+        List<QueueTask> tasks = new ArrayList<>();
+        for(int i = 0; i + 1 < values.size(); i += 2) {
+            QueueTask task = QueueTaskCodec.decode(values.get(i + 1));
+            if(task != null) {
+                task.setLeaseId(new String(values.get(i), StandardCharsets.UTF_8));
+                heldLeases(type).add(task.getLeaseId());
+                tasks.add(task);
+            }
+            else //无法解析的任务不再投递
+                eval(ACK_SCRIPT, ScriptOutputType.INTEGER, new String[]{ keys[1], keys[2] }, values.get(i));
+        }
+        if(!tasks.isEmpty())
+            startLeaseRenewer();
+        return tasks;
+    }
+
+    private Set<String> heldLeases(String type) {
+        return heldLeases.computeIfAbsent(type, t -> ConcurrentHashMap.newKeySet());
+    }
+
+    /**
+     * 第一次取出任务时启动续约线程，每隔租约时长的 1/3 续约一次
+     */
+    private void startLeaseRenewer() {
+        if(leaseRenewer != null)
+            return;
+        synchronized (heldLeases) {
+            if(leaseRenewer != null)
+                return;
+            ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "RedisQueueLeaseRenewer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long interval = Math.max(leaseTimeout / 3, 1000);
+            renewer.scheduleWithFixedDelay(() -> {
+                try {
+                    renewLeases();
+                } catch (Exception e) {
+                    log.error("Failed to renew task leases.", e);
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+            leaseRenewer = renewer;
+        }
+    }
+
+    /**
+     * 为本节点取出但尚未确认的任务续约（包括正在重建的代码仓库和合并队列中暂存的任务），
+     * 进程存活时任务不会因为处理时间超过租约时长而被其他节点重新投递，进程崩溃后续约停止，租约到期后任务重新投递
+     * @return 续约的任务数
+     */
+    int renewLeases() {
+        int count = 0;
+        for(Map.Entry<String, Set<String>> entry : heldLeases.entrySet()) {
+            String key = getKey(entry.getKey());
+            List<String> ids = new ArrayList<>(entry.getValue());
+            for(int i = 0; i < ids.size(); i += REQUEUE_BATCH_SIZE) {
+                List<String> batch = ids.subList(i, Math.min(i + REQUEUE_BATCH_SIZE, ids.size()));
+                List<byte[]> args = new ArrayList<>();
+                args.add(bytes(System.currentTimeMillis() + leaseTimeout));
+                batch.forEach(id -> args.add(bytes(id)));
+                List<byte[]> lost = eval(RENEW_SCRIPT, ScriptOutputType.MULTI, new String[]{ key + ":inflight", key + ":leases" }, args.toArray(new byte[0][]));
+                count += batch.size() - lost.size();
+                for(byte[] id : lost) {
+                    //续约之前租约已经到期，任务已经被放回队列，可能会被重复处理
+                    if(entry.getValue().remove(new String(id, StandardCharsets.UTF_8)))
+                        log.warn("Lease {} of task<{}> expired before renewal, the task may be processed twice.", new String(id, StandardCharsets.UTF_8), entry.getKey());
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 将处理中的任务放回队列
+     * @param type
+     * @param position  head 放回队列头部，tail 放回队列尾部
+     * @param leaseIds
+     * @return 放回队列的任务数
+     */
+    private long requeue(String type, String position, List<String> leaseIds) {
+        String key = getKey(type);
+        List<byte[]> args = new ArrayList<>();
+        args.add(bytes(position));
+        args.add(bytes(getChannel()));
+        leaseIds.forEach(id -> args.add(bytes(id)));
+        return eval(REQUEUE_SCRIPT, ScriptOutputType.INTEGER, new String[]{ key + ":inflight", key + ":leases", key }, args.toArray(new byte[0][]));
+    }
+
+    /**
+     * 将租约到期的任务放回队列头部，保持它们原来的顺序
+     * @return
+     */
+    @Override
+    public int requeueExpired() {
+        if(leaseTimeout <= 0)
+            return 0;
+        int count = 0;
+        for(String type : getAllTypes()) {
+            List<byte[]> expired;
+            do {
+                expired = connection.sync().zrangebyscore(getKey(type) + ":leases",
+                        Range.create(0, System.currentTimeMillis()), Limit.create(0, REQUEUE_BATCH_SIZE));
+                if(expired.isEmpty())
+                    break;
+                List<String> ids = new ArrayList<>();
+                expired.forEach(id -> ids.add(new String(id, StandardCharsets.UTF_8)));
+                Collections.reverse(ids);   //LPUSH 会颠倒顺序
+                count += requeue(type, "head", ids);
+            } while(expired.size() >= REQUEUE_BATCH_SIZE);
+        }
+        if(count > 0)
+            log.warn("{} tasks with expired lease requeued.", count);
+        return count;
+    }
+
+    /**
+     * 使用 BLPOP 同时等待所有类型的队列，取出的任务暂存起来，下次 pop 时优先返回
+     * BLPOP 的超时单位是秒，不足一秒的等待直接休眠
+     * 启用租约时 BLPOP 取出的任务没有租约保护，改为等待 push 发布的新任务通知
+     * @param timeout  最长等待时间，单位毫秒
+     * @throws InterruptedException
+     */
+    @Override
+    public void await(long timeout) throws InterruptedException {
+        if(leaseTimeout > 0) {
+            awaitNotify(timeout);
+            return;
+        }
+        if(timeout < 1000) {
+            Thread.sleep(Math.max(timeout, 0));
+            return;
+        }
+        KeyValue<String, byte[]> kv;
+        synchronized (this) {
+            if(awaitConnection == null)
+                awaitConnection = client.connect(CODEC);
+            kv = awaitConnection.sync().blpop(timeout / 1000, getAllTypes().stream().map(this::getKey).toArray(String[]::new));
+        }
+        if(Thread.interrupted())
+            throw new InterruptedException();
+        if(kv != null && kv.hasValue()) {
+            String type = kv.getKey().substring(0, kv.getKey().lastIndexOf('@' + baseKey));
+            awaitedTasks.computeIfAbsent(type, t -> new ConcurrentLinkedDeque<>()).add(kv.getValue());
+        }
+    }
+
+    /**
+     * 等待新任务通知，首次调用时订阅通知频道，订阅之前推送的任务可能已经错过，所以立即返回
+     * @param timeout
+     * @throws InterruptedException
+     */
+    private void awaitNotify(long timeout) throws InterruptedException {
+        synchronized (this) {
+            if(notifyConnection == null) {
+                notifyConnection = client.connectPubSub();
+                notifyConnection.addListener(new RedisPubSubAdapter<String, String>() {
+                    @Override
+                    public void message(String channel, String message) {
+                        synchronized (signal) {
+                            signalled = true;
+                            signal.notifyAll();
+                        }
+                    }
+                });
+                notifyConnection.sync().subscribe(getChannel());
+                return;
+            }
+        }
+        synchronized (signal) {
+            if(!signalled && timeout > 0)
+                signal.wait(timeout);
+            signalled = false;
+        }
+    }
+
+    /**
+     * 使用 EVALSHA 执行脚本，服务端没有缓存脚本时改用 EVAL 发送脚本内容
+     * @param script
+     * @param type
+     * @param keys
+     * @param args
+     * @return
+     */
+    private <T> T eval(String script, ScriptOutputType type, String[] keys, byte[]... args) {
+        RedisCommands<String, byte[]> cmd = connection.sync();
+        String digest = scriptDigests.computeIfAbsent(script, cmd::digest);
+        try {
+            return cmd.evalsha(digest, type, keys, args);
+        } catch (RedisNoScriptException e) {
+            return cmd.eval(script, type, keys, args);
+        }
+    }
+
+    private static byte[] bytes(Object value) {
+        return String.valueOf(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private String getChannel() {
+        return baseKey + ":notify";
+    }
+
+    private String getKey(String type) {
+        return type + '@' + baseKey;
+    }
+
     @Override
     public void close() {
+        if(leaseRenewer != null)
+            leaseRenewer.shutdownNow();
+        if(awaitConnection != null)
+            awaitConnection.close();
+        if(notifyConnection != null)
+            notifyConnection.close();
+        connection.close();
         client.shutdown();
     }
 }
@@ -24,10 +24,10 @@ import org.apache.lucene.facet.taxonomy.TaxonomyReader;
 import org.apache.lucene.facet.taxonomy.TaxonomyWriter;
 import org.apache.lucene.facet.taxonomy.directory.DirectoryTaxonomyReader;
 import org.apache.lucene.facet.taxonomy.directory.DirectoryTaxonomyWriter;
-import org.apache.lucene.index.DirectoryReader;
-import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.IndexWriter;
-import org.apache.lucene.index.IndexWriterConfig;
+import com.gitee.kooder.models.Repository;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.NIOFSDirectory;
 import org.slf4j.Logger;
@@ -38,6 +38,7 @@ import java.nio.file.*;
 import java.util.Properties;
 
 import static com.gitee.kooder.core.Constants.TYPE_CODE;
+import static com.gitee.kooder.core.Constants.TYPE_REPOSITORY;
 
 /**
  * store index in disk
@@ -70,7 +71,20 @@ public class DiskIndexStorage implements IndexStorage {
 
     @Override
     public IndexWriter getWriter(String type) throws IOException {
-        return new IndexWriter(getDirectory(type, false), getWriterConfig(type));
+        FSDirectory dir = getDirectory(type, false);
+        IndexWriterConfig writerConfig = getWriterConfig(type);
+        if(TYPE_REPOSITORY.equals(type) && isIndexSortCompatible(dir, Repository.getIndexSort()))
+            writerConfig.setIndexSort(Repository.getIndexSort());
+        return new IndexWriter(dir, writerConfig);
+    }
+
+    @Override
+    public IndexWriter getRebuildWriter(String type) throws IOException {
+        IndexWriterConfig writerConfig = getWriterConfig(type);
+        writerConfig.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        if(TYPE_REPOSITORY.equals(type))
+            writerConfig.setIndexSort(Repository.getIndexSort());
+        return new IndexWriter(getDirectory(type, false), writerConfig);
     }
 
     @Override
@@ -122,6 +136,26 @@ public class DiskIndexStorage implements IndexStorage {
         return ipath;
     }
 
+    /**
+     * Lucene 不允许修改已有索引的排序方式，只有新索引或者已按该方式排序的索引才能启用
+     * @param dir
+     * @param sort
+     * @return
+     * @throws IOException
+     */
+    private static boolean isIndexSortCompatible(Directory dir, Sort sort) throws IOException {
+        if(!DirectoryReader.indexExists(dir))
+            return true;
+        SegmentInfos infos = SegmentInfos.readLatestCommit(dir);
+        for(SegmentCommitInfo info : infos) {
+            if(!sort.equals(info.info.getIndexSort())) {
+                log.warn("Index sort {} disabled for {}, run bin/gsmigrate to rebuild the index.", sort, dir);
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * 索引配置
      * @return
@@ -57,6 +57,14 @@ public interface IndexStorage {
      */
     IndexWriter getWriter(String type) throws IOException;
 
+    /**
+     * 获取重建索引的入口，提交后替换原有索引，提交之前原有索引保持不变
+     * @param type
+     * @return
+     * @throws IOException
+     */
+    IndexWriter getRebuildWriter(String type) throws IOException;
+
     /**
      * 获取分类数据写入入口
      * @param type
@@ -64,6 +64,22 @@ public class StorageFactory {
         return repositoriesPath.resolve(path);
     }
 
+    /**
+     * 返回仓库存储的根目录
+     * @return
+     */
+    public static Path getRepositoriesPath() {
+        return repositoriesPath;
+    }
+
+    /**
+     * 仓库存储空间上限，单位：字节
+     * @return
+     */
+    public static long getRepositoriesMaxSize() {
+        return repositoriesMaxSizeInGigabyte * 1024L * 1024L * 1024L;
+    }
+
     /**
      * 获取索引更新的入口
      * @param type
@@ -74,6 +90,16 @@ public class StorageFactory {
         return storage.getWriter(type);
     }
 
+    /**
+     * 获取重建索引的入口，提交后替换原有索引
+     * @param type
+     * @return
+     * @throws IOException
+     */
+    public static IndexWriter getRebuildIndexWriter(String type) throws IOException {
+        return storage.getRebuildWriter(type);
+    }
+
     /**
      * 获取读索引的入口
      * @param type
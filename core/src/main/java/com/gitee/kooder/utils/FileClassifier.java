@@ -20,17 +20,24 @@ import org.apache.commons.io.FilenameUtils;
 
 import java.io.*;
 import java.util.*;
-import java.util.stream.Stream;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 编程语言自动识别
+ * 文件名和扩展名在类加载时建立索引，扩展名对应多种语言时使用 Aho-Corasick 自动机在文件开头查找各语言的关键字
  */
 public class FileClassifier {
 
     public final static String UNKNOWN_LANGUAGE = "Unknown";
     public final static String BINARY_LANGUAGE  = "Binary";
 
+    //识别语言时只在文件开头的这些字符中查找关键字
+    private final static int KEYWORD_SCAN_LENGTH = 64 * 1024;
+
     private static Map<String, FileClassifierResult> database;
+    private static Map<String, List<String>> filenameIndex = new HashMap<>();   //file name -> languages
+    private static Map<String, List<String>> extensionIndex = new HashMap<>();  //extension -> languages
+    private static Map<List<String>, KeywordMatcher> keywordMatchers = new ConcurrentHashMap<>();
 
     static {
         try (InputStream stream = FileClassifier.class.getResourceAsStream("/languages.json")){
@@ -39,6 +46,16 @@ public class FileClassifier {
         } catch (IOException ex) {
             ex.printStackTrace();
         }
+        if(database != null) {
+            database.forEach((name, language) -> {
+                if (language.filenames != null)
+                    for (String filename : language.filenames)
+                        filenameIndex.computeIfAbsent(filename, k -> new ArrayList<>()).add(name);
+                if (language.extensions != null)
+                    for (String ext : language.extensions)
+                        extensionIndex.computeIfAbsent(ext, k -> new ArrayList<>()).add(name);
+            });
+        }
     }
 
     public static Map<String, FileClassifierResult> getDatabase() {
@@ -87,65 +104,132 @@ public class FileClassifier {
         }
 
         // We have multiple matches, so try to work out which one is the most likely result
-        HashMap<String, Integer> toSort = new HashMap();
-
-        for (String m : matches) {
-            toSort.put(m, 0);
-            if (database.get(m).keywords != null) {
-                for (String keyword : database.get(m).keywords) {
-                    if (content.contains(keyword)) {
-                        toSort.put(m, toSort.get(m) + 1);
-                    }
-                }
-            }
-        }
-
-        return sortByValue(toSort).keySet().stream().findFirst().orElse(UNKNOWN_LANGUAGE);
-    }
-
-    /**
-     * Sorts a map by value taken from
-     * http://stackoverflow.com/questions/109383/sort-a-mapkey-value-by-values-java
-     */
-    private static <K, V extends Comparable<? super V>> Map<K, V> sortByValue(Map<K, V> map) {
-        Map<K, V> result = new LinkedHashMap<>();
-        Stream<Map.Entry<K, V>> st = map.entrySet().stream();
-        st.sorted(Map.Entry.comparingByValue()).forEachOrdered(e -> result.put(e.getKey(), e.getValue()));
-        return result;
+        KeywordMatcher matcher = keywordMatchers.computeIfAbsent(matches, KeywordMatcher::new);
+        return matcher.guess(content);
     }
 
     private static List<String> checkIfExtentionExists(String extension) {
-        List<String> matches = new ArrayList<>();
+        return extensionIndex.getOrDefault(extension, Collections.emptyList());
+    }
 
-        for (String key : database.keySet()) {
-            FileClassifierResult fileClassifierResult = database.get(key);
+    private static List<String> checkIfFilenameExists(String extension) {
+        return filenameIndex.getOrDefault(extension, Collections.emptyList());
+    }
 
-            for (String ext : fileClassifierResult.extensions) {
-                if (extension.equals(ext)) {
-                    matches.add(key);
+    /**
+     * 在多个候选语言中，选择文件开头包含关键字最多的语言
+     */
+    private static class KeywordMatcher {
+
+        private final List<String> languages;
+        private final int[][] languageKeywords;     //language -> keyword ids
+        private final int keywordCount;
+
+        //Aho-Corasick automaton
+        private final List<Map<Character, Integer>> transitions = new ArrayList<>();
+        private final List<int[]> outputs = new ArrayList<>();   //state -> matched keyword ids
+        private int[] failures;
+
+        KeywordMatcher(List<String> candidates) {
+            //关键字数量相同时按 HashSet 中的顺序选择，与原先排序的结果一致
+            this.languages = new ArrayList<>(new HashSet<>(candidates));
+            this.languageKeywords = new int[languages.size()][];
+
+            Map<String, Integer> keywordIds = new HashMap<>();
+            this.transitions.add(new HashMap<>());
+            this.outputs.add(new int[0]);
+            for (int i = 0; i < languages.size(); i++) {
+                String[] keywords = database.get(languages.get(i)).keywords;
+                if (keywords == null)
+                    keywords = new String[0];
+                languageKeywords[i] = new int[keywords.length];
+                for (int j = 0; j < keywords.length; j++) {
+                    String keyword = keywords[j];
+                    Integer id = keywordIds.get(keyword);
+                    if (id == null) {
+                        id = keywordIds.size();
+                        keywordIds.put(keyword, id);
+                        addKeyword(keyword, id);
+                    }
+                    languageKeywords[i][j] = id;
                 }
             }
+            this.keywordCount = keywordIds.size();
+            buildFailures();
         }
 
-        return matches;
-    }
+        private void addKeyword(String keyword, int id) {
+            int state = 0;
+            for (int i = 0; i < keyword.length(); i++) {
+                Integer next = transitions.get(state).get(keyword.charAt(i));
+                if (next == null) {
+                    next = transitions.size();
+                    transitions.get(state).put(keyword.charAt(i), next);
+                    transitions.add(new HashMap<>());
+                    outputs.add(new int[0]);
+                }
+                state = next;
+            }
+            outputs.set(state, append(outputs.get(state), id));
+        }
 
-    private static List<String> checkIfFilenameExists(String extension) {
-        List<String> matches = new ArrayList<>();
+        private void buildFailures() {
+            failures = new int[transitions.size()];
+            Deque<Integer> queue = new ArrayDeque<>(transitions.get(0).values());
+            while (!queue.isEmpty()) {
+                int state = queue.poll();
+                for (Map.Entry<Character, Integer> entry : transitions.get(state).entrySet()) {
+                    int next = entry.getValue();
+                    int failure = failures[state];
+                    while (failure > 0 && !transitions.get(failure).containsKey(entry.getKey()))
+                        failure = failures[failure];
+                    Integer target = transitions.get(failure).get(entry.getKey());
+                    failures[next] = (target != null && target != next) ? target : 0;
+                    for (int id : outputs.get(failures[next]))
+                        outputs.set(next, append(outputs.get(next), id));
+                    queue.add(next);
+                }
+            }
+        }
 
-        for (String key : database.keySet()) {
-            FileClassifierResult fileClassifierResult = database.get(key);
+        String guess(String content) {
+            boolean[] found = new boolean[keywordCount];
+            for (int id : outputs.get(0))   //empty keyword
+                found[id] = true;
+            if (content != null) {
+                int state = 0;
+                int length = Math.min(content.length(), KEYWORD_SCAN_LENGTH);
+                for (int i = 0; i < length; i++) {
+                    char c = content.charAt(i);
+                    Integer next;
+                    while ((next = transitions.get(state).get(c)) == null && state > 0)
+                        state = failures[state];
+                    state = (next != null) ? next : 0;
+                    for (int id : outputs.get(state))
+                        found[id] = true;
+                }
+            }
 
-            if (fileClassifierResult.filenames != null) {
-                for (String ext : fileClassifierResult.filenames) {
-                    if (extension.equals(ext)) {
-                        matches.add(key);
-                    }
+            String language = UNKNOWN_LANGUAGE;
+            int maxCount = -1;
+            for (int i = 0; i < languages.size(); i++) {
+                int count = 0;
+                for (int id : languageKeywords[i])
+                    if (found[id])
+                        count++;
+                if (count > maxCount) {
+                    maxCount = count;
+                    language = languages.get(i);
                 }
             }
+            return language;
         }
 
-        return matches;
+        private static int[] append(int[] values, int value) {
+            int[] newValues = Arrays.copyOf(values, values.length + 1);
+            newValues[values.length] = value;
+            return newValues;
+        }
     }
 
     public static void main(String[] args) {
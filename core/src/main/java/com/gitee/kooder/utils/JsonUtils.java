@@ -16,6 +16,8 @@
 package com.gitee.kooder.utils;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.DeserializationFeature;
@@ -26,6 +28,7 @@ import org.apache.commons.lang3.math.NumberUtils;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 
 /**
  * JSON 工具包
@@ -78,6 +81,28 @@ public class JsonUtils {
         return null;
     }
 
+    /**
+     * 创建直接写入输出流的 JSON 生成器，关闭生成器时不关闭输出流
+     * @param out
+     * @return
+     * @throws IOException
+     */
+    public static JsonGenerator createGenerator(OutputStream out) throws IOException {
+        return JSON.getFactory().createGenerator(out, JsonEncoding.UTF8).disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    }
+
+    /**
+     * 对象以 JSON 格式写入输出流，不生成完整的字符串
+     * @param out
+     * @param obj
+     * @throws IOException
+     */
+    public static void writeJson(OutputStream out, Object obj) throws IOException {
+        try (JsonGenerator generator = createGenerator(out)) {
+            JSON.writeValue(generator, obj);
+        }
+    }
+
     /**
      * 解析 JSON 到对象
      * @param content
@@ -14,132 +14,38 @@ import java.util.*;
 
 /**
  * 源文件统计，包括总行数，代码行，注释行，空行等，还有代码复杂度评估
+ * 每种语言的注释、字符串、复杂度关键字在构造时预编译为按首字符分派的匹配表，统计时不再遍历全部规则
  */
 public class SlocCounter {
 
-    private final Map<String, FileClassifierResult> database;
-    private final ArrayList<List<Integer>> byteOrderMarks;
+    private final Map<String, LanguageMatcher> matchers;
+
+    // Taken from https://en.wikipedia.org/wiki/Byte_order_mark#Byte_order_marks_by_encoding
+    private final static char[][] byteOrderMarks = {
+            {239, 187, 191},       // UTF-8
+            {254, 255},            // UTF-16 BE
+            {255, 254},            // UTF-16 LE
+            {0, 0, 254, 255},      // UTF-32 BE
+            {255, 254, 0, 0},      // UTF-32 LE
+            {43, 47, 118, 56},     // UTF-7
+            {43, 47, 118, 57},     // UTF-7
+            {43, 47, 118, 43},     // UTF-7
+            {43, 47, 118, 47},     // UTF-7
+            {43, 47, 118, 56, 45}, // UTF-7
+            {247, 100, 76},        // UTF-7
+            {221, 115, 102, 115},  // UTF-EBCDIC
+            {14, 254, 255},        // SCSU
+            {251, 238, 40},        // BOCU-1
+            {132, 49, 149, 51}     // GB-18030
+    };
 
     public SlocCounter() {
-        this.database = FileClassifier.getDatabase();
-
-        // Taken from https://en.wikipedia.org/wiki/Byte_order_mark#Byte_order_marks_by_encoding
-        byteOrderMarks = new ArrayList<>(Arrays.asList(
-                Arrays.asList(239, 187, 191),       // UTF-8
-                Arrays.asList(254, 255),            // UTF-16 BE
-                Arrays.asList(255, 254),            // UTF-16 LE
-                Arrays.asList(0, 0, 254, 255),      // UTF-32 BE
-                Arrays.asList(255, 254, 0, 0),      // UTF-32 LE
-                Arrays.asList(43, 47, 118, 56),     // UTF-7
-                Arrays.asList(43, 47, 118, 57),     // UTF-7
-                Arrays.asList(43, 47, 118, 43),     // UTF-7
-                Arrays.asList(43, 47, 118, 47),     // UTF-7
-                Arrays.asList(43, 47, 118, 56, 45), // UTF-7
-                Arrays.asList(247, 100, 76),        // UTF-7
-                Arrays.asList(221, 115, 102, 115),  // UTF-EBCDIC
-                Arrays.asList(14, 254, 255),        // SCSU
-                Arrays.asList(251, 238, 40),        // BOCU-1
-                Arrays.asList(132, 49, 149, 51)     // GB-18030
-        ));
+        Map<String, LanguageMatcher> matchers = new HashMap<>();
+        FileClassifier.getDatabase().forEach((name, language) -> matchers.put(name, new LanguageMatcher(language)));
+        this.matchers = matchers;
     }
 
-    public boolean checkForMatch(char currentByte, int index, int endPoint, String[] matches, String content) {
-        if (matches == null) {
-            return false;
-        }
-
-        for (int i = 0; i < matches.length; i++) { // For each match
-            if (currentByte == matches[i].charAt(0)) { // If the first character matches
-                boolean potentialMatch = true;
-
-                for (int j = 0; j < matches[i].length(); j++) { // Check if the rest match
-                    if (index + j <= endPoint && matches[i].charAt(j) != content.charAt(index + j)) {
-                        potentialMatch = false;
-                    }
-                }
-
-                if (potentialMatch) {
-                    return true;
-                }
-            }
-        }
-
-        return false;
-    }
-
-    public boolean checkForMatchSingle(char currentByte, int index, int endPoint, String match, String content) {
-        if (match == null) {
-            return false;
-        }
-
-        if (match.length() != 0 && currentByte == match.charAt(0)) { // If the first character matches
-            boolean potentialMatch = true;
-
-            for (int j = 0; j < match.length(); j++) { // Check if the rest match
-                if (index + j <= endPoint && match.charAt(j) != content.charAt(index + j)) {
-                    potentialMatch = false;
-                }
-            }
-
-            return potentialMatch;
-        }
-
-        return false;
-    }
-
-    public String checkForMatchMultiOpen(char currentByte, int index, int endPoint, String[][] matches, String content) {
-        if (matches == null) {
-            return null;
-        }
-
-        for (int i = 0; i < matches.length; i++) { // For each match
-            if (currentByte == matches[i][0].charAt(0)) { // If the first character matches
-                boolean potentialMatch = true;
-
-                for (int j = 0; j < matches[i][0].length(); j++) { // Check if the rest match
-                    if (index + j <= endPoint && matches[i][0].charAt(j) != content.charAt(index + j)) {
-                        potentialMatch = false;
-                        break;
-                    }
-                }
-
-                if (potentialMatch) {
-                    // Refers to the closing condition for the matching open
-                    return matches[i][1];
-                }
-            }
-        }
-
-        return null;
-    }
-
-    public String checkForMatchMultiOpenQuote(char currentByte, int index, int endPoint, LanguageQuote[] matches, String content) {
-        if (matches == null) {
-            return null;
-        }
-
-        for (int i = 0; i < matches.length; i++) { // For each match
-            if (currentByte == matches[i].start.charAt(0)) { // If the first character matches
-                boolean potentialMatch = true;
-
-                for (int j = 0; j < matches[i].start.length(); j++) { // Check if the rest match
-                    if (index + j <= endPoint && matches[i].start.charAt(j) != content.charAt(index + j)) {
-                        potentialMatch = false;
-                        break;
-                    }
-                }
-
-                if (potentialMatch) {
-                    // Refers to the closing condition for the matching open
-                    return matches[i].end;
-                }
-            }
-        }
-
-        return null;
-    }
-
-    public boolean isWhitespace(char currentByte) {
+    private static boolean isWhitespace(char currentByte) {
         return currentByte == ' ' || currentByte == '\t' || currentByte == '\n' || currentByte == '\r';
     }
 
@@ -147,22 +53,24 @@ public class SlocCounter {
      * Reimplementation of scc https://github.com/boyter/scc/ 1.9.0 ported from
      * Go into Java and specific for the searchcode project.
      */
-    public SlocCount countStats(String contents, String languageName) {
-        if (contents == null || contents.isEmpty()) {
+    public SlocCount countStats(CharSequence contents, String languageName) {
+        if (contents == null || contents.length() == 0) {
             return new SlocCount();
         }
 
-        FileClassifierResult fileClassifierResult = this.database.get(languageName);
+        LanguageMatcher matcher = this.matchers.get(languageName);
 
-        if (fileClassifierResult == null) {
-            return new SlocCount(contents.split("\n").length, 0, 0, 0, 0);
+        if (matcher == null) {
+            return new SlocCount(countLines(contents), 0, 0, 0, 0);
         }
 
         State currentState = State.S_BLANK;
 
-        int endPoint = contents.length() - 1;
+        int length = contents.length();
+        int endPoint = length - 1;
         String endString = null;
-        ArrayList<String> endComments = new ArrayList<>();
+        String[] endComments = null;    // stack of closing strings for nested multi-line comments
+        int depth = 0;
         int linesCount = 0;
         int blankCount = 0;
         int codeCount = 0;
@@ -171,55 +79,56 @@ public class SlocCounter {
 
         int start = this.checkBomSkip(contents);
 
-        for (int index = start; index < contents.length(); index++) {
-            if (!isWhitespace(contents.charAt(index))) {
+        for (int index = start; index < length; index++) {
+            char currentByte = contents.charAt(index);
+            if (!isWhitespace(currentByte)) {
                 switch (currentState) {
                     case S_CODE:
-                        if (fileClassifierResult.nestedmultiline || endComments.isEmpty()) {
-                            endString = this.checkForMatchMultiOpen(contents.charAt(index), index, endPoint, fileClassifierResult.multi_line, contents);
+                        if (matcher.nestedmultiline || depth == 0) {
+                            endString = matcher.multiLine.match(currentByte, contents, index, endPoint);
                             if (endString != null) {
                                 index += endString.length() - 1;
-                                endComments.add(endString);
+                                endComments = push(endComments, depth++, endString);
                                 currentState = State.S_MULTICOMMENT_CODE;
                                 break;
                             }
                         }
 
-                        if (this.checkForMatch(contents.charAt(index), index, endPoint, fileClassifierResult.line_comment, contents)) {
+                        if (matcher.lineComment.match(currentByte, contents, index, endPoint) != null) {
                             currentState = State.S_COMMENT_CODE;
                             break;
                         }
 
-                        endString = this.checkForMatchMultiOpenQuote(contents.charAt(index), index, endPoint, fileClassifierResult.quotes, contents);
+                        endString = matcher.quotes.match(currentByte, contents, index, endPoint);
                         if (endString != null) {
                             currentState = State.S_STRING;
                             break;
-                        } else if (this.checkForMatch(contents.charAt(index), index, endPoint, fileClassifierResult.complexitychecks, contents)) {
+                        } else if (matcher.complexityChecks.match(currentByte, contents, index, endPoint) != null) {
                             complexity++;
                         }
                         break;
                     case S_STRING:
-                        if (contents.charAt(index - 1) != '\\' && this.checkForMatchSingle(contents.charAt(index), index, endPoint, endString, contents)) {
+                        if (contents.charAt(index - 1) != '\\' && matchSingle(currentByte, endString, contents, index, endPoint)) {
                             currentState = State.S_CODE;
                         }
                         break;
                     case S_MULTICOMMENT:
                     case S_MULTICOMMENT_CODE:
-                        if (fileClassifierResult.nestedmultiline || endComments.isEmpty()) {
-                            endString = this.checkForMatchMultiOpen(contents.charAt(index), index, endPoint, fileClassifierResult.multi_line, contents);
+                        if (matcher.nestedmultiline || depth == 0) {
+                            endString = matcher.multiLine.match(currentByte, contents, index, endPoint);
                             if (endString != null) {
                                 index += endString.length() - 1;
-                                endComments.add(endString);
+                                endComments = push(endComments, depth++, endString);
                                 currentState = State.S_MULTICOMMENT_CODE;
                                 break;
                             }
                         }
 
-                        if (this.checkForMatchSingle(contents.charAt(index), index, endPoint, endComments.get(endComments.size() - 1), contents)) {
-                            index += endComments.get(endComments.size() - 1).length() - 1;
-                            endComments.remove(endComments.size() - 1);
+                        if (matchSingle(currentByte, endComments[depth - 1], contents, index, endPoint)) {
+                            index += endComments[depth - 1].length() - 1;
+                            depth--;
 
-                            if (endComments.isEmpty()) {
+                            if (depth == 0) {
                                 if (currentState == State.S_MULTICOMMENT_CODE) {
                                     currentState = State.S_CODE;
                                 } else {
@@ -230,29 +139,29 @@ public class SlocCounter {
                         break;
                     case S_BLANK:
                     case S_MULTICOMMENT_BLANK:
-                        if (this.checkForMatch(contents.charAt(index), index, endPoint, fileClassifierResult.line_comment, contents)) {
+                        if (matcher.lineComment.match(currentByte, contents, index, endPoint) != null) {
                             currentState = State.S_COMMENT;
                             break;
                         }
 
-                        if (fileClassifierResult.nestedmultiline || endComments.isEmpty()) {
-                            endString = this.checkForMatchMultiOpen(contents.charAt(index), index, endPoint, fileClassifierResult.multi_line, contents);
+                        if (matcher.nestedmultiline || depth == 0) {
+                            endString = matcher.multiLine.match(currentByte, contents, index, endPoint);
                             if (endString != null) {
                                 index += endString.length() - 1;
-                                endComments.add(endString);
+                                endComments = push(endComments, depth++, endString);
                                 currentState = State.S_MULTICOMMENT;
                                 break;
                             }
                         }
 
-                        endString = this.checkForMatchMultiOpenQuote(contents.charAt(index), index, endPoint, fileClassifierResult.quotes, contents);
+                        endString = matcher.quotes.match(currentByte, contents, index, endPoint);
                         if (endString != null) {
                             currentState = State.S_STRING;
                             break;
                         }
 
                         currentState = State.S_CODE;
-                        if (this.checkForMatch(contents.charAt(index), index, endPoint, fileClassifierResult.complexitychecks, contents)) {
+                        if (matcher.complexityChecks.match(currentByte, contents, index, endPoint) != null) {
                             complexity++;
                         }
                         break;
@@ -261,7 +170,7 @@ public class SlocCounter {
 
             // This means the end of processing the line so calculate the stats according to what state
             // we are currently in
-            if (index >= contents.length() || contents.charAt(index) == '\n' || index == endPoint) {
+            if (index >= length || contents.charAt(index) == '\n' || index == endPoint) {
                 linesCount++;
 
                 switch (currentState) {
@@ -284,9 +193,7 @@ public class SlocCounter {
 
                 if (currentState == State.S_MULTICOMMENT || currentState == State.S_MULTICOMMENT_CODE) {
                     currentState = State.S_MULTICOMMENT;
-                } else if (currentState == State.S_STRING) {
-                    currentState = State.S_STRING;
-                } else {
+                } else if (currentState != State.S_STRING) {
                     currentState = State.S_BLANK;
                 }
             }
@@ -295,20 +202,21 @@ public class SlocCounter {
         return new SlocCount(linesCount, blankCount, codeCount, commentCount, complexity);
     }
 
-    public int checkBomSkip(String contents) {
+    public int checkBomSkip(CharSequence contents) {
         int start = 0;
 
-        for (List<Integer> bom : byteOrderMarks) {
-            if (contents.length() >= bom.size()) {
+        for (char[] bom : byteOrderMarks) {
+            if (contents.length() >= bom.length) {
                 boolean isMatch = true;
-                for (int i = 0; i < bom.size(); i++) {
-                    if (contents.charAt(i) != bom.get(i)) {
+                for (int i = 0; i < bom.length; i++) {
+                    if (contents.charAt(i) != bom[i]) {
                         isMatch = false;
+                        break;
                     }
                 }
 
                 if (isMatch) {
-                    start = bom.size();
+                    start = bom.length;
                 }
             }
         }
@@ -316,6 +224,140 @@ public class SlocCounter {
         return start;
     }
 
+    /**
+     * 未知语言只统计行数，结果与 contents.split("\n").length 相同（忽略末尾的空行）
+     */
+    private static int countLines(CharSequence contents) {
+        int last = contents.length() - 1;
+        while (last >= 0 && contents.charAt(last) == '\n') {
+            last--;
+        }
+        if (last < 0) {
+            return 0;
+        }
+        int lines = 1;
+        for (int i = 0; i < last; i++) {
+            if (contents.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    private static String[] push(String[] stack, int depth, String value) {
+        if (stack == null) {
+            stack = new String[4];
+        } else if (depth == stack.length) {
+            stack = Arrays.copyOf(stack, depth * 2);
+        }
+        stack[depth] = value;
+        return stack;
+    }
+
+    private static boolean matchSingle(char currentByte, String match, CharSequence content, int index, int endPoint) {
+        return match != null && match.length() != 0 && currentByte == match.charAt(0) && matchesAt(match, content, index, endPoint);
+    }
+
+    /**
+     * 比较从 index 开始的内容，超出内容末尾的部分视为匹配
+     */
+    private static boolean matchesAt(String match, CharSequence content, int index, int endPoint) {
+        int count = Math.min(match.length(), endPoint - index + 1);
+        for (int j = 1; j < count; j++) {
+            if (match.charAt(j) != content.charAt(index + j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 一种语言预编译后的匹配规则
+     */
+    private static class LanguageMatcher {
+
+        private final boolean nestedmultiline;
+        private final PatternTable lineComment;
+        private final PatternTable complexityChecks;
+        private final PatternTable multiLine;
+        private final PatternTable quotes;
+
+        LanguageMatcher(FileClassifierResult language) {
+            this.nestedmultiline = language.nestedmultiline;
+            this.lineComment = new PatternTable();
+            this.complexityChecks = new PatternTable();
+            this.multiLine = new PatternTable();
+            this.quotes = new PatternTable();
+            if (language.line_comment != null) {
+                for (String comment : language.line_comment) {
+                    lineComment.add(comment, comment);
+                }
+            }
+            if (language.complexitychecks != null) {
+                for (String check : language.complexitychecks) {
+                    complexityChecks.add(check, check);
+                }
+            }
+            if (language.multi_line != null) {
+                for (String[] comment : language.multi_line) {
+                    multiLine.add(comment[0], comment[1]);
+                }
+            }
+            if (language.quotes != null) {
+                for (LanguageQuote quote : language.quotes) {
+                    quotes.add(quote.start, quote.end);
+                }
+            }
+        }
+    }
+
+    /**
+     * 按首字符分派的匹配表，首字符相同的规则保持 languages.json 中的顺序，返回第一个匹配规则对应的结果
+     */
+    private static class PatternTable {
+
+        private final static int ASCII = 128;
+
+        private final String[][] patterns = new String[ASCII][];   // first char -> patterns
+        private final String[][] results = new String[ASCII][];
+        private String[] otherPatterns;                             // patterns starting with non-ascii char
+        private String[] otherResults;
+
+        void add(String pattern, String result) {
+            char first = pattern.charAt(0);
+            if (first < ASCII) {
+                patterns[first] = append(patterns[first], pattern);
+                results[first] = append(results[first], result);
+            } else {
+                otherPatterns = append(otherPatterns, pattern);
+                otherResults = append(otherResults, result);
+            }
+        }
+
+        String match(char currentByte, CharSequence content, int index, int endPoint) {
+            String[] candidates = (currentByte < ASCII) ? patterns[currentByte] : otherPatterns;
+            if (candidates == null) {
+                return null;
+            }
+            for (int i = 0; i < candidates.length; i++) {
+                String pattern = candidates[i];
+                if (pattern.charAt(0) == currentByte && matchesAt(pattern, content, index, endPoint)) {
+                    return (currentByte < ASCII) ? results[currentByte][i] : otherResults[i];
+                }
+            }
+            return null;
+        }
+
+        private static String[] append(String[] values, String value) {
+            if (values == null) {
+                return new String[]{value};
+            }
+            String[] newValues = Arrays.copyOf(values, values.length + 1);
+            newValues[values.length] = value;
+            return newValues;
+        }
+    }
+
     // Used to hold the state of the pointer so we know what type of code we
     // are dealing with
     public enum State {
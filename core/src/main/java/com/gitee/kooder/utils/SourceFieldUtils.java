@@ -6,7 +6,18 @@ package com.gitee.kooder.utils;
 
 import com.gitee.kooder.core.Constants;
 import com.gitee.kooder.core.KooderConfig;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteBuffersDataOutput;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * <Description>
@@ -16,13 +27,91 @@ import org.apache.commons.lang3.math.NumberUtils;
  */
 public class SourceFieldUtils {
 
-    // 源码字段数量（source_0,source_1,source_2这样拼接），支持的源码文件大小为 num*32766
+    // 单个源码分片的最大长度，32766 是 lucene 单个词条支持的最大长度
+    public final static int SOURCE_CHUNK_SIZE = 32766;
+
+    // 同一文件相邻两个分片之间的位置间隔，必须大于 CodeQuery 中短语查询的 slop，避免跨分片匹配
+    public final static int SOURCE_POSITION_GAP = 100;
+
+    // 源码分片数量上限（全部写入同一个多值字段 source），支持的源码文件大小为 num*32766
+    private final static int SOURCE_FIELD_NUMBER = NumberUtils.toInt(KooderConfig.getProperty("source.field.number"),  10);
+
+    // 源码字段的索引方式，倒排表中保存偏移量，用于直接定位匹配的代码行
+    public final static FieldType SOURCE_FIELD_TYPE = new FieldType(TextField.TYPE_STORED){{
+        setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+        freeze();
+    }};
+
     public static int getSourceFieldNumber() {
-        return NumberUtils.toInt(KooderConfig.getProperty("source.field.number"),  10);
+        return SOURCE_FIELD_NUMBER;
     }
 
-
+    /**
+     * 旧版本索引使用的源码字段名（source_0,source_1,source_2），仅用于索引迁移
+     * @param index
+     * @return
+     */
     public static String getSourceFieldName(int index) {
         return Constants.FIELD_SOURCE + "_" + index;
     }
+
+    /**
+     * 将源码切分成多个分片，分片数超出配置时截断
+     * @param contents
+     * @return
+     */
+    public static List<String> splitSourceChunks(String contents) {
+        List<String> chunks = new ArrayList<>();
+        for (int offset = 0; offset < contents.length() && chunks.size() < SOURCE_FIELD_NUMBER; offset += SOURCE_CHUNK_SIZE) {
+            chunks.add(StringUtils.substring(contents, offset, offset + SOURCE_CHUNK_SIZE));
+        }
+        return chunks;
+    }
+
+    /**
+     * 源码内容是否超出分片数量上限
+     * @param contents
+     * @return
+     */
+    public static boolean isTruncated(String contents) {
+        return contents.length() > (long)SOURCE_CHUNK_SIZE * SOURCE_FIELD_NUMBER;
+    }
+
+    /**
+     * 计算每一行的起始偏移量，按差值以 vint 编码保存
+     * @param contents
+     * @return
+     */
+    public static byte[] encodeLineStarts(String contents) {
+        ByteBuffersDataOutput output = new ByteBuffersDataOutput();
+        int last = 0;
+        try {
+            for (int i = 0; i < contents.length(); i++) {
+                if (contents.charAt(i) == '\n') {
+                    output.writeVInt(i + 1 - last);
+                    last = i + 1;
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return output.toArrayCopy();
+    }
+
+    /**
+     * 解码行起始偏移量，第一行从 0 开始
+     * @param bytes
+     * @return
+     */
+    public static int[] decodeLineStarts(BytesRef bytes) {
+        List<Integer> starts = new ArrayList<>();
+        starts.add(0);
+        ByteArrayDataInput input = new ByteArrayDataInput(bytes.bytes, bytes.offset, bytes.length);
+        int last = 0;
+        while (!input.eof()) {
+            last += input.readVInt();
+            starts.add(last);
+        }
+        return starts.stream().mapToInt(Integer::intValue).toArray();
+    }
 }
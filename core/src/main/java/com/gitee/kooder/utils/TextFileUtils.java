@@ -22,8 +22,9 @@ import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FilenameUtils;
 
 import java.io.*;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.*;
 import java.util.Arrays;
 import java.util.List;
 
@@ -35,6 +36,15 @@ public class TextFileUtils {
 
     public static final long DEFAULT_MAX_FILE_LENGTH_READ = 30_000_000;
 
+    //每个线程缓存的解码缓冲区的最大长度，更大的文件使用临时缓冲区
+    private static final int MAX_CACHED_BUFFER_CHARS = 1 << 20;
+
+    private static final ThreadLocal<CharsetDecoder> utf8Decoders = ThreadLocal.withInitial(() ->
+            StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT));
+    private static final ThreadLocal<CharBuffer> charBuffers = ThreadLocal.withInitial(() -> CharBuffer.allocate(8192));
+
     private static String[] binaryExtensions = {"png","gif","jpg","jpeg","bmp","ico",
                                                 "mp4","3gp","mpeg","flv","avi","wmv","mov","dat",
                                                 "zip","gz","tar","rar","7z","jar",
@@ -105,6 +115,87 @@ public class TextFileUtils {
         return (lines.length > maxFileLineDepth && maxFileLineDepth > 0)?Arrays.asList(lines).subList(0, maxFileLineDepth):Arrays.asList(lines);
     }
 
+    /**
+     * 将文件内容解码为文本，换行符统一为 \n，并去掉末尾的空行（与 readFileLines 后按 \n 合并的结果一致）。
+     * 优先按 UTF-8 解码，内容不是合法的 UTF-8 时才使用 ICU 识别文件编码
+     * @param bytes 文件内容
+     * @param length 内容长度
+     * @return
+     */
+    public static String decodeText(byte[] bytes, int length) {
+        int offset = 0;
+        if(length >= 3 && (bytes[0] & 0xFF) == 0xEF && (bytes[1] & 0xFF) == 0xBB && (bytes[2] & 0xFF) == 0xBF)
+            offset = 3;  //UTF-8 BOM
+
+        CharBuffer buffer = charBuffer(length - offset);
+        CharsetDecoder decoder = utf8Decoders.get().reset();
+        CoderResult result = decoder.decode(ByteBuffer.wrap(bytes, offset, length - offset), buffer, true);
+        if(!result.isError())
+            result = decoder.flush(buffer);
+        if(!result.isError())
+            return normalizeLines(buffer.array(), buffer.position());
+
+        char[] chars = detectAndDecode(bytes, length).toCharArray();
+        return normalizeLines(chars, chars.length);
+    }
+
+    /**
+     * 使用 ICU 识别编码后解码
+     * @param bytes
+     * @param length
+     * @return
+     */
+    private static String detectAndDecode(byte[] bytes, int length) {
+        byte[] data = (length == bytes.length) ? bytes : Arrays.copyOf(bytes, length);
+        CharsetMatch charsetMatch = new CharsetDetector().setText(data).detect();
+        if(charsetMatch != null) {
+            try {
+                return new String(data, charsetMatch.getName());
+            } catch (UnsupportedEncodingException e) {
+            }
+        }
+        return new String(data, Charset.defaultCharset());
+    }
+
+    /**
+     * 获取当前线程的解码缓冲区，UTF-8 解码后的字符数不会超过字节数
+     * @param capacity
+     * @return
+     */
+    private static CharBuffer charBuffer(int capacity) {
+        if(capacity > MAX_CACHED_BUFFER_CHARS)
+            return CharBuffer.allocate(capacity);
+        CharBuffer buffer = charBuffers.get();
+        if(buffer.capacity() < capacity) {
+            buffer = CharBuffer.allocate(Math.max(capacity, buffer.capacity() * 2));
+            charBuffers.set(buffer);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * 将 \r\n 和 \r 替换为 \n，并去掉末尾的换行符
+     * @param chars
+     * @param length
+     * @return
+     */
+    private static String normalizeLines(char[] chars, int length) {
+        int w = 0;
+        for(int i = 0; i < length; i++) {
+            char c = chars[i];
+            if(c == '\r') {
+                c = '\n';
+                if(i + 1 < length && chars[i + 1] == '\n')
+                    i++;
+            }
+            chars[w++] = c;
+        }
+        while(w > 0 && chars[w - 1] == '\n')
+            w--;
+        return new String(chars, 0, w);
+    }
+
     /**
      * 检查文件的编码
      * @param file
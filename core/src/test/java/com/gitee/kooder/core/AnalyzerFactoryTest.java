@@ -0,0 +1,113 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.core;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 多线程同时使用索引、查询和高亮分词器，分词结果（包括位置）必须与单线程时一致，写入索引时不能出现位置错乱的异常
+ * @author Winter Lau<javayou@gmail.com>
+ */
+public class AnalyzerFactoryTest {
+
+    private final static String[] SAMPLES = {
+            "中华人民共和国成立了 Kooder 是一个代码搜索系统",
+            "Gitee 开源中国 OSChina 码云 企业版 git仓库",
+            "北京大学生前来应聘，研究生命起源",
+            "C++ 和 Java、Python3.8 以及 Node.js 的 http://gitee.com/ 网址",
+            "数据库连接池 Redis 队列 123abc 一二三四五 《代码》 test@oschina.cn",
+            "蓝色的天空，白云朵朵。乒乓球拍卖完了"
+    };
+
+    private final static int THREADS = 4;
+    private final static int ROUNDS = 500;
+
+    @Test
+    public void testConcurrentAnalyzers() throws Exception {
+        Analyzer[] analyzers = {
+                AnalyzerFactory.getInstance(true),
+                AnalyzerFactory.getInstance(false),
+                AnalyzerFactory.getDocumentInstance(),
+                AnalyzerFactory.getHighlightInstance()
+        };
+        List<Map<String, String>> expected = new ArrayList<>();
+        for(Analyzer analyzer : analyzers) {
+            Map<String, String> tokens = new HashMap<>();
+            for(String sample : SAMPLES)
+                tokens.put(sample, tokens(analyzer, sample));
+            expected.add(tokens);
+        }
+        Map<String, List<String>> keywords = new HashMap<>();
+        for(String sample : SAMPLES)
+            keywords.put(sample, AnalyzerFactory.splitKeywords(sample));
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try (IndexWriter writer = new IndexWriter(new ByteBuffersDirectory(), new IndexWriterConfig(AnalyzerFactory.getInstance(true)))) {
+            List<Future<?>> futures = new ArrayList<>();
+            for(int t = 0; t < THREADS; t++) {
+                futures.add(executor.submit(() -> {
+                    Random random = new Random();
+                    for(int i = 0; i < ROUNDS; i++) {
+                        String sample = SAMPLES[random.nextInt(SAMPLES.length)];
+                        int idx = random.nextInt(analyzers.length);
+                        assertEquals(expected.get(idx).get(sample), tokens(analyzers[idx], sample));
+                        assertEquals(keywords.get(sample), AnalyzerFactory.splitKeywords(sample));
+                        //位置错乱时 lucene 抛出 IllegalArgumentException
+                        Document doc = new Document();
+                        doc.add(new TextField(Constants.FIELD_DESC, sample, Field.Store.NO));
+                        doc.add(new TextField(Constants.FIELD_DESC, SAMPLES[random.nextInt(SAMPLES.length)], Field.Store.NO));
+                        writer.addDocument(doc);
+                    }
+                    return null;
+                }));
+            }
+            for(Future<?> future : futures)
+                future.get();
+            assertEquals(THREADS * ROUNDS, writer.getDocStats().numDocs);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static String tokens(Analyzer analyzer, String text) throws IOException {
+        StringBuilder result = new StringBuilder();
+        try (TokenStream stream = analyzer.tokenStream(Constants.FIELD_DESC, text)) {
+            CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+            OffsetAttribute offset = stream.addAttribute(OffsetAttribute.class);
+            stream.reset();
+            while(stream.incrementToken())
+                result.append(term).append('[').append(offset.startOffset()).append(',').append(offset.endOffset()).append("] ");
+            stream.end();
+        }
+        return result.toString();
+    }
+}
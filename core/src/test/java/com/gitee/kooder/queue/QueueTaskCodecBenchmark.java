@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.queue;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+/**
+ * 二进制编码与旧版 json 格式的编解码吞吐量，每个任务编码后的平均字节数在初始化时输出
+ * @author Winter Lau<javayou@gmail.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueueTaskCodecBenchmark {
+
+    private final static int TASK_COUNT = 1000;
+
+    @Param({"code", "repo", "issue"})
+    public String type;
+
+    @Param({"binary", "json"})
+    public String format;
+
+    private List<QueueTask> tasks = new ArrayList<>();
+    private List<byte[]> encoded = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        IntFunction<QueueTask> generator;
+        switch(type) {
+            case "code":
+                generator = QueueTaskCodecTest::code;
+                break;
+            case "repo":
+                generator = QueueTaskCodecTest::repo;
+                break;
+            default:
+                generator = QueueTaskCodecTest::issue;
+        }
+        long bytes = 0;
+        for(int i = 0; i < TASK_COUNT; i++) {
+            QueueTask task = generator.apply(i);
+            byte[] data = encode(task);
+            tasks.add(task);
+            encoded.add(data);
+            bytes += data.length;
+        }
+        System.out.printf("%n%s/%s: %d bytes per task%n", type, format, bytes / TASK_COUNT);
+    }
+
+    private byte[] encode(QueueTask task) {
+        return "json".equals(format) ? QueueTaskCodec.encodeJson(task) : QueueTaskCodec.encode(task);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TASK_COUNT)
+    public void encode(Blackhole bh) {
+        for(QueueTask task : tasks)
+            bh.consume(encode(task));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TASK_COUNT)
+    public void decode(Blackhole bh) {
+        for(byte[] data : encoded)
+            bh.consume(QueueTaskCodec.decode(data));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder().include(QueueTaskCodecBenchmark.class.getSimpleName()).build();
+        new Runner(options).run();
+    }
+}
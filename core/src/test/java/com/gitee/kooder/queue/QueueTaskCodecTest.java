@@ -0,0 +1,191 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.queue;
+
+import com.gitee.kooder.core.Constants;
+import com.gitee.kooder.models.*;
+import org.apache.lucene.store.GrowableByteArrayDataOutput;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * 任务编码的往返测试，包括旧版本的 json 和 java 序列化格式以及投递次数前缀
+ * @author Winter Lau<javayou@gmail.com>
+ */
+public class QueueTaskCodecTest {
+
+    static QueueTask code(int i) {
+        CodeRepository repo = new CodeRepository();
+        repo.setId(100000 + i);
+        repo.setEnterprise(12);
+        repo.setScm("git");
+        repo.setVender("gitee");
+        repo.setName("group/project-" + i);
+        repo.setUrl("https://gitee.com/group/project-" + i + ".git");
+        repo.setLastCommitId("4b825dc642cb6eb9a060e54bf8d69288fbee4904");
+        repo.setDiskSize(1024L * i);
+        return task(Constants.TYPE_CODE, QueueTask.ACTION_ADD, repo);
+    }
+
+    static QueueTask repo(int i) {
+        Repository repo = new Repository();
+        repo.setId(200000 + i);
+        repo.setName("project-" + i);
+        repo.setDisplayName("Group / project-" + i);
+        repo.setDescription("A small library for parsing things number " + i + "，包含文档和示例。");
+        repo.setUrl("https://gitee.com/group/project-" + i);
+        repo.setOwner(new Relation(77, "winter", "https://gitee.com/winter"));
+        repo.setVisibility(Constants.VISIBILITY_PUBLIC);
+        repo.setLicense("Apache-2.0");
+        repo.setLang("Java");
+        repo.setTags(Arrays.asList("parser", "java"));
+        repo.setCreatedAt(1600000000000L + i);
+        repo.setUpdatedAt(1700000000000L + i);
+        repo.setStarsCount(i % 500);
+        repo.setForksCount(i % 50);
+        repo.setRecomm(1);
+        repo.setGindex(3);
+        return task(Constants.TYPE_REPOSITORY, QueueTask.ACTION_ADD, repo);
+    }
+
+    static QueueTask issue(int i) {
+        Issue issue = new Issue();
+        issue.setId(300000 + i);
+        issue.setIdent("200" + i + "_" + i);
+        issue.setRepository(new Relation(200000 + i, "project-" + i, null));
+        issue.setOwner(new Relation(77, "winter", "https://gitee.com/winter"));
+        issue.setTitle("NPE when parsing empty input #" + i);
+        issue.setDescription("Steps to reproduce: call parse(\"\") and observe the exception in the log output.");
+        issue.setUrl("https://gitee.com/group/project-" + i + "/issues/" + i);
+        issue.setLabels(Arrays.asList("bug"));
+        issue.setCreatedAt(1650000000000L + i);
+        issue.setState(Issue.STATE_OPENED);
+        issue.setVisibility(Constants.VISIBILITY_PUBLIC);
+        return task(Constants.TYPE_ISSUE, QueueTask.ACTION_UPDATE, issue);
+    }
+
+    private static QueueTask task(String type, String action, Searchable obj) {
+        QueueTask task = new QueueTask();
+        task.setType(type);
+        task.setAction(action);
+        task.addObject(obj);
+        return task;
+    }
+
+    @Test
+    public void testBinary() {
+        for(QueueTask task : Arrays.asList(code(1), repo(2), issue(3))) {
+            byte[] data = QueueTaskCodec.encode(task);
+            assertEquals('K', data[0]);
+            assertSameTask(task, QueueTaskCodec.decode(data));
+        }
+        //一个任务包含多个对象
+        QueueTask task = repo(1);
+        task.addObject(repo(2).getObjects().get(0));
+        assertSameTask(task, QueueTaskCodec.decode(QueueTaskCodec.encode(task)));
+    }
+
+    @Test
+    public void testLegacyJson() {
+        for(QueueTask task : Arrays.asList(code(1), repo(2), issue(3))) {
+            byte[] data = task.json().getBytes(StandardCharsets.UTF_8);
+            assertArrayEquals(data, QueueTaskCodec.encodeJson(task));
+            assertSameTask(task, QueueTaskCodec.decode(data));
+        }
+    }
+
+    @Test
+    public void testLegacyJavaSerialization() throws IOException {
+        //嵌入式队列以前使用 java 序列化保存任务
+        QueueTask task = code(1);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+            output.writeObject(task);
+        }
+        assertSameTask(task, QueueTaskCodec.decode(bytes.toByteArray()));
+    }
+
+    @Test
+    public void testDeliveries() {
+        QueueTask task = issue(1);
+        task.setDeliveries(3);
+        byte[] binary = QueueTaskCodec.encode(task);
+        byte[] json = QueueTaskCodec.encodeJson(task);
+        assertEquals("#3#", new String(binary, 0, 3, StandardCharsets.US_ASCII));
+        for(byte[] data : Arrays.asList(binary, json)) {
+            QueueTask decoded = QueueTaskCodec.decode(data);
+            assertSameTask(task, decoded);
+            assertEquals(3, decoded.getDeliveries());
+        }
+        task.setDeliveries(0);
+        assertEquals(0, QueueTaskCodec.decode(QueueTaskCodec.encode(task)).getDeliveries());
+        assertNull(QueueTaskCodec.decode("#3".getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Test
+    public void testUnknownFieldsAndVersions() throws IOException {
+        //新版本增加的字段被跳过
+        GrowableByteArrayDataOutput obj = new GrowableByteArrayDataOutput(64);
+        obj.writeVInt(60 << 2 | 1);
+        obj.writeString("future field");
+        obj.writeVInt(61 << 2 | 3);
+        obj.writeZLong(9);
+        obj.writeByte((byte)1);
+        obj.writeString("name");
+        obj.writeByte((byte)0);
+        obj.writeVInt(1 << 2);
+        obj.writeZLong(5);
+        obj.writeVInt(5 << 2 | 1);
+        obj.writeString("group/name");
+        GrowableByteArrayDataOutput output = new GrowableByteArrayDataOutput(64);
+        output.writeByte((byte)'K');
+        output.writeByte((byte)1);
+        output.writeString(Constants.TYPE_CODE);
+        output.writeString(QueueTask.ACTION_ADD);
+        output.writeVInt(1);
+        output.writeVInt(obj.getPosition());
+        output.writeBytes(obj.getBytes(), 0, obj.getPosition());
+        byte[] data = Arrays.copyOf(output.getBytes(), output.getPosition());
+
+        CodeRepository repo = (CodeRepository)QueueTaskCodec.decode(data).getObjects().get(0);
+        assertEquals(5, repo.getId());
+        assertEquals("group/name", repo.getName());
+
+        data[1] = 2;    //无法读取更新版本的编码
+        assertNull(QueueTaskCodec.decode(data));
+        assertNull(QueueTaskCodec.decode(new byte[]{'K', 1, 4, 'c'}));
+        assertNull(QueueTaskCodec.decode(new byte[0]));
+    }
+
+    /**
+     * 比较 json 内容，忽略不参与编码的 lucene 文档
+     */
+    static void assertSameTask(QueueTask expected, QueueTask actual) {
+        assertNotNull(actual);
+        assertEquals(json(expected), json(actual));
+    }
+
+    private static String json(QueueTask task) {
+        return task.json().replaceAll("\"document\":\\{.*?\\]\\}", "");
+    }
+}
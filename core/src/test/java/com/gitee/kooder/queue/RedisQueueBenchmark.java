@@ -0,0 +1,121 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.queue;
+
+import com.gitee.kooder.core.Constants;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RedisQueueProvider 推送和批量取出任务的吞吐量（任务数/秒），需要一个本地的 redis 或兼容服务，
+ * 通过 -Dredis.host 和 -Dredis.port 指定地址后运行 main 方法，每次运行使用独立的队列 key
+ * @author Winter Lau<javayou@gmail.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RedisQueueBenchmark {
+
+    private final static int TASK_COUNT = 1000;
+
+    @Param("127.0.0.1")
+    public String host;
+
+    @Param("6379")
+    public String port;
+
+    @Param({"1", "10", "100"})
+    public int batchSize;
+
+    @Param({"0", "30"})
+    public String leaseTimeout;   //大于 0 时使用租约模式，每个任务取出后 ack
+
+    private RedisQueueProvider provider;
+    private Queue queue;
+    private List<List<QueueTask>> batches = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        Properties props = new Properties();
+        props.setProperty("redis.host", host);
+        props.setProperty("redis.port", port);
+        props.setProperty("redis.key", "kooder-benchmark-" + System.nanoTime());
+        props.setProperty("lease_timeout", leaseTimeout);
+        provider = new RedisQueueProvider(props);
+        queue = provider.queue(Constants.TYPE_REPOSITORY);
+        for(int i = 0; i < TASK_COUNT; i += batchSize) {
+            List<QueueTask> batch = new ArrayList<>();
+            for(int j = i; j < Math.min(i + batchSize, TASK_COUNT); j++)
+                batch.add(QueueTaskCodecTest.repo(j));
+            batches.add(batch);
+        }
+    }
+
+    /**
+     * 清空 push 测试写入的任务，不计入吞吐量
+     */
+    @TearDown(Level.Iteration)
+    public void drain() {
+        List<QueueTask> tasks;
+        while(!(tasks = queue.pop(TASK_COUNT)).isEmpty())
+            tasks.forEach(queue::ack);
+    }
+
+    @TearDown
+    public void tearDown() {
+        provider.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TASK_COUNT)
+    public void push() {
+        for(List<QueueTask> batch : batches)
+            queue.push(batch);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TASK_COUNT)
+    public void pushAndPop(Blackhole bh) {
+        for(List<QueueTask> batch : batches) {
+            queue.push(batch);
+            for(QueueTask task : queue.pop(batchSize)) {
+                queue.ack(task);
+                bh.consume(task);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(RedisQueueBenchmark.class.getSimpleName())
+                .param("host", System.getProperty("redis.host", "127.0.0.1"))
+                .param("port", System.getProperty("redis.port", "6379"))
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.utils;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * SlocCounter 与原实现 LegacySlocCounter 统计项目源码的吞吐量对比，在 core 目录下运行 main 方法
+ * @author Winter Lau<javayou@gmail.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SlocCounterBenchmark {
+
+    private final SlocCounter counter = new SlocCounter();
+    private final LegacySlocCounter legacy = new LegacySlocCounter();
+    private final List<String[]> files = new ArrayList<>();    // {content, language}
+
+    @Setup
+    public void setup() throws IOException {
+        List<Path> paths;
+        try (Stream<Path> stream = Files.walk(Paths.get("src", "main"))) {
+            paths = stream.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        for(Path path : paths) {
+            String contents = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+            String language = FileClassifier.languageGuess(path.getFileName().toString(), contents);
+            if(FileClassifier.getDatabase().containsKey(language))
+                files.add(new String[]{contents, language});
+        }
+        if(files.isEmpty())
+            throw new IllegalStateException("No source files found under " + Paths.get("src", "main").toAbsolutePath());
+    }
+
+    @Benchmark
+    public void precompiled(Blackhole bh) {
+        for(String[] file : files)
+            bh.consume(counter.countStats(file[0], file[1]));
+    }
+
+    @Benchmark
+    public void legacy(Blackhole bh) {
+        for(String[] file : files)
+            bh.consume(legacy.countStats(file[0], file[1]));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder().include(SlocCounterBenchmark.class.getSimpleName()).build();
+        new Runner(options).run();
+    }
+}
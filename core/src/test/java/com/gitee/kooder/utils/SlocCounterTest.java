@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.utils;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 预编译规则表的 SlocCounter 与原实现 LegacySlocCounter 的统计结果必须完全一致
+ * @author Winter Lau<javayou@gmail.com>
+ */
+public class SlocCounterTest {
+
+    private final static int SNIPPETS_PER_LANGUAGE = 200;
+    private final static String[] FILLERS = {
+            "a", "foo", "bar1", "x = y;", "0", "  ", "\t", "\n", "\r\n", "\\", "\\\\", "{", "}", "(", ")", "中文", " "
+    };
+
+    private final SlocCounter counter = new SlocCounter();
+    private final LegacySlocCounter legacy = new LegacySlocCounter();
+
+    /**
+     * 项目自身的源码和配置文件
+     */
+    @Test
+    public void testSourceFiles() throws IOException {
+        Path root = Paths.get("src", "main");
+        assertTrue(root.toAbsolutePath().toString(), Files.isDirectory(root));
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(root)) {
+            files = paths.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        int count = 0;
+        for(Path file : files) {
+            String contents = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+            String language = FileClassifier.languageGuess(file.getFileName().toString(), contents);
+            if(FileClassifier.getDatabase().containsKey(language)) {
+                assertSameStats(file.toString(), contents, language);
+                count++;
+            }
+        }
+        assertTrue(count > 0);
+    }
+
+    /**
+     * 每种语言用其注释、字符串、复杂度关键字随机拼接的片段，覆盖嵌套注释、转义和未闭合的情况
+     */
+    @Test
+    public void testGeneratedSnippets() {
+        Random random = new Random(20210601L);
+        for(Map.Entry<String, FileClassifierResult> entry : FileClassifier.getDatabase().entrySet()) {
+            List<String> tokens = tokens(entry.getValue());
+            for(int i = 0; i < SNIPPETS_PER_LANGUAGE; i++) {
+                StringBuilder snippet = new StringBuilder();
+                if(random.nextInt(10) == 0)
+                    snippet.append('﻿');
+                int length = random.nextInt(40);
+                for(int j = 0; j < length; j++)
+                    snippet.append(tokens.get(random.nextInt(tokens.size())));
+                assertSameStats(entry.getKey() + "#" + i, snippet.toString(), entry.getKey());
+            }
+        }
+    }
+
+    @Test
+    public void testEdgeCases() {
+        String[] contents = {"", "\n", "\n\n", "a", "a\n", "/*", "*/", "//", "\"", "'\\", "/* /* */ */ a\n"};
+        for(String language : Arrays.asList("Java", "C", "Python", "Rust", "Plain Text", "Unknown"))
+            for(String content : contents)
+                assertSameStats(language + ":" + content, content, language);
+    }
+
+    private void assertSameStats(String message, String contents, String language) {
+        LegacySlocCounter.SlocCount expected = legacy.countStats(contents, language);
+        SlocCounter.SlocCount actual = counter.countStats(contents, language);
+        assertEquals(message, Arrays.asList(expected.linesCount, expected.blankCount, expected.codeCount, expected.commentCount, expected.complexity),
+                Arrays.asList(actual.linesCount, actual.blankCount, actual.codeCount, actual.commentCount, actual.complexity));
+    }
+
+    private static List<String> tokens(FileClassifierResult language) {
+        List<String> tokens = new ArrayList<>(Arrays.asList(FILLERS));
+        if(language.line_comment != null)
+            tokens.addAll(Arrays.asList(language.line_comment));
+        if(language.complexitychecks != null)
+            tokens.addAll(Arrays.asList(language.complexitychecks));
+        if(language.multi_line != null)
+            for(String[] pair : language.multi_line)
+                tokens.addAll(Arrays.asList(pair));
+        if(language.quotes != null)
+            for(LanguageQuote quote : language.quotes) {
+                tokens.add(quote.start);
+                tokens.add(quote.end);
+            }
+        return tokens;
+    }
+}
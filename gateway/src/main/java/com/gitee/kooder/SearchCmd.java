@@ -18,6 +18,7 @@ package com.gitee.kooder;
 import com.gitee.kooder.core.Constants;
 import com.gitee.kooder.core.SearchHelper;
 import com.gitee.kooder.models.QueryResult;
+import com.gitee.kooder.query.CodeQuery;
 import com.gitee.kooder.query.IQuery;
 import com.gitee.kooder.query.QueryFactory;
 import jline.TerminalFactory;
@@ -41,7 +42,7 @@ public class SearchCmd {
                 break;
             long ct = System.currentTimeMillis();
             String q = SearchHelper.cleanupKey(line);
-            IQuery query = QueryFactory.CODE().setSearchKey(q);
+            IQuery query = QueryFactory.CODE().setFields(CodeQuery.LIST_VIEW_FIELDS).setSearchKey(q);
             query.addFacets(Constants.FIELD_LANGUAGE, "Java");
             QueryResult result = query.execute();
             System.out.println(result.toString());
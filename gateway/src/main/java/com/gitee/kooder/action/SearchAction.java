@@ -16,19 +16,26 @@
 package com.gitee.kooder.action;
 
 import com.gitee.kooder.core.Constants;
-import com.gitee.kooder.core.SearchHelper;
+import com.gitee.kooder.index.SuggestManager;
 import com.gitee.kooder.models.QueryResult;
-import com.gitee.kooder.models.Searchable;
-import com.gitee.kooder.models.SourceFile;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.gitee.kooder.query.IQuery;
+import com.gitee.kooder.query.MultiQuery;
+import com.gitee.kooder.query.QueryBase;
 import com.gitee.kooder.query.QueryFactory;
+import com.gitee.kooder.server.ResponseOutputStream;
+import com.gitee.kooder.utils.JsonUtils;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
 import io.vertx.ext.web.RoutingContext;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.math.NumberUtils;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 /**
@@ -37,7 +44,9 @@ import java.util.stream.Collectors;
  */
 public class SearchAction implements SearchActionBase {
 
-    private final static int MAX_LINES = 10;    // max code lines in highlight
+    private final static int MAX_MULTI_QUERIES = 10;    // max queries in one multi search
+    private final static String DEFAULT_MULTI_TYPES = "repo,issue,code";
+    private final static int MAX_SUGGESTIONS = 20;      // max suggestions in one request
 
     /**
      * controller for search.vm
@@ -66,6 +75,18 @@ public class SearchAction implements SearchActionBase {
         this.vm(context, "search.vm", params);
     }
 
+    /**
+     * API: Autocomplete for search box, suggest repository names, namespaces and issue titles
+     * GET: /search/suggest?q=xxx&n=10
+     * @param context
+     * @throws IOException
+     */
+    public void suggest(RoutingContext context) throws IOException {
+        String q = param(context.request(), "q");
+        int count = Math.min(MAX_SUGGESTIONS, Math.max(1, param(context.request(), "n", 10)));
+        this.json(context.response(), JsonUtils.toJson(SuggestManager.lookup(q, count)));
+    }
+
     /**
      * API: Search Repositories
      * @param context
@@ -105,9 +126,11 @@ public class SearchAction implements SearchActionBase {
                 .setSort(sort)
                 .setPage(page)
                 .setPageSize(PAGE_SIZE)
+                .setFields(fields(context.request()))
+                .setCountFacets(countFacets(param(context.request(), "facets")))
                 .execute();
 
-        this.json(context.response(), result.json());
+        this.json(context.response(), result);
     }
 
     /**
@@ -136,8 +159,10 @@ public class SearchAction implements SearchActionBase {
                 .setSort(sort)
                 .setPage(page)
                 .setPageSize(PAGE_SIZE)
+                .setFields(fields(context.request()))
+                .setCountFacets(countFacets(param(context.request(), "facets")))
                 .execute();
-        this.json(context.response(), result.json());
+        this.json(context.response(), result);
     }
 
     /**
@@ -171,6 +196,7 @@ public class SearchAction implements SearchActionBase {
         List<Long> iRepos = repos.stream().map(r -> NumberUtils.toLong(r, 0)).filter(r -> (r > 0)).collect(Collectors.toList());
 
         QueryResult result = QueryFactory.CODE()
+                .setSnippetLines(MAX_SNIPPET_LINES)
                 .setEnterpriseId(eid)
                 .addRepositories(iRepos)
                 .setSearchKey(q)
@@ -180,14 +206,124 @@ public class SearchAction implements SearchActionBase {
                 .setSort(sort)
                 .setPage(page)
                 .setPageSize(PAGE_SIZE)
+                .setFields(fields(context.request()))
+                .setCountFacets(countFacets(param(context.request(), "facets")))
                 .execute();
 
-        for (Searchable obj : result.getObjects()) {
-            SourceFile file = (SourceFile) obj;
-            file.setResult(SearchHelper.hl_lines(file.getContents(), q, MAX_LINES));
+        this.json(context.response(), result);
+    }
+
+    /**
+     * API: Search repositories, issues and codes in one request, queries are executed concurrently
+     * GET: /search/multi?q=xxx&types=repo,issue,code
+     * POST: [{"type":"repo","q":"xxx","sort":"stars"},{"name":"java","type":"code","q":"xxx","lang":"Java"}]
+     * @param context
+     * @throws IOException
+     */
+    public void multi(RoutingContext context) throws IOException {
+        List<Map<String, String>> specs = parseMultiSpecs(context);
+        if(specs == null || specs.isEmpty() || specs.size() > MAX_MULTI_QUERIES) {
+            error(context.response(), HttpResponseStatus.BAD_REQUEST.code(), "Illegal multi search specs.");
+            return;
+        }
+
+        long ct = System.currentTimeMillis();
+        MultiQuery multiQuery = new MultiQuery();
+        for(Map<String, String> spec : specs) {
+            String type = spec.get("type");
+            String q = spec.get("q");
+            IQuery query = makeQuery(type, spec);
+            String name = spec.getOrDefault("name", type);
+            if(query == null || StringUtils.isBlank(q)) {
+                error(context.response(), HttpResponseStatus.BAD_REQUEST.code(), "Illegal multi search specs.");
+                return;
+            }
+            //同类型的多个查询需要指定不同的 name，否则结果会互相覆盖
+            if(multiQuery.contains(name)) {
+                error(context.response(), HttpResponseStatus.BAD_REQUEST.code(), "Duplicate multi search name: " + name);
+                return;
+            }
+            multiQuery.add(name, query);
         }
 
-        this.json(context.response(), result.json());
+        //按顺序输出已完成的查询结果，不必等待全部查询结束后再拼接
+        HttpServerResponse res = context.response();
+        res.putHeader("content-type","application/json; charset=utf-8");
+        ResponseOutputStream out = new ResponseOutputStream(res);
+        try (JsonGenerator generator = JsonUtils.createGenerator(out)) {
+            generator.writeStartObject();
+            generator.writeObjectFieldStart("sections");
+            for(Map.Entry<String, CompletableFuture<MultiQuery.Section>> entry : multiQuery.execute().entrySet()) {
+                generator.writeFieldName(entry.getKey());
+                generator.writeObject(entry.getValue().join());
+                generator.flush();
+            }
+            generator.writeEndObject();
+            generator.writeNumberField("time_used", System.currentTimeMillis() - ct);
+            generator.writeEndObject();
+        } catch (IOException e) {
+            out.abort();
+            throw e;
+        }
+        out.close();
+    }
+
+    /**
+     * 解析多重搜索的查询参数，POST json 数组或者 GET 参数
+     * @param context
+     * @return
+     */
+    private List<Map<String, String>> parseMultiSpecs(RoutingContext context) {
+        String body = context.getBodyAsString();
+        if(StringUtils.isNotBlank(body)) {
+            List<Map<String, Object>> objs = JsonUtils.readValue(body, new TypeReference<List<Map<String, Object>>>() {});
+            if(objs == null)
+                return null;
+            return objs.stream().map(obj -> {
+                Map<String, String> spec = new HashMap<>();
+                obj.forEach((k, v) -> spec.put(k, (v != null) ? String.valueOf(v) : null));
+                return spec;
+            }).collect(Collectors.toList());
+        }
+
+        HttpServerRequest request = context.request();
+        List<Map<String, String>> specs = new ArrayList<>();
+        for(String type : param(request, "types", DEFAULT_MULTI_TYPES).split(",")) {
+            Map<String, String> spec = new HashMap<>();
+            request.params().names().forEach(name -> spec.put(name, request.getParam(name)));
+            spec.put("type", type.trim());
+            specs.add(spec);
+        }
+        return specs;
+    }
+
+    /**
+     * 根据查询参数构建查询对象
+     * @param type
+     * @param spec
+     * @return
+     */
+    private IQuery makeQuery(String type, Map<String, String> spec) {
+        QueryBase query;
+        if(Constants.TYPE_REPOSITORY.equals(type))
+            query = QueryFactory.REPO();
+        else if(Constants.TYPE_ISSUE.equals(type))
+            query = QueryFactory.ISSUE();
+        else if(Constants.TYPE_CODE.equals(type))
+            query = QueryFactory.CODE().setSnippetLines(MAX_SNIPPET_LINES);
+        else
+            return null;
+
+        query.setEnterpriseId(NumberUtils.toInt(spec.get(Constants.FIELD_ENTERPRISE_ID), 0));
+        query.setSearchKey(spec.get("q"))
+                .setSort(spec.get("sort"))
+                .setPage(Math.max(1, NumberUtils.toInt(spec.get("p"), 1)))
+                .setPageSize(PAGE_SIZE)
+                .setFields(fields(spec.get("fields")))
+                .setCountFacets(countFacets(spec.get("facets")));
+        if(!Constants.TYPE_ISSUE.equals(type))
+            query.addFacets(Constants.FIELD_LANGUAGE, spec.get(Constants.FIELD_LANGUAGE));
+        return query;
     }
 
 }
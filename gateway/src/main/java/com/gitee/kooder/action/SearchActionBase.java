@@ -17,13 +17,17 @@ package com.gitee.kooder.action;
 
 import com.gitee.kooder.core.Constants;
 import com.gitee.kooder.models.QueryResult;
+import com.gitee.kooder.query.CodeQuery;
 import com.gitee.kooder.query.QueryFactory;
 import com.gitee.kooder.server.Action;
+import io.vertx.core.http.HttpServerRequest;
 import io.vertx.ext.web.RoutingContext;
 import org.apache.commons.lang3.StringUtils;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
 
 /**
  * Action for search, both for web and api
@@ -31,6 +35,32 @@ import java.util.Arrays;
  */
 interface SearchActionBase extends Action {
 
+    int MAX_SNIPPET_LINES = 10;  // max code lines in snippet
+
+    /**
+     * 解析字段投影参数 fields ，多个字段使用逗号隔开
+     * @param request
+     * @return
+     */
+    default List<String> fields(HttpServerRequest request) {
+        return fields(param(request, "fields"));
+    }
+
+    default List<String> fields(String fields) {
+        if(StringUtils.isBlank(fields))
+            return null;
+        return Arrays.stream(fields.split(",")).map(String::trim).filter(StringUtils::isNotBlank).collect(Collectors.toList());
+    }
+
+    /**
+     * 解析参数 facets ，为 false 时不统计分类数据
+     * @param facets
+     * @return
+     */
+    default boolean countFacets(String facets) {
+        return !"false".equalsIgnoreCase(StringUtils.trim(facets));
+    }
+
     /**
      * execute search
      * @param context
@@ -72,7 +102,10 @@ interface SearchActionBase extends Action {
                 break;
 
             case Constants.TYPE_CODE:
+                //列表页只需要代码片段，不必读取完整的源码
                 result = QueryFactory.CODE()
+                        .setSnippetLines(MAX_SNIPPET_LINES)
+                        .setFields(CodeQuery.LIST_VIEW_FIELDS)
                         .setSearchKey(q)
                         .addFacets(Constants.FIELD_LANGUAGE, lang)
                         .addFacets(Constants.FIELD_REPO_NAME, param(context.request(), Constants.FIELD_REPO_NAME))
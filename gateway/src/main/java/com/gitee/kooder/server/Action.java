@@ -16,6 +16,7 @@
 package com.gitee.kooder.server;
 
 import com.gitee.kooder.queue.QueueTask;
+import com.gitee.kooder.utils.JsonUtils;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.vertx.core.MultiMap;
 import io.vertx.core.http.HttpServerRequest;
@@ -23,6 +24,7 @@ import io.vertx.core.http.HttpServerResponse;
 import io.vertx.ext.web.RoutingContext;
 import org.apache.commons.lang3.math.NumberUtils;
 
+import java.io.IOException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -85,6 +87,24 @@ public interface Action {
         res.putHeader("content-type","application/json; charset=utf-8").end(json);
     }
 
+    /**
+     * output object as json, serialized straight into the chunked response
+     * @param res
+     * @param obj
+     * @throws IOException
+     */
+    default void json(HttpServerResponse res, Object obj) throws IOException {
+        res.putHeader("content-type","application/json; charset=utf-8");
+        ResponseOutputStream out = new ResponseOutputStream(res);
+        try {
+            JsonUtils.writeJson(out, obj);
+            out.close();
+        } catch (IOException e) {
+            out.abort();
+            throw e;
+        }
+    }
+
     default String param(HttpServerRequest req, String name, String...defValue) {
         String val = req.getParam(name);
         return (val!=null)?val:(defValue.length>0)?defValue[0]:null;
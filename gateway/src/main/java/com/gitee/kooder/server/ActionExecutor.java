@@ -153,6 +153,9 @@ public class ActionExecutor {
     }
 
     private static void sendError(HttpServerResponse res, int code, String...msg) {
+        //streaming response failed halfway, the status can't be changed any more
+        if(res.headWritten() || res.closed())
+            return;
         res.setStatusCode(code);
         if(msg != null && msg.length > 0)
             res.setStatusMessage(String.join("",msg));
@@ -21,6 +21,7 @@ import com.gitee.kooder.indexer.FetchTaskThread;
 import com.gitee.kooder.gitea.GiteaIndexThread;
 import com.gitee.kooder.gitee.GiteeIndexThread;
 import com.gitee.kooder.indexer.GitlabIndexThread;
+import com.gitee.kooder.indexer.RepositoryStorageThread;
 import io.vertx.core.http.HttpServerResponse;
 import io.vertx.core.net.SocketAddress;
 import io.vertx.ext.web.handler.BodyHandler;
@@ -44,6 +45,8 @@ public class Gateway extends GatewayBase {
         put("gitea", new GiteaIndexThread());
         put("file", new FileIndexThread());
     }};
+    //本地克隆的仓库由拉取任务的线程产生，启动 indexer 任务时同时启动仓库存储空间管理线程
+    private final static Thread repositoryStorageThread = new RepositoryStorageThread();
 
     private Gateway() {
         super();
@@ -78,6 +81,7 @@ public class Gateway extends GatewayBase {
                 for(Thread task : startupTasks.values()){
                     task.interrupt();
                 }
+                repositoryStorageThread.interrupt();
                 super.destroy();
             }));
             log.info("READY ({}:{})!", (this.bind==null)?"*":this.bind, this.port);
@@ -108,6 +112,8 @@ public class Gateway extends GatewayBase {
                 if (thread != null) {
                     thread.start();
                     tc++;
+                    if (thread instanceof FetchTaskThread && repositoryStorageThread.getState() == Thread.State.NEW)
+                        repositoryStorageThread.start();
                 }
             }
         }
@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.server;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write to http response in chunks, used to stream json from the worker thread.
+ * Bytes are collected into a buffer and flushed as one chunk when the buffer is full,
+ * writing blocks while the response write queue is full (slow client)
+ * @author Winter Lau<javayou@gmail.com>
+ */
+public class ResponseOutputStream extends OutputStream {
+
+    public final static int CHUNK_SIZE = 16 * 1024;     // bytes of each chunk
+    private final static long DRAIN_TIMEOUT = 30;       // seconds to wait for a slow client
+
+    private HttpServerResponse res;
+    private Buffer buffer;
+    private boolean closed = false;
+
+    public ResponseOutputStream(HttpServerResponse res) {
+        this.res = res;
+        this.buffer = Buffer.buffer(CHUNK_SIZE);
+        if(!res.headWritten())
+            res.setChunked(true);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        buffer.appendByte((byte)b);
+        if(buffer.length() >= CHUNK_SIZE)
+            flush();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        buffer.appendBytes(b, off, len);
+        if(buffer.length() >= CHUNK_SIZE)
+            flush();
+    }
+
+    /**
+     * Send buffered bytes as one chunk
+     * @throws IOException
+     */
+    @Override
+    public void flush() throws IOException {
+        if(closed)
+            throw new IOException("Response stream closed.");
+        if(buffer.length() == 0)
+            return;
+        if(res.closed())
+            throw new IOException("Connection closed by client.");
+        awaitDrain();
+        res.write(buffer);
+        buffer = Buffer.buffer(CHUNK_SIZE);
+    }
+
+    /**
+     * Send the remaining bytes and end the response
+     */
+    @Override
+    public void close() {
+        if(closed)
+            return;
+        closed = true;
+        if(!res.closed())
+            res.end(buffer);
+    }
+
+    /**
+     * Give up the response after a failure, the connection is reset so that client
+     * will not take the truncated content as a complete response
+     */
+    public void abort() {
+        if(closed)
+            return;
+        closed = true;
+        if(!res.closed())
+            res.reset();
+    }
+
+    /**
+     * Wait until the write queue of response is not full
+     * @throws IOException
+     */
+    private void awaitDrain() throws IOException {
+        if(!res.writeQueueFull())
+            return;
+        CountDownLatch latch = new CountDownLatch(1);
+        res.drainHandler(v -> latch.countDown());
+        try {
+            //drained before the handler was set
+            if(res.writeQueueFull() && !latch.await(DRAIN_TIMEOUT, TimeUnit.SECONDS))
+                throw new IOException("Timeout waiting for client to receive response.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } finally {
+            res.drainHandler(null);
+        }
+    }
+}
@@ -16,6 +16,8 @@
 package com.gitee.kooder.server;
 
 import com.gitee.kooder.models.CodeLine;
+import com.gitee.kooder.models.Searchable;
+import com.gitee.kooder.models.SourceFile;
 import com.gitee.kooder.core.KooderConfig;
 import com.gitee.kooder.core.SearchHelper;
 import io.vertx.core.http.HttpServerRequest;
@@ -32,6 +34,7 @@ import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 /**
  * 给 vm 模板提供一些工具包
@@ -193,6 +196,34 @@ public class VelocityTool {
         return new StringBuffer(SearchHelper.highlight(text, key, maxLen));
     }
 
+    /**
+     * 搜索结果高亮，优先使用搜索时批量生成的高亮结果
+     * @param obj
+     * @param field
+     * @param text
+     * @param key
+     * @return
+     */
+    public static StringBuffer highlight(Searchable obj, String field, String text, String key) {
+        return highlight(obj, field, text, key, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 搜索结果高亮，优先使用搜索时批量生成的高亮结果
+     * @param obj
+     * @param field
+     * @param text
+     * @param key
+     * @param maxLen
+     * @return
+     */
+    public static StringBuffer highlight(Searchable obj, String field, String text, String key, int maxLen) {
+        Map<String, String> highlights = obj.get_highlights();
+        if(highlights != null && highlights.containsKey(field))
+            return new StringBuffer(highlights.get(field));
+        return highlight(text, key, maxLen);
+    }
+
     /**
      * 源码高亮，由于使用不同的 Analyzer ，所以需要不同的方法
      * @param code
@@ -214,6 +245,19 @@ public class VelocityTool {
         return SearchHelper.hl_lines(code, key, maxLines);
     }
 
+    /**
+     * 高亮标识出源码中的关键字，优先使用搜索时生成的代码片段
+     * @param file
+     * @param key
+     * @param maxLines
+     * @return
+     */
+    public static List<CodeLine> hl_lines(SourceFile file, String key, int maxLines) {
+        if(file.getResult() != null)
+            return file.getResult();
+        return SearchHelper.hl_lines(file, key, maxLines);
+    }
+
     /**
      * HTML escape
      * @param content
@@ -20,11 +20,11 @@ import com.gitee.kooder.core.Constants;
 import com.gitee.kooder.core.KooderConfig;
 import com.gitee.kooder.models.CodeRepository;
 import com.gitee.kooder.models.Searchable;
+import com.gitee.kooder.queue.Queue;
 import com.gitee.kooder.queue.QueueFactory;
 import com.gitee.kooder.queue.QueueProvider;
 import com.gitee.kooder.queue.QueueTask;
 import com.gitee.kooder.storage.StorageFactory;
-import com.gitee.kooder.utils.BatchTaskRunner;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.lucene.document.LongPoint;
@@ -35,9 +35,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.List;
-import java.util.Properties;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 
 /**
  * 用于从队列中获取待办任务的线程
@@ -48,9 +50,11 @@ public class FetchTaskThread extends Thread {
     private final static Logger log = LoggerFactory.getLogger("[indexer]");
 
     private QueueProvider provider;         //队列
-    private int no_task_interval    = 1000; //从队列中获取不到任务时的休眠时间
+    private int no_task_interval    = 1000; //从队列中获取不到任务时等待新任务的最长时间
     private int batch_fetch_count   = 10;   //一次从队列中获取任务的数量
     private int tasks_per_thread    = 1;    //每个线程处理的任务数
+    private long lease_check_interval = 60000; //检查租约到期任务的间隔，仅在队列启用租约时有效
+    private long lastLeaseCheck     = 0;
 
     public FetchTaskThread() {
         this.provider = QueueFactory.getProvider();
@@ -58,42 +62,195 @@ public class FetchTaskThread extends Thread {
         this.no_task_interval   = NumberUtils.toInt(props.getProperty("no_task_interval"),  1000);
         this.batch_fetch_count  = NumberUtils.toInt(props.getProperty("batch_fetch_count"), 10);
         this.tasks_per_thread   = NumberUtils.toInt(props.getProperty("tasks_per_thread"),  1);
+        this.lease_check_interval = NumberUtils.toLong(props.getProperty("lease_check_interval"), 60) * 1000;
     }
 
     @Override
     public void run() {
         while(!this.isInterrupted()) {
-            final AtomicInteger taskCount = new AtomicInteger(0);
-            BatchTaskRunner.execute(provider.getAllTypes(), 1, types -> {
-                for(String type : types) {
-                    List<QueueTask> tasks = provider.queue(type).pop(batch_fetch_count);
-                    if(tasks != null && tasks.size() > 0) {
-                        try (
-                            IndexWriter writer = StorageFactory.getIndexWriter(type);
-                            TaxonomyWriter taxonomyWriter = StorageFactory.getTaxonomyWriter(type))
-                        {
-                            //如果 tasks_per_thread < 0 ，则单线程处理
-                            int threshold = (tasks_per_thread > 0) ? tasks_per_thread : tasks.size();
-                            long startTime = System.currentTimeMillis();
-                            BatchTaskRunner.execute(tasks, threshold, list -> handleTasks(list, writer, taxonomyWriter));
-                            log.info("{} tasks<{}> finished in {} ms", tasks.size(), type, System.currentTimeMillis() - startTime);
-                            taskCount.addAndGet(tasks.size());
-                        } catch ( IOException e ) {
-                            log.error("Failed to write tasks<"+type+"> to indexes.", e);
-                        }
+            requeueExpiredTasks();
+            int taskCount = 0;
+            //各类型的任务同时提交到线程池：代码任务使用拉取仓库的线程池，其他任务使用写索引的线程池
+            List<TaskBatch> batches = new ArrayList<>();
+            for(String type : provider.getAllTypes()) {
+                Queue queue = provider.queue(type);
+                List<QueueTask> tasks = queue.pop(batch_fetch_count);
+                if(tasks != null && tasks.size() > 0) {
+                    try {
+                        batches.add(new TaskBatch(queue, tasks));
+                        taskCount += tasks.size();
+                    } catch ( IOException e ) {
+                        log.error("Failed to write tasks<"+type+"> to indexes.", e);
+                        tasks.forEach(queue::nack);
                     }
                 }
-            });
+            }
+            try {
+                for(TaskBatch batch : batches)
+                    batch.await();
+            } catch (InterruptedException e) {
+                break;
+            }
 
-            if (taskCount.get() == 0){
+            if (taskCount == 0){
                 try {
-                    Thread.sleep(no_task_interval);
+                    //队列有新任务时立即被唤醒
+                    provider.await(no_task_interval);
                 } catch (InterruptedException e) {
                     break;
                 }
             }
 
         }
+        //退出前将暂存的任务放回队列
+        try {
+            provider.close();
+        } catch (Exception e) {
+            log.error("Failed to close queue provider.", e);
+        }
+    }
+
+    /**
+     * 定期将租约到期的任务放回队列，这些任务所在的进程可能已经崩溃
+     */
+    private void requeueExpiredTasks() {
+        long now = System.currentTimeMillis();
+        if(lease_check_interval <= 0 || now - lastLeaseCheck < lease_check_interval)
+            return;
+        lastLeaseCheck = now;
+        try {
+            provider.requeueExpired();
+        } catch (Exception e) {
+            log.error("Failed to requeue tasks with expired lease.", e);
+        }
+    }
+
+    /**
+     * 同一类型的一批任务，共用一个索引写入器，所有任务结束后关闭
+     * 代码任务先在拉取线程池中拉取仓库，再交给写索引的线程池建立索引
+     * 索引写入器成功关闭（提交）后确认处理成功的任务，其他任务放回队列；
+     * 仓库的 commit id 和删除仓库元信息也在提交后才保存，提交失败时重试的任务会重新索引
+     */
+    private class TaskBatch {
+
+        private final Queue queue;
+        private final String type;
+        private final List<QueueTask> tasks;
+        private final Set<QueueTask> failedTasks = ConcurrentHashMap.newKeySet();
+        private final long startTime = System.currentTimeMillis();
+        private final IndexWriter writer;
+        private final TaxonomyWriter taxonomyWriter;
+        private final List<Future<?>> futures = new ArrayList<>();
+        private final List<Future<?>> indexFutures = Collections.synchronizedList(new ArrayList<>());
+        private final Map<Long, String> indexedCommits = new ConcurrentHashMap<>();    //仓库 id -> 已索引但未提交的 commit id
+        private final Set<Long> deletedRepos = ConcurrentHashMap.newKeySet();         //索引已删除但未提交的仓库
+
+        TaskBatch(Queue queue, List<QueueTask> tasks) throws IOException {
+            this.queue = queue;
+            this.type = queue.type();
+            this.tasks = tasks;
+            this.writer = StorageFactory.getIndexWriter(type);
+            try {
+                this.taxonomyWriter = StorageFactory.getTaxonomyWriter(type);
+            } catch (IOException e) {
+                writer.close();
+                throw e;
+            }
+            if(Constants.TYPE_CODE.equals(type)) {
+                for(QueueTask task : tasks)
+                    futures.add(TaskExecutors.FETCH.submit(() -> handleCodeTask(task, this)));
+            }
+            else {
+                //如果 tasks_per_thread < 0 ，则单线程处理
+                int threshold = (tasks_per_thread > 0) ? tasks_per_thread : tasks.size();
+                for(int i = 0; i < tasks.size(); i += threshold) {
+                    List<QueueTask> list = tasks.subList(i, Math.min(i + threshold, tasks.size()));
+                    futures.add(TaskExecutors.INDEX.submit(() -> handleTasks(list, writer, taxonomyWriter, failedTasks)));
+                }
+            }
+        }
+
+        void await() throws InterruptedException {
+            boolean finished = false;
+            try {
+                TaskExecutors.await(futures);
+                //拉取任务全部结束后不会再有新的索引任务
+                TaskExecutors.await(new ArrayList<>(indexFutures));
+                finished = true;
+                log.info("{} tasks<{}> finished in {} ms", tasks.size(), type, System.currentTimeMillis() - startTime);
+                if(Constants.TYPE_CODE.equals(type))
+                    logStats(TaskExecutors.FETCH);
+                logStats(TaskExecutors.INDEX);
+            } finally {
+                boolean committed = false;
+                try {
+                    taxonomyWriter.close();
+                    writer.close();
+                    committed = true;
+                } catch (IOException e) {
+                    log.error("Failed to write tasks<"+type+"> to indexes.", e);
+                }
+                //被中断时不做处理，任务在租约到期后重新投递
+                if(finished)
+                    acknowledge(committed);
+            }
+        }
+
+        private void logStats(TaskExecutors.BoundedExecutor executor) {
+            if(executor.isSaturated())
+                log.warn("Executor saturated: {}", executor.stats());
+            else
+                log.debug("Executor status: {}", executor.stats());
+        }
+
+        private void acknowledge(boolean committed) {
+            if(committed)
+                saveRepositories(this);
+            for(QueueTask task : tasks) {
+                try {
+                    if(committed && !failedTasks.contains(task))
+                        queue.ack(task);
+                    else
+                        queue.nack(task);
+                } catch (Exception e) {
+                    log.error("Failed to acknowledge task<" + type + ">", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 索引提交后保存仓库的 commit id，删除已删除仓库的元信息
+     * @param batch
+     */
+    private void saveRepositories(TaskBatch batch) {
+        batch.indexedCommits.forEach((repoId, commitId) -> {
+            Semaphore lock = TaskExecutors.getRepositoryLock(repoId);
+            lock.acquireUninterruptibly();
+            try {
+                //使用最新的元信息，避免覆盖仓库存储线程保存的状态
+                CodeRepository repo = RepositoryManager.INSTANCE.get(repoId);
+                if(repo != null) {
+                    repo.setLastCommitId(commitId);
+                    RepositoryManager.INSTANCE.save(repo);
+                }
+            } catch (Exception e) {
+                log.error("Failed to save code-repository id = " + repoId, e);
+            } finally {
+                lock.release();
+            }
+        });
+        batch.deletedRepos.forEach(repoId -> {
+            Semaphore lock = TaskExecutors.getRepositoryLock(repoId);
+            lock.acquireUninterruptibly();
+            try {
+                RepositoryManager.INSTANCE.delete(repoId);     // Delete project metadata
+            } catch (Exception e) {
+                log.error("Failed to delete code-repository id = " + repoId, e);
+            } finally {
+                lock.release();
+            }
+        });
     }
 
     /**
@@ -101,33 +258,31 @@ public class FetchTaskThread extends Thread {
      * @param tasks
      * @param writer
      * @param taxonomyWriter
+     * @param failedTasks  处理失败的任务
      */
-    private void handleTasks(List<QueueTask> tasks, IndexWriter writer, TaxonomyWriter taxonomyWriter) {
+    private void handleTasks(List<QueueTask> tasks, IndexWriter writer, TaxonomyWriter taxonomyWriter, Set<QueueTask> failedTasks) {
         tasks.forEach( task -> {
             try {
-                //代码类型的任务需要单独处理，而且需要区分对待公开和私有仓库
-                if(task.isCodeTask())
-                    handleCodeTask(task, writer, taxonomyWriter);
-                else
-                    task.write(writer, taxonomyWriter);
+                task.write(writer, taxonomyWriter);
             } catch (Exception e) {
+                failedTasks.add(task);
                 log.error("Failed writing task to index repository", e);
             }
         });
     }
 
     /**
-     * 处理代码索引任务
+     * 处理代码索引任务，在拉取仓库的线程池中执行
      * 由于代码的索引任务繁重，因此从 QueueTask 中将逻辑剥离开来
+     * 仅在拉取仓库时占用主机的并发名额，拉取完成后把建立索引的步骤交给写索引的线程池，
+     * 写索引的线程池已满时阻塞，避免拉取的速度超过索引的速度；仓库锁在索引结束后释放
      * @param task
-     * @param writer
-     * @param taxonomyWriter
+     * @param batch
      */
-    private void handleCodeTask(QueueTask task, IndexWriter writer, TaxonomyWriter taxonomyWriter) {
+    private void handleCodeTask(QueueTask task, TaskBatch batch) {
         switch(task.getAction()){
         case QueueTask.ACTION_ADD:
         case QueueTask.ACTION_UPDATE:
-            FileTraveler fileTraveler = new CodeFileTraveler(writer, taxonomyWriter);
             for(Searchable obj : task.getObjects()) {
                 CodeRepository newRepo = (CodeRepository)obj;
                 try {
@@ -145,11 +300,9 @@ public class FetchTaskThread extends Thread {
                     } else {
                         repo = newRepo;
                     }
-                    //pull repository from remote and build index for it
-                    RepositoryFactory.getProvider(repo.getScm()).pull(repo, fileTraveler);
-                    //write repository status to persistent storage
-                    RepositoryManager.INSTANCE.save(repo);
+                    fetchAndIndex(task, repo, batch);
                 } catch (Throwable e) {
+                    batch.failedTasks.add(task);
                     log.error("Failed to add or update code-repository id = " + newRepo.getId(), e);
                 }
             }
@@ -161,15 +314,79 @@ public class FetchTaskThread extends Thread {
                 if (repo != null) {
 
                     Query query = LongPoint.newExactQuery(Constants.FIELD_REPO_ID, repo.getId());
+                    Semaphore lock = TaskExecutors.getRepositoryLock(repo.getId());
+                    try {
+                        lock.acquire();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        batch.failedTasks.add(task);
+                        return;
+                    }
                     try {
-                        writer.deleteDocuments(query);                              // Delete SourceCode indexes
+                        batch.writer.deleteDocuments(query);                        // Delete SourceCode indexes
                         RepositoryFactory.getProvider(repo.getScm()).delete(repo);  // Delete temp project git directory
-                        RepositoryManager.INSTANCE.delete(repo.getId());            // Delete project metadata
+                        batch.deletedRepos.add(repo.getId());                       // Delete project metadata after commit
                     } catch (IOException e) {
+                        batch.failedTasks.add(task);
                         log.warn("Failed to delete code-repository id = " + repo.getId(), e);
+                    } finally {
+                        lock.release();
                     }
                 }
             }
         }
     }
+
+    /**
+     * 拉取仓库，成功后提交建立索引的任务
+     * @param task
+     * @param repo
+     * @param batch
+     * @throws Exception
+     */
+    private void fetchAndIndex(QueueTask task, CodeRepository repo, TaskBatch batch) throws Exception {
+        RepositoryProvider repoProvider = RepositoryFactory.getProvider(repo.getScm());
+        Semaphore lock = TaskExecutors.getRepositoryLock(repo.getId());
+        lock.acquire();
+        boolean submitted = false;
+        try {
+            //pull repository from remote
+            if(!TaskExecutors.runWithHostPermit(repo.getUrl(), () -> repoProvider.fetch(repo))) {
+                //failed to clone or fetch, the task will be retried
+                batch.failedTasks.add(task);
+                RepositoryManager.INSTANCE.save(repo);
+                log.warn("Failed to pull code-repository id = {}, url = {}", repo.getId(), repo.getUrl());
+                return;
+            }
+            //build index for it
+            batch.indexFutures.add(TaskExecutors.INDEX.submit(() -> {
+                String committedId = repo.getLastCommitId();
+                try {
+                    int fileCount = repoProvider.index(repo, new CodeFileTraveler(batch.writer, batch.taxonomyWriter));
+                    //the new commit id is saved after the index writer of this batch is committed
+                    if(fileCount >= 0 && repo.getLastCommitId() != null)
+                        batch.indexedCommits.put(repo.getId(), repo.getLastCommitId());
+                    repo.setLastCommitId(committedId);
+                    //write repository status to persistent storage, including the checkpoint of an interrupted rebuild
+                    RepositoryManager.INSTANCE.save(repo);
+                    if(fileCount < 0) {
+                        batch.failedTasks.add(task);
+                        log.warn("Failed to index code-repository id = {}, url = {}", repo.getId(), repo.getUrl());
+                    }
+                } catch (Throwable e) {
+                    batch.failedTasks.add(task);
+                    log.error("Failed to index code-repository id = " + repo.getId(), e);
+                } finally {
+                    lock.release();
+                }
+            }));
+            submitted = true;
+        } catch (RejectedExecutionException e) {
+            batch.failedTasks.add(task);
+            log.warn("Failed to submit index task of code-repository id = {}", repo.getId());
+        } finally {
+            if(!submitted)
+                lock.release();
+        }
+    }
 }
@@ -0,0 +1,225 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.indexer;
+
+import com.gitee.kooder.core.Constants;
+import com.gitee.kooder.models.Repository;
+import com.gitee.kooder.storage.StorageFactory;
+import org.apache.lucene.codecs.DocValuesProducer;
+import org.apache.lucene.index.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * 为旧版本仓库索引补充静态排名字段 srank，并按静态排名重新排序存储
+ * 原有文档的所有字段（包括未存储的 readme、tags 等）原样复制，分类数据不受影响
+ * 使用方法：gsmigrate
+ * 注意事项：该工具不能和 indexer 服务同时运行，否则会锁住索引库
+ * @author Winter Lau<javayou@gmail.com>
+ */
+public class RepositoryRankMigrator {
+
+    private final static Logger log = LoggerFactory.getLogger(RepositoryRankMigrator.class);
+
+    public static void main(String[] args) {
+        long ct = System.currentTimeMillis();
+        try {
+            int rc = migrate();
+            log.info("{} repository documents migrated,time:{}ms", rc, (System.currentTimeMillis()-ct));
+        } catch (IndexNotFoundException e) {
+            log.info("No repository index to migrate.");
+        } catch (IOException e) {
+            log.error("Failed to migrate repository index", e);
+        }
+    }
+
+    /**
+     * 读取仓库索引的所有段，补充 srank 后写入按静态排名排序的新索引，提交后替换原有索引
+     * @return migrated document count
+     * @throws IOException
+     */
+    private static int migrate() throws IOException {
+        try (IndexReader reader = StorageFactory.getIndexReader(Constants.TYPE_REPOSITORY)) {
+            List<CodecReader> leaves = new ArrayList<>();
+            for (LeafReaderContext leaf : reader.leaves()) {
+                CodecReader ranked = new StaticRankCodecReader(SlowCodecReaderWrapper.wrap(leaf.reader()));
+                leaves.add(SortingCodecReader.wrap(ranked, Repository.getIndexSort()));
+            }
+            try (IndexWriter writer = StorageFactory.getRebuildIndexWriter(Constants.TYPE_REPOSITORY)) {
+                writer.addIndexes(leaves.toArray(new CodecReader[0]));
+                writer.commit();
+            }
+            return reader.numDocs();
+        }
+    }
+
+    /**
+     * 根据 recomm 和 stars 的 DocValues 计算每个文档的 srank，已有的 srank 也重新计算
+     */
+    private static class StaticRankCodecReader extends FilterCodecReader {
+
+        private final FieldInfos fieldInfos;
+        private final FieldInfo rankField;
+
+        StaticRankCodecReader(CodecReader in) {
+            super(in);
+            FieldInfos infos = in.getFieldInfos();
+            FieldInfo field = infos.fieldInfo(Constants.FIELD_STATIC_RANK);
+            if (field == null) {
+                List<FieldInfo> fields = new ArrayList<>();
+                int number = 0;
+                for (FieldInfo fi : infos) {
+                    fields.add(fi);
+                    number = Math.max(number, fi.number + 1);
+                }
+                field = new FieldInfo(Constants.FIELD_STATIC_RANK, number, false, true, false, IndexOptions.NONE,
+                        DocValuesType.NUMERIC, -1, new HashMap<>(), 0, 0, 0, false);
+                fields.add(field);
+                infos = new FieldInfos(fields.toArray(new FieldInfo[0]));
+            }
+            this.fieldInfos = infos;
+            this.rankField = field;
+        }
+
+        @Override
+        public FieldInfos getFieldInfos() {
+            return fieldInfos;
+        }
+
+        @Override
+        public DocValuesProducer getDocValuesReader() {
+            DocValuesProducer producer = in.getDocValuesReader();
+            return new DocValuesProducer() {
+                @Override
+                public NumericDocValues getNumeric(FieldInfo field) throws IOException {
+                    if (!rankField.name.equals(field.name))
+                        return producer.getNumeric(field);
+                    return new StaticRankDocValues(maxDoc(), numeric(Constants.FIELD_RECOMM), numeric(Constants.FIELD_STAR_COUNT));
+                }
+
+                private NumericDocValues numeric(String name) throws IOException {
+                    FieldInfo fi = in.getFieldInfos().fieldInfo(name);
+                    return (producer != null && fi != null && fi.getDocValuesType() == DocValuesType.NUMERIC) ? producer.getNumeric(fi) : null;
+                }
+
+                @Override
+                public BinaryDocValues getBinary(FieldInfo field) throws IOException {
+                    return producer.getBinary(field);
+                }
+
+                @Override
+                public SortedDocValues getSorted(FieldInfo field) throws IOException {
+                    return producer.getSorted(field);
+                }
+
+                @Override
+                public SortedNumericDocValues getSortedNumeric(FieldInfo field) throws IOException {
+                    return producer.getSortedNumeric(field);
+                }
+
+                @Override
+                public SortedSetDocValues getSortedSet(FieldInfo field) throws IOException {
+                    return producer.getSortedSet(field);
+                }
+
+                @Override
+                public void checkIntegrity() throws IOException {
+                    if (producer != null)
+                        producer.checkIntegrity();
+                }
+
+                @Override
+                public void close() {
+                }
+
+                @Override
+                public long ramBytesUsed() {
+                    return 0;
+                }
+            };
+        }
+
+        @Override
+        public CacheHelper getCoreCacheHelper() {
+            return null;
+        }
+
+        @Override
+        public CacheHelper getReaderCacheHelper() {
+            return null;
+        }
+    }
+
+    /**
+     * 每个文档都有值的 srank，与 Repository.getDocument() 写入的值相同
+     */
+    private static class StaticRankDocValues extends NumericDocValues {
+
+        private final int maxDoc;
+        private final NumericDocValues recomm;
+        private final NumericDocValues stars;
+        private int doc = -1;
+
+        StaticRankDocValues(int maxDoc, NumericDocValues recomm, NumericDocValues stars) {
+            this.maxDoc = maxDoc;
+            this.recomm = recomm;
+            this.stars = stars;
+        }
+
+        @Override
+        public long longValue() throws IOException {
+            double rank = Repository.staticRank(value(recomm), value(stars));
+            return Double.doubleToRawLongBits(rank);
+        }
+
+        private long value(NumericDocValues values) throws IOException {
+            return (values != null && values.advanceExact(doc)) ? values.longValue() : 0;
+        }
+
+        @Override
+        public boolean advanceExact(int target) {
+            doc = target;
+            return true;
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public int nextDoc() {
+            return advance(doc + 1);
+        }
+
+        @Override
+        public int advance(int target) {
+            doc = (target >= maxDoc) ? NO_MORE_DOCS : target;
+            return doc;
+        }
+
+        @Override
+        public long cost() {
+            return maxDoc;
+        }
+    }
+
+}
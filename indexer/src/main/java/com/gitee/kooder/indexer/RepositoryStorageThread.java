@@ -0,0 +1,162 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.indexer;
+
+import com.gitee.kooder.code.RepositoryFactory;
+import com.gitee.kooder.code.RepositoryManager;
+import com.gitee.kooder.code.RepositoryProvider;
+import com.gitee.kooder.core.KooderConfig;
+import com.gitee.kooder.models.CodeRepository;
+import com.gitee.kooder.storage.StorageFactory;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+/**
+ * 仓库存储空间管理线程：定期整理最近拉取过的仓库，
+ * 占用空间超出 storage.repositories.max_size_in_gigabyte 时按最后拉取时间删除最久未使用的本地克隆，
+ * 被删除的仓库在下次拉取时会重新克隆
+ * @author Winter Lau<javayou@gmail.com>
+ */
+public class RepositoryStorageThread extends Thread {
+
+    private final static Logger log = LoggerFactory.getLogger("[storage]");
+
+    private final static double LOW_WATERMARK = 0.9; //清理到上限的 90% 为止，避免频繁清理
+
+    private long checkInterval; //检查间隔，单位：毫秒
+    private long maxSize;       //仓库存储空间上限，单位：字节
+    private long lastCheck;     //上一次检查的时间，之后拉取过的仓库需要整理
+
+    public RepositoryStorageThread() {
+        super("RepositoryStorageThread");
+        this.setDaemon(true);
+        this.checkInterval = NumberUtils.toLong(KooderConfig.getStoragePropertes().getProperty("repositories.check_interval"), 600) * 1000;
+        this.maxSize = StorageFactory.getRepositoriesMaxSize();
+        this.lastCheck = System.currentTimeMillis();
+    }
+
+    @Override
+    public void run() {
+        if(checkInterval <= 0)
+            return;
+        while(!this.isInterrupted()) {
+            try {
+                Thread.sleep(checkInterval);
+            } catch (InterruptedException e) {
+                break;
+            }
+            try {
+                this.check();
+            } catch (Throwable e) {
+                log.error("Failed to check repositories storage.", e);
+            }
+        }
+    }
+
+    /**
+     * 整理最近拉取过的仓库，统计占用空间，超出上限时清理最久未拉取的仓库
+     */
+    public void check() {
+        long ct = System.currentTimeMillis();
+        long totalSize = 0;
+        int gcCount = 0;
+        List<CodeRepository> cloned = new ArrayList<>();
+        for(CodeRepository repo : RepositoryManager.INSTANCE.list()) {
+            RepositoryProvider provider = RepositoryFactory.getProvider(repo.getScm());
+            if(provider == null)
+                continue;
+            File repoFile = StorageFactory.getRepositoryPath(repo.getRelativePath()).toFile();
+            boolean exists = repoFile.exists();
+            //最近拉取过的仓库或者没有记录空间的旧仓库需要整理并重新统计
+            if(exists ? (repo.getLastAccess() >= lastCheck || repo.getDiskSize() <= 0) : repo.getDiskSize() > 0) {
+                CodeRepository updated = this.update(repo.getId(), r -> {
+                    if(repoFile.exists()) {
+                        long size = provider.gc(r);
+                        r.setDiskSize((size >= 0) ? size : FileUtils.sizeOfDirectory(repoFile));
+                        if (r.getLastAccess() <= 0)
+                            r.setLastAccess(repoFile.lastModified());
+                    }
+                    else
+                        r.setDiskSize(0);
+                });
+                if(updated == null)
+                    continue;
+                repo = updated;
+                gcCount++;
+            }
+            if(repo.getDiskSize() > 0) {
+                totalSize += repo.getDiskSize();
+                cloned.add(repo);
+            }
+        }
+        lastCheck = ct;
+
+        int evictCount = 0;
+        long oldSize = totalSize;
+        if(totalSize > maxSize) {
+            cloned.sort(Comparator.comparingLong(CodeRepository::getLastAccess));
+            for(CodeRepository repo : cloned) {
+                if(totalSize <= maxSize * LOW_WATERMARK)
+                    break;
+                CodeRepository evicted = this.update(repo.getId(), r -> {
+                    RepositoryFactory.getProvider(r.getScm()).delete(r);
+                    r.setDiskSize(0);
+                });
+                if(evicted != null) {
+                    totalSize -= repo.getDiskSize();
+                    evictCount++;
+                    log.info("Repository '{}<{}>' evicted, last pulled at {}", repo.getName(), repo.getId(), new Date(repo.getLastAccess()));
+                }
+            }
+        }
+        log.info("Repositories storage checked in {}ms: {} cloned, {} gc, {} evicted, size {}MB -> {}MB (max {}MB)",
+                System.currentTimeMillis() - ct, cloned.size(), gcCount, evictCount,
+                oldSize / 1024 / 1024, totalSize / 1024 / 1024, maxSize / 1024 / 1024);
+    }
+
+    /**
+     * 在仓库锁内重新读取仓库元信息并更新，正在拉取的仓库直接跳过
+     * @param repoId
+     * @param action
+     * @return 更新后的仓库元信息，仓库正在使用或已删除时返回 null
+     */
+    private CodeRepository update(long repoId, Consumer<CodeRepository> action) {
+        Semaphore lock = TaskExecutors.getRepositoryLock(repoId);
+        if(!lock.tryAcquire())
+            return null;
+        try {
+            //使用最新的元信息，避免覆盖拉取线程保存的状态
+            CodeRepository repo = RepositoryManager.INSTANCE.get(repoId);
+            if(repo == null)
+                return null;
+            action.accept(repo);
+            RepositoryManager.INSTANCE.save(repo);
+            return repo;
+        } finally {
+            lock.release();
+        }
+    }
+}
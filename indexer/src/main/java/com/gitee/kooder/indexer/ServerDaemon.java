@@ -30,6 +30,7 @@ public class ServerDaemon implements Daemon {
 
     private FetchTaskThread fetchTaskThread;
     private GitlabIndexThread gitlabIndexThread;
+    private RepositoryStorageThread repositoryStorageThread;
 
     public ServerDaemon() {}
 
@@ -48,17 +49,20 @@ public class ServerDaemon implements Daemon {
     public void init(DaemonContext dc) {
         this.fetchTaskThread = new FetchTaskThread();
         this.gitlabIndexThread = new GitlabIndexThread();
+        this.repositoryStorageThread = new RepositoryStorageThread();
     }
 
     @Override
     public void start() {
         this.fetchTaskThread.start();
         this.gitlabIndexThread.start();
+        this.repositoryStorageThread.start();
     }
 
     @Override
     public void stop() {
         this.fetchTaskThread.interrupt();
+        this.repositoryStorageThread.interrupt();
         try {
             this.fetchTaskThread.join(2000, 20);
         } catch (InterruptedException e) {}
@@ -0,0 +1,88 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.indexer;
+
+import com.gitee.kooder.code.CodeFileTraveler;
+import com.gitee.kooder.core.Constants;
+import com.gitee.kooder.models.SourceFile;
+import com.gitee.kooder.storage.StorageFactory;
+import com.gitee.kooder.utils.SourceFieldUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.facet.taxonomy.TaxonomyWriter;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.util.Bits;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * 将旧版本代码索引中的 source_0..source_N 字段迁移为单个多值字段 source
+ * 使用方法：gsmigrate
+ * 注意事项：该工具不能和 indexer 服务同时运行，否则会锁住索引库
+ * @author Winter Lau<javayou@gmail.com>
+ */
+public class SourceFieldMigrator {
+
+    private final static Logger log = LoggerFactory.getLogger(SourceFieldMigrator.class);
+
+    public static void main(String[] args) {
+        long ct = System.currentTimeMillis();
+        try {
+            int fc = migrate();
+            log.info("{} code documents migrated,time:{}ms", fc, (System.currentTimeMillis()-ct));
+        } catch (IOException e) {
+            log.error("Failed to migrate code index", e);
+        }
+    }
+
+    /**
+     * 读取所有代码文档，将使用旧字段的文档按新格式重建
+     * @return migrated document count
+     * @throws IOException
+     */
+    private static int migrate() throws IOException {
+        int fc = 0;
+        String legacyField = SourceFieldUtils.getSourceFieldName(0);
+        try (
+            IndexReader reader = StorageFactory.getIndexReader(Constants.TYPE_CODE);
+            IndexWriter writer = StorageFactory.getIndexWriter(Constants.TYPE_CODE);
+            TaxonomyWriter taxonomyWriter = StorageFactory.getTaxonomyWriter(Constants.TYPE_CODE);
+        ) {
+            CodeFileTraveler traveler = new CodeFileTraveler(writer, taxonomyWriter);
+            for (LeafReaderContext leaf : reader.leaves()) {
+                Bits liveDocs = leaf.reader().getLiveDocs();
+                for (int i = 0; i < leaf.reader().maxDoc(); i++) {
+                    if (liveDocs != null && !liveDocs.get(i))
+                        continue;
+                    Document doc = leaf.reader().document(i);
+                    if (doc.get(legacyField) == null)
+                        continue;
+                    SourceFile file = new SourceFile();
+                    file.setDocument(doc);
+                    traveler.updateDocument(file);
+                    if (++fc % 1000 == 0)
+                        log.info("{} code documents migrated.", fc);
+                }
+            }
+            writer.commit();
+        }
+        return fc;
+    }
+
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright (c) 2021, OSChina (oschina.net@gmail.com).
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitee.kooder.indexer;
+
+import com.gitee.kooder.core.KooderConfig;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 索引任务的线程池：拉取代码仓库（网络 I/O）和写入索引（CPU）分别使用独立的有界线程池，
+ * 拉取完成的仓库交给写索引的线程池，线程池中等待的任务已满时提交任务的线程会被阻塞（拉取等待索引），
+ * 同一个代码托管主机同时拉取的仓库数有上限
+ * @author Winter Lau<javayou@gmail.com>
+ */
+public class TaskExecutors {
+
+    private final static Logger log = LoggerFactory.getLogger("[indexer]");
+
+    private final static Properties props = KooderConfig.getIndexerProperties();
+    private final static int CPUS = Runtime.getRuntime().availableProcessors();
+    private final static int QUEUE_SIZE     = NumberUtils.toInt(props.getProperty("executor.queue_size"), 100);
+    private final static int FETCH_PER_HOST = NumberUtils.toInt(props.getProperty("executor.fetch_per_host"), 2);
+
+    private final static Pattern SCP_LIKE_HOST = Pattern.compile("^(?:[^@/]+@)?([^:/]+):");
+
+    /**
+     * 拉取代码仓库的线程池
+     */
+    public final static BoundedExecutor FETCH = new BoundedExecutor("fetch", NumberUtils.toInt(props.getProperty("executor.fetch_threads"), 4));
+
+    /**
+     * 写入索引的线程池
+     */
+    public final static BoundedExecutor INDEX = new BoundedExecutor("index", NumberUtils.toInt(props.getProperty("executor.index_threads"), CPUS));
+
+    private final static Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+
+    //同一仓库的拉取、索引和删除互斥执行，按仓库 id 分段加锁，
+    //拉取和索引在不同的线程中执行，所以使用可以由其他线程释放的信号量
+    private final static Semaphore[] repositoryLocks = new Semaphore[64];
+    static {
+        for(int i = 0; i < repositoryLocks.length; i++)
+            repositoryLocks[i] = new Semaphore(1);
+    }
+
+    /**
+     * 获取仓库的互斥锁（只有一个许可的信号量）
+     * @param repoId
+     * @return
+     */
+    public static Semaphore getRepositoryLock(long repoId) {
+        return repositoryLocks[(int)Math.floorMod(repoId, (long)repositoryLocks.length)];
+    }
+
+    /**
+     * 占用仓库所在主机的并发名额后执行任务
+     * @param url  仓库地址
+     * @param task
+     * @return 任务的执行结果
+     * @throws Exception
+     */
+    public static <T> T runWithHostPermit(String url, Callable<T> task) throws Exception {
+        String host = getHost(url);
+        if(FETCH_PER_HOST <= 0 || StringUtils.isBlank(host))
+            return task.call();
+        Semaphore permits = hostPermits.computeIfAbsent(host, h -> new Semaphore(FETCH_PER_HOST));
+        permits.acquire();
+        try {
+            return task.call();
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * 等待所有任务结束
+     * @param futures
+     * @throws InterruptedException
+     */
+    public static void await(List<Future<?>> futures) throws InterruptedException {
+        for(Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                log.error("Failed to execute task.", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * 获取仓库地址中的主机名，支持 http(s)://, ssh:// 和 git@host:path 格式
+     * @param url
+     * @return
+     */
+    static String getHost(String url) {
+        if(StringUtils.isBlank(url))
+            return null;
+        try {
+            String host = URI.create(url).getHost();
+            if(host != null)
+                return host.toLowerCase();
+        } catch (IllegalArgumentException e) {
+        }
+        Matcher matcher = SCP_LIKE_HOST.matcher(url);
+        return matcher.find() ? matcher.group(1).toLowerCase() : null;
+    }
+
+    /**
+     * 有界线程池，正在执行和等待执行的任务数达到上限（线程数 + queue_size）时阻塞提交任务的线程，并记录线程池饱和的次数
+     */
+    public static class BoundedExecutor {
+
+        private final String name;
+        private final ThreadPoolExecutor pool;
+        private final Semaphore slots;
+        private final AtomicLong saturatedCount = new AtomicLong(0);
+
+        BoundedExecutor(String name, int threads) {
+            this.name = name;
+            this.slots = new Semaphore(threads + Math.max(1, QUEUE_SIZE));
+            AtomicInteger index = new AtomicInteger(0);
+            this.pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(),
+                    r -> {
+                        Thread thread = new Thread(r, String.format("indexer-%s-%d", name, index.getAndIncrement()));
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+        }
+
+        /**
+         * 提交任务，线程池已满时阻塞直到有任务结束
+         * @param task
+         * @return
+         * @throws RejectedExecutionException  等待时被中断
+         */
+        public Future<?> submit(Runnable task) {
+            if(!slots.tryAcquire()) {
+                saturatedCount.incrementAndGet();
+                try {
+                    slots.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException("Interrupted while waiting for executor " + name, e);
+                }
+            }
+            try {
+                return pool.submit(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        slots.release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                slots.release();
+                throw e;
+            }
+        }
+
+        /**
+         * 线程池是否饱和（所有线程忙并且有任务在排队）
+         * @return
+         */
+        public boolean isSaturated() {
+            return pool.getActiveCount() >= pool.getMaximumPoolSize() && !pool.getQueue().isEmpty();
+        }
+
+        /**
+         * 线程池状态，用于日志输出
+         * @return
+         */
+        public String stats() {
+            return String.format("%s[active=%d/%d, queued=%d, completed=%d, saturated=%d]", name,
+                    pool.getActiveCount(), pool.getMaximumPoolSize(), pool.getQueue().size(),
+                    pool.getCompletedTaskCount(), saturatedCount.get());
+        }
+    }
+}